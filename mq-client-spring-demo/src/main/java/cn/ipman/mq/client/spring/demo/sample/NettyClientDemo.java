@@ -2,11 +2,12 @@ package cn.ipman.mq.client.spring.demo.sample;
 
 
 import cn.ipman.mq.client.client.netty.NettyMQClient;
-import cn.ipman.mq.client.client.netty.NettyMQClientPool;
+import cn.ipman.mq.client.client.netty.NettyMQClientGroup;
 import cn.ipman.mq.metadata.data.Order;
 import cn.ipman.mq.metadata.model.Message;
 import cn.ipman.mq.metadata.model.NettyResponse;
 import cn.ipman.mq.metadata.model.Statistical;
+import cn.ipman.mq.metadata.protocol.NettyFrame;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.TypeReference;
 
@@ -27,14 +28,14 @@ public class NettyClientDemo {
     public static void main(String[] args) throws Exception {
         String host = "127.0.0.1";
         int port = 6666;
-        int maxTotal = 10;
-        int maxIdle = 5;
-        int minIdle = 2;
+        int connections = 1;
+        int maxInFlight = 1024;
+        long requestTimeout = 10_000;
 
-        NettyMQClientPool clientPool = new NettyMQClientPool(host, port, maxTotal, maxIdle, minIdle);
+        NettyMQClientGroup clientGroup = new NettyMQClientGroup(host, port, connections, maxInFlight, requestTimeout);
         try {
-            // 借用客户端
-            NettyMQClient client = clientPool.borrowClient();
+            // 获取共享连接
+            NettyMQClient client = clientGroup.next();
 
             sub(client);
             statistical(client);
@@ -45,13 +46,13 @@ public class NettyClientDemo {
 
             NettyResponse<Message<String>> receive = receive(client);
             assert receive != null;
-            int offset = Integer.parseInt(receive.getData().getHeaders().get("X-offset"));
+            long offset = Long.parseLong(receive.getData().getHeaders().get("X-offset"));
             ack(client, offset);
 
             NettyResponse<List<Message<String>>> batchReceive = batchReceive(client, 50);
             assert batchReceive != null;
-            int maxOffset = batchReceive.getData().stream()
-                    .mapToInt(msg -> Integer.parseInt(msg.getHeaders().get("X-offset")))
+            long maxOffset = batchReceive.getData().stream()
+                    .mapToLong(msg -> Long.parseLong(msg.getHeaders().get("X-offset")))
                     .max()
                     .orElse(0);
             long totalOffset = batchReceive.getData().size();
@@ -61,11 +62,8 @@ public class NettyClientDemo {
             statistical(client);
 
             unsub(client);
-
-            // 归还客户端
-            clientPool.returnClient(client);
         } finally {
-            clientPool.close();
+            clientGroup.close();
         }
     }
 
@@ -74,11 +72,9 @@ public class NettyClientDemo {
                 "t", "cn.ipman.test",
                 "cid", "123");
         // 发送消息
-        CompletableFuture<String> future = client.sendMessage("sub", params, null);
+        CompletableFuture<NettyFrame> future = client.sendMessage("sub", params, null);
         try {
-            NettyResponse<String> response = JSON.parseObject(future.get(),
-                    new TypeReference<NettyResponse<String>>() {
-                    });
+            NettyResponse<String> response = future.get().toResponse(String.class);
             System.out.println("【sub】 Received response: " + response);
         } catch (Exception e) {
             e.printStackTrace();
@@ -90,11 +86,9 @@ public class NettyClientDemo {
                 "t", "cn.ipman.test",
                 "cid", "123");
         // 发送消息
-        CompletableFuture<String> future = client.sendMessage("unsub", params, null);
+        CompletableFuture<NettyFrame> future = client.sendMessage("unsub", params, null);
         try {
-            NettyResponse<String> response = JSON.parseObject(future.get(),
-                    new TypeReference<NettyResponse<String>>() {
-                    });
+            NettyResponse<String> response = future.get().toResponse(String.class);
             System.out.println("【unsub】 Received response: " + response);
         } catch (Exception e) {
             e.printStackTrace();
@@ -109,11 +103,9 @@ public class NettyClientDemo {
         Message<String> message = new Message<>(1, JSON.toJSONString(order), null);
 
         // 发送消息
-        CompletableFuture<String> future = client.sendMessage("send", params, message);
+        CompletableFuture<NettyFrame> future = client.sendMessage("send", params, message);
         try {
-            NettyResponse<String> response = JSON.parseObject(future.get(),
-                    new TypeReference<NettyResponse<String>>() {
-                    });
+            NettyResponse<String> response = future.get().toResponse(String.class);
             System.out.println("【send】 Received response: " + response);
         } catch (Exception e) {
             e.printStackTrace();
@@ -125,11 +117,10 @@ public class NettyClientDemo {
                 "t", "cn.ipman.test",
                 "cid", "123");
         // 发送消息
-        CompletableFuture<String> future = client.sendMessage("receive", params, null);
+        CompletableFuture<NettyFrame> future = client.sendMessage("receive", params, null);
         try {
-            NettyResponse<Message<String>> response = JSON.parseObject(future.get(),
-                    new TypeReference<NettyResponse<Message<String>>>() {
-                    });
+            NettyResponse<Message<String>> response = future.get().toResponse(new TypeReference<Message<String>>() {
+                }.getType());
             System.out.println("【batch receive】 Received response: " + response);
             return response;
         } catch (Exception e) {
@@ -144,11 +135,10 @@ public class NettyClientDemo {
                 "cid", "123",
                 "size", String.valueOf(size));
         // 发送消息
-        CompletableFuture<String> future = client.sendMessage("batch-receive", params, null);
+        CompletableFuture<NettyFrame> future = client.sendMessage("batch-receive", params, null);
         try {
-            NettyResponse<List<Message<String>>> response = JSON.parseObject(future.get(),
-                    new TypeReference<NettyResponse<List<Message<String>>>>() {
-                    });
+            NettyResponse<List<Message<String>>> response = future.get().toResponse(new TypeReference<List<Message<String>>>() {
+                }.getType());
             System.out.println("【receive】 Received response: " + response);
             return response;
         } catch (Exception e) {
@@ -158,18 +148,16 @@ public class NettyClientDemo {
     }
 
 
-    public static void ack(NettyMQClient client, int ack) {
+    public static void ack(NettyMQClient client, long ack) {
         Map<String, String> params = Map.of(
                 "t", "cn.ipman.test",
                 "cid", "123",
                 "offset", String.valueOf(ack));
 
         // 发送消息
-        CompletableFuture<String> future = client.sendMessage("ack", params, null);
+        CompletableFuture<NettyFrame> future = client.sendMessage("ack", params, null);
         try {
-            NettyResponse<?> response = JSON.parseObject(future.get(),
-                    new TypeReference<NettyResponse<String>>() {
-                    });
+            NettyResponse<?> response = future.get().toResponse(String.class);
             System.out.println("【ack】 Received response: " + response);
         } catch (Exception e) {
             e.printStackTrace();
@@ -180,11 +168,10 @@ public class NettyClientDemo {
     public static NettyResponse<Statistical> statistical(NettyMQClient client) {
         Map<String, String> params = Map.of("t", "cn.ipman.test", "cid", "123");
         // 发送消息
-        CompletableFuture<String> future = client.sendMessage("stat", params, null);
+        CompletableFuture<NettyFrame> future = client.sendMessage("stat", params, null);
         try {
-            NettyResponse<Statistical> response = JSON.parseObject(future.get(),
-                    new TypeReference<NettyResponse<Statistical>>() {
-                    });
+            NettyResponse<Statistical> response = future.get().toResponse(new TypeReference<Statistical>() {
+                }.getType());
             System.out.println("【stat】 Received response: " + response);
             return response;
         } catch (Exception e) {
@@ -18,6 +18,13 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.ApplicationContext;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 @SpringBootTest(classes = {MqClientSpringDemoApplication.class},
         properties = {"mq.client.host=127.0.0.1", "mq.client.port=8766"})
 class MqClientSpringDemoApplicationTests {
@@ -78,6 +85,32 @@ class MqClientSpringDemoApplicationTests {
         System.out.println("===>> Statistical ===>>" + stat1);
         System.out.println("------------------------>");
 
+        // ------------ 批量生产、零拷贝批量消费 ------------------
+        for (int i = 0; i < 3; i++) {
+            User user = new User(ids, "item" + ids);
+            producer.send(topic, new Message<>(ids++, JSON.toJSONString(user), null));
+        }
+        List<? extends Message<?>> messages = consumer1.batchReceive(topic, 10);
+        System.out.println("batch poll ok => " + messages);
+        if (!messages.isEmpty()) {
+            consumer1.ack(topic, messages.get(messages.size() - 1));
+        }
+
+        // ------------ 异步批量生产 ------------------
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            User user = new User(ids, "item" + ids);
+            futures.add(producer.sendAsync(topic, new Message<>(ids++, JSON.toJSONString(user), null)));
+        }
+        producer.flush();
+        long last = -1;
+        for (CompletableFuture<Long> future : futures) {
+            long offset = future.get(5, TimeUnit.SECONDS);
+            assertTrue(offset > last);
+            last = offset;
+        }
+        System.out.println("async send ok => " + futures.size() + " messages, last offset = " + last);
+
         //Thread.sleep(3_000);
     }
 
@@ -1,5 +1,8 @@
 package cn.ipman.mq.client.annotation;
 
+import cn.ipman.mq.client.broker.DispatchMode;
+import cn.ipman.mq.client.broker.MQDispatcher;
+
 import java.lang.annotation.*;
 
 
@@ -16,4 +19,25 @@ import java.lang.annotation.*;
 @Inherited
 public @interface MQListener {
     String[] topic();
+
+    /**
+     * 消费者组, 默认为监听方法的全限定名(类名.方法名)。
+     * 同一个服务的多个实例自然加入同一个消费者组, 分摊主题的分区。
+     */
+    String group() default "";
+
+    /**
+     * 消息的分发模式, 默认不保序。
+     */
+    DispatchMode mode() default DispatchMode.UNORDERED;
+
+    /**
+     * 处理消息的并行度, 默认为1, 即串行处理。
+     */
+    int concurrency() default 1;
+
+    /**
+     * 按键保序时使用的消息头。
+     */
+    String key() default MQDispatcher.DEFAULT_KEY_HEADER;
 }
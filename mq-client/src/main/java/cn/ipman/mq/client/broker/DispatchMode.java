@@ -0,0 +1,20 @@
+package cn.ipman.mq.client.broker;
+
+/**
+ * 消费者处理消息的分发模式。
+ *
+ * @Author IpMan
+ * @Date 2026/10/17 23:40
+ */
+public enum DispatchMode {
+
+    /**
+     * 按消息键保序: 消息按键消息头的哈希分配到固定的处理通道, 同一个键的消息串行处理, 不同键之间并行。
+     */
+    ORDERED_BY_KEY,
+
+    /**
+     * 不保序: 所有消息提交到同一个线程池, 以最大并行度处理。
+     */
+    UNORDERED
+}
@@ -2,13 +2,28 @@ package cn.ipman.mq.client.broker;
 
 import cn.ipman.mq.client.client.ClientService;
 import cn.ipman.mq.client.client.netty.NettyClientImpl;
+import cn.ipman.mq.metadata.model.Assignment;
 import cn.ipman.mq.metadata.model.Message;
 import cn.ipman.mq.metadata.model.Statistical;
-import cn.ipman.mq.metadata.utils.ThreadUtils;
 import lombok.Getter;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cn.ipman.mq.metadata.model.Constants.FETCH_LONG_POLL_WAIT;
+import static cn.ipman.mq.metadata.model.Constants.GROUP_HEARTBEAT_INTERVAL;
+import static cn.ipman.mq.metadata.model.Constants.KEY_HEADER;
+import static cn.ipman.mq.metadata.model.Constants.OFFSET_HEADER;
+
 /**
  * 消息代理类，负责管理消息队列并提供生产者与消费者创建方法。
  * 实现了基于主题的消息代理功能，允许创建及查找消息队列。
@@ -26,53 +41,333 @@ public class MQBroker {
 
     public ClientService clientService;
 
+    /**
+     * 异步发送的消息累加器, 按主题分区攒批发送。
+     */
+    final MessageAccumulator accumulator;
+
+    /**
+     * 已查询过的主题分区数量, 主题为键。
+     */
+    final Map<String, Integer> partitionCounts = new ConcurrentHashMap<>();
+
+    /**
+     * 没有消息键时轮询选择分区。
+     */
+    final AtomicInteger roundRobin = new AtomicInteger(0);
+
+    /**
+     * 消费者定时提交位点的间隔(ms)。
+     */
+    final long commitIntervalMs;
+
+    /**
+     * 消费者累计多少次确认后立即提交位点。
+     */
+    final int commitBatch;
+
     public MQBroker() {
-        this.clientService = new NettyClientImpl(
-                "127.0.0.1", 8765, 10, 5, 2);
+        this(new NettyClientImpl("127.0.0.1", 8765, 2, 1024, 10_000));
     }
 
     public MQBroker(ClientService clientService) {
+        this(clientService, 16 * 1024, 5);
+    }
+
+    /**
+     * 构造消息代理。
+     *
+     * @param clientService 客户端服务。
+     * @param batchSize     异步发送时一个批次的字节数上限。
+     * @param lingerMs      异步发送时批次的最长等待时间(ms)。
+     */
+    public MQBroker(ClientService clientService, int batchSize, long lingerMs) {
+        this(clientService, batchSize, lingerMs, 1000, 100);
+    }
+
+    /**
+     * 构造消息代理。
+     *
+     * @param clientService    客户端服务。
+     * @param batchSize        异步发送时一个批次的字节数上限。
+     * @param lingerMs         异步发送时批次的最长等待时间(ms)。
+     * @param commitIntervalMs 消费者定时提交位点的间隔(ms)。
+     * @param commitBatch      消费者累计多少次确认后立即提交位点。
+     */
+    public MQBroker(ClientService clientService, int batchSize, long lingerMs, long commitIntervalMs, int commitBatch) {
         this.clientService = clientService;
+        this.accumulator = new MessageAccumulator(clientService, batchSize, lingerMs);
+        this.commitIntervalMs = commitIntervalMs;
+        this.commitBatch = commitBatch;
     }
 
 
+    /**
+     * 每次长轮询最多拉取的消息数量。
+     */
+    private static final int POLL_BATCH_SIZE = 100;
+
+    /**
+     * 长轮询提前返回空结果(请求失败或不支持长轮询)时的退避时间。
+     */
+    private static final long POLL_BACKOFF_MS = 100;
+
     /**
      * 所有消费者的集合。
      */
     final MultiValueMap<String, MQConsumer<?>> consumers = new LinkedMultiValueMap<>();
 
+    /**
+     * 是否已经初始化, 初始化之后添加的消费者立即开始拉取。
+     */
+    private volatile boolean running = false;
+
     /**
      * 添加消费者到指定主题。
      *
      * @param topic    主题。
      * @param consumer 消费者。
      */
-    public void addConsumer(String topic, MQConsumer<?> consumer) {
+    public synchronized void addConsumer(String topic, MQConsumer<?> consumer) {
         consumers.add(topic, consumer);
+        if (running) {
+            startPolling(topic, consumer);
+        }
     }
 
 
     /**
-     * 初始化消息代理，启动定时任务轮询消费者以处理消息。
+     * 初始化消息代理，为每个消费者启动长轮询拉取线程。
+     */
+    public synchronized void init() {
+        if (running) return;
+        running = true;
+        consumers.forEach((topic, c) -> c.forEach(consumer -> startPolling(topic, consumer)));
+    }
+
+    /**
+     * 为消费者启动协调线程, 协调线程定期向服务端发送消费者组心跳, 按服务端返回的分区分配
+     * 为分配给自己的每个分区启动一个长轮询拉取线程, 分区被分配给组内其他成员时停止对应的拉取线程。
+     * 没有新消息时请求挂起在服务端, 消息写入后立即返回, 不再按固定间隔空轮询。
+     * 拉取到的消息交给消费者自己的分发器并行处理, 拉取线程只负责拉取, 慢的监听器不会影响其他消费者。
+     * 分发器确认的位点交给 {@link OffsetCommitter} 攒批提交, 不再每条消息发送一次确认请求。
+     *
+     * @param topic    主题。
+     * @param consumer 消费者。
      */
-    public void init() {
-        // 定时轮询消息队列，并调用监听器处理消息
-        ThreadUtils.getDefault().init(1);
-        ThreadUtils.getDefault().schedule(() -> {
-            // 遍历所有topic下的消费者, 分别取server端获取数据, 并调用监听器处理消息
-            consumers.forEach((topic, c) -> c.forEach(consumer -> {
-                // 消费数据
-                Message<?> receive = consumer.receive(topic);
-                if (receive == null) return;
+    private void startPolling(String topic, MQConsumer<?> consumer) {
+        OffsetCommitter committer = new OffsetCommitter(clientService, topic, consumer.id,
+                commitBatch, commitIntervalMs);
+        MQDispatcher dispatcher = new MQDispatcher(topic + "-" + consumer.id, consumer.listener,
+                consumer.dispatchMode, consumer.concurrency, consumer.keyHeader,
+                Math.max(POLL_BATCH_SIZE, consumer.concurrency * POLL_BATCH_SIZE), committer::ack);
+        String name = "mq-poll-" + topic + "-" + consumer.id;
+        Thread thread = new Thread(() -> {
+            // 正在拉取的分区, 分区号为键
+            Map<Integer, Poller> pollers = new HashMap<>();
+            while (running) {
+                // 服务端可能还没有启动或者已经重启, 心跳失败时退避重试, 心跳会重新加入消费者组
+                Assignment assignment = heartbeat(topic, consumer);
+                if (assignment != null) {
+                    rebalance(topic, consumer, dispatcher, committer, pollers, assignment);
+                }
+                sleep(assignment == null ? POLL_BACKOFF_MS * 10 : GROUP_HEARTBEAT_INTERVAL);
+            }
+            pollers.values().forEach(Poller::stop);
+            for (Poller poller : pollers.values()) {
                 try {
-                    // 通知监听器处理消息
-                    consumer.listener.onMessage(receive);
-                    consumer.ack(topic, receive);
-                } catch (Exception e) {
-                    //todo retry
+                    poller.thread.join();
+                } catch (InterruptedException e) {
+                    break;
                 }
-            }));
-        }, 100, 100);
+            }
+            dispatcher.shutdown();
+            try {
+                // 等正在处理的消息确认后再提交最后的位点
+                dispatcher.awaitTermination(POLL_BACKOFF_MS * 10, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            committer.close();
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 发送一次消费者组心跳。
+     *
+     * @param topic    主题。
+     * @param consumer 消费者。
+     * @return 最新的分区分配, 请求失败时为null。
+     */
+    private Assignment heartbeat(String topic, MQConsumer<?> consumer) {
+        try {
+            Assignment assignment = clientService.heartbeat(topic, consumer.group, consumer.id);
+            if (assignment != null) {
+                consumer.assignment = assignment;
+            }
+            return assignment;
+        } catch (Exception e) {
+            System.out.println(" ===>> heartbeat failed, topic/cid = " + topic + "/" + consumer.id + ", " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 按新的分区分配调整拉取线程: 停止不再分配给自己的分区, 为新分配的分区启动拉取线程。
+     * 被分配走的分区上已经拉取的消息仍由分发器处理完并确认, 新的成员从消费者组已确认的位置继续拉取。
+     * 分区被分配走时立即提交已确认的位点, 减少新的成员重复消费的消息。
+     */
+    private void rebalance(String topic, MQConsumer<?> consumer, MQDispatcher dispatcher, OffsetCommitter committer,
+                           Map<Integer, Poller> pollers, Assignment assignment) {
+        Set<Integer> assigned = new HashSet<>();
+        for (int partition : assignment.getPartitions()) {
+            assigned.add(partition);
+        }
+        if (assigned.equals(pollers.keySet())) {
+            return;
+        }
+        System.out.println(" ===>> rebalance: topic/cid/generation = " + topic + "/" + consumer.id
+                + "/" + assignment.getGeneration() + ", partitions " + pollers.keySet() + " -> " + assigned);
+        pollers.entrySet().removeIf(entry -> {
+            if (assigned.contains(entry.getKey())) {
+                return false;
+            }
+            entry.getValue().stop();
+            return true;
+        });
+        committer.flush();
+        // 每个拉取线程在长轮询期间持有一批容量, 分发器的上限按分区数量扩大, 空闲分区不会挡住有积压的分区
+        dispatcher.ensureCapacity(assigned.size() * POLL_BATCH_SIZE);
+        for (int partition : assigned) {
+            pollers.computeIfAbsent(partition, p -> {
+                Poller poller = new Poller();
+                poller.thread = new Thread(() -> poll(topic, p, consumer, dispatcher, poller),
+                        "mq-poll-" + topic + "-" + consumer.id + "-" + p);
+                poller.thread.setDaemon(true);
+                poller.thread.start();
+                return poller;
+            });
+        }
+    }
+
+    /**
+     * 长轮询拉取一个分区的消息, 直到分区被分配走或消息代理停止。
+     *
+     * @param topic      主题。
+     * @param partition  分区号。
+     * @param consumer   消费者。
+     * @param dispatcher 消费者的分发器。
+     * @param poller     分区的拉取任务。
+     */
+    private void poll(String topic, int partition, MQConsumer<?> consumer, MQDispatcher dispatcher, Poller poller) {
+        // 客户端自己在分区上的拉取位置, 确认落后于拉取时也不会重复拉取处理中的消息
+        long position = -1;
+        while (running && poller.active) {
+            try {
+                dispatcher.acquire(POLL_BATCH_SIZE);
+            } catch (InterruptedException e) {
+                break;
+            }
+            long start = System.currentTimeMillis();
+            List<? extends Message<?>> messages = consumer.batchReceive(
+                    topic, partition, position, POLL_BATCH_SIZE, FETCH_LONG_POLL_WAIT);
+            dispatcher.release(POLL_BATCH_SIZE - messages.size());
+            if (messages.isEmpty()) {
+                // 没有等满就返回空结果, 说明请求失败、不支持长轮询或分区已经分配给了其他成员, 退避一下避免空转
+                if (System.currentTimeMillis() - start < FETCH_LONG_POLL_WAIT / 2) {
+                    sleep(POLL_BACKOFF_MS);
+                }
+                continue;
+            }
+            for (Message<?> message : messages) {
+                dispatcher.dispatch(message);
+            }
+            position = Long.parseLong(messages.get(messages.size() - 1).getHeaders().get(OFFSET_HEADER));
+        }
+    }
+
+    /**
+     * 一个分区的拉取任务。
+     */
+    private static class Poller {
+
+        Thread thread;
+
+        volatile boolean active = true;
+
+        void stop() {
+            active = false;
+        }
+    }
+
+    /**
+     * 获取主题的分区数量, 第一次使用时向服务端查询并缓存。
+     *
+     * @param topic 主题。
+     * @return 分区数量。
+     */
+    public int partitions(String topic) {
+        return partitionCounts.computeIfAbsent(topic, clientService::partitions);
+    }
+
+    /**
+     * 创建主题。
+     *
+     * @param topic      主题名, 只能包含字母、数字和 . _ -。
+     * @param partitions 分区数量, 小于1时使用服务端的主题配置。
+     * @return 新建了主题返回true, 主题已经存在时返回false。
+     */
+    public boolean createTopic(String topic, int partitions) {
+        return clientService.createTopic(topic, partitions);
+    }
+
+    /**
+     * 删除主题及其所有消息和消费位点。
+     *
+     * @param topic 主题名。
+     * @return 主题存在并被删除返回true。
+     */
+    public boolean deleteTopic(String topic) {
+        partitionCounts.remove(topic);
+        return clientService.deleteTopic(topic);
+    }
+
+    /**
+     * 为消息选择分区: 有消息键(X-key)时按键的哈希选择, 同一个键的消息总是落在同一个分区, 保证分区内有序;
+     * 否则在所有分区间轮询, 把写入分散到各个分区。
+     *
+     * @param topic   主题。
+     * @param message 消息。
+     * @return 分区号。
+     */
+    int partitionFor(String topic, Message<?> message) {
+        int partitions = partitions(topic);
+        if (partitions == 1) {
+            return 0;
+        }
+        String key = message.getHeaders() == null ? null : message.getHeaders().get(KEY_HEADER);
+        int hash = key == null ? roundRobin.getAndIncrement() : key.hashCode();
+        return Math.floorMod(hash, partitions);
+    }
+
+    /**
+     * 停止所有消费者的拉取线程, 正在挂起的长轮询返回后退出。
+     * 累加器中还没有发送的消息立即发送, 然后关闭累加器, 之后异步发送的消息直接失败。
+     */
+    public void shutdown() {
+        running = false;
+        accumulator.flush();
+        accumulator.close();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
 
@@ -112,26 +407,60 @@ public class MQBroker {
         return consumer;
     }
 
+    /**
+     * 创建一个消息消费者，以指定的消费者组订阅主题。
+     * 多个进程以同一个消费者组订阅时，主题的分区在它们之间分配，每条消息只被其中一个消费者处理。
+     *
+     * @param topic 消息的主题。
+     * @param group 消费者组。
+     * @return 返回创建的消费者实例，已经加入消费者组。
+     */
+    public MQConsumer<?> createConsumer(String topic, String group) {
+        MQConsumer<?> consumer = new MQConsumer<>(this, group);
+        consumer.subscribe(topic);
+        return consumer;
+    }
+
 
     /**
-     * 发送消息到指定主题。
+     * 发送消息到指定主题, 按消息键或轮询选择分区。
      *
      * @param topic   消息主题。
      * @param message 消息对象。
      * @return 发送是否成功。
      */
     public boolean send(String topic, Message<?> message) {
-        return clientService.send(topic, message);
+        return clientService.send(topic, partitionFor(topic, message), message);
     }
 
     /**
-     * 订阅指定主题。
+     * 异步发送消息到指定主题, 按消息键或轮询选择分区, 消息进入累加器按批次发送, 调用线程不等待响应。
+     *
+     * @param topic   消息主题。
+     * @param message 消息对象。
+     * @return 消息写入后完成的future, 结果为消息在分区内的偏移量。
+     */
+    public CompletableFuture<Long> sendAsync(String topic, Message<?> message) {
+        return accumulator.append(topic, partitionFor(topic, message), message);
+    }
+
+    /**
+     * 立即发送所有还在累加器中的消息。
+     */
+    public void flush() {
+        accumulator.flush();
+    }
+
+    /**
+     * 订阅指定主题, 加入消费者组。
      *
      * @param topic      主题。
+     * @param group      消费者组。
      * @param consumerId 消费者ID。
+     * @return 消费者的分区分配, 请求失败时为null。
      */
-    public void subscribe(String topic, String consumerId) {
-        clientService.subscribe(topic, consumerId);
+    public Assignment subscribe(String topic, String group, String consumerId) {
+        return clientService.subscribe(topic, group, consumerId);
     }
 
     /**
@@ -146,25 +475,55 @@ public class MQBroker {
     }
 
     /**
-     * 取消订阅指定主题。
+     * 批量接收指定主题的消息。
+     *
+     * @param topic      主题。
+     * @param consumerId 消费者ID。
+     * @param size       最多接收的消息数量。
+     * @return 消息列表。
+     */
+    public <T> List<Message<T>> batchReceive(String topic, String consumerId, int size) {
+        return clientService.batchReceive(topic, consumerId, size);
+    }
+
+    /**
+     * 从分区的指定位置之后长轮询批量接收消息。
+     *
+     * @param topic      主题。
+     * @param consumerId 消费者ID。
+     * @param partition  分区号。
+     * @param offset     已拉取到的最后一条消息的offset, 小于0时从已确认的位置开始。
+     * @param size       最多接收的消息数量。
+     * @param waitMs     没有新消息时最长等待的毫秒数。
+     * @return 消息列表。
+     */
+    public <T> List<Message<T>> batchReceive(String topic, String consumerId, int partition, long offset,
+                                             int size, long waitMs) {
+        return clientService.batchReceive(topic, consumerId, partition, offset, size, waitMs);
+    }
+
+    /**
+     * 取消订阅指定主题, 离开消费者组。
      *
      * @param topic      主题。
+     * @param group      消费者组。
      * @param consumerId 消费者ID。
      */
-    public void unSubscribe(String topic, String consumerId) {
-        clientService.unSubscribe(topic, consumerId);
+    public void unSubscribe(String topic, String group, String consumerId) {
+        clientService.unSubscribe(topic, group, consumerId);
     }
 
     /**
-     * 确认消息消费。
+     * 确认分区上的消息消费。
      *
      * @param topic      主题。
      * @param consumerId 消费者ID。
-     * @param offset     消息偏移量。
+     * @param partition  分区号。
+     * @param offset     消息在分区内的偏移量。
      * @return 确认是否成功。
      */
-    public boolean ack(String topic, String consumerId, int offset) {
-        return clientService.ack(topic, consumerId, offset);
+    public boolean ack(String topic, String consumerId, int partition, long offset) {
+        return clientService.ack(topic, consumerId, partition, offset);
     }
 
 
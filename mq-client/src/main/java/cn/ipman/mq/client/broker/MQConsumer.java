@@ -2,16 +2,26 @@ package cn.ipman.mq.client.broker;
 
 
 
+import cn.ipman.mq.metadata.model.Assignment;
 import cn.ipman.mq.metadata.model.Message;
 import cn.ipman.mq.metadata.model.Statistical;
+import lombok.Getter;
 
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static cn.ipman.mq.metadata.model.Constants.OFFSET_HEADER;
+import static cn.ipman.mq.metadata.model.Constants.PARTITION_HEADER;
+
 /**
  * 消息消费者接口。负责订阅特定主题的消息，并提供消息的接收与确认机制。
  * <p>
  * 通过与Broker交互，实现消息的订阅、取消订阅、接收消息以及消息消费确认。
  * 同时，支持注册监听器以异步方式处理接收到的消息。
+ * <p>
+ * 消费者属于一个消费者组，同组的消费者共享消费位点，主题的分区由服务端在组内成员之间分配，
+ * 多个进程以同一个消费者组订阅即可分摊消费。
  *
  * @param <T> 消息体的类型。
  * @Author IpMan
@@ -20,15 +30,38 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class MQConsumer<T> {
 
     /**
-     * 使用AtomicInteger来全局唯一标识消费者
+     * 没有指定消费者组时, 使用AtomicInteger生成消费者组, 每个消费者单独成组
      */
     static AtomicInteger CID = new AtomicInteger(0);
 
     /**
-     * 消费者唯一标识
+     * 当前进程的实例标识, 拼在消费者ID中, 区分不同进程里同一个消费者组的成员
+     */
+    static final String INSTANCE = UUID.randomUUID().toString().substring(0, 8);
+
+    /**
+     * 当前进程内消费者的序号
+     */
+    static AtomicInteger SEQ = new AtomicInteger(0);
+
+    /**
+     * 消费者组
+     */
+    @Getter
+    String group;
+
+    /**
+     * 消费者唯一标识, 由消费者组、实例标识和序号组成
      */
+    @Getter
     String id;
 
+    /**
+     * 最近一次订阅时服务端返回的分区分配
+     */
+    @Getter
+    volatile Assignment assignment;
+
     /**
      * 与之交互的Broker实例
      */
@@ -42,25 +75,35 @@ public class MQConsumer<T> {
      * @param broker 与消费者交互的Broker实例。
      */
     public MQConsumer(MQBroker broker) {
-        this.broker = broker;
-        this.id = "CID" + CID.getAndIncrement();
+        this(broker, "CID" + CID.getAndIncrement());
     }
 
 
     public MQConsumer(MQBroker broker, int customCid) {
+        this(broker, "CID" + customCid);
+    }
+
+    /**
+     * 以指定的消费者组构造消费者。
+     *
+     * @param broker 与消费者交互的Broker实例。
+     * @param group  消费者组, 同组的消费者分摊主题的分区。
+     */
+    public MQConsumer(MQBroker broker, String group) {
         this.broker = broker;
-        this.id = "CID" + customCid;
+        this.group = group;
+        this.id = group + "-" + INSTANCE + "-" + SEQ.getAndIncrement();
     }
 
     /**
      * 订阅指定主题的消息。
      * <p>
-     * 通过调用Broker的subscribe方法，使得消费者可以开始接收指定主题的消息。
+     * 通过调用Broker的subscribe方法加入消费者组，之后只会接收分配给自己的分区上的消息。
      *
      * @param topic 需要订阅的消息主题。
      */
     public void subscribe(String topic) {
-        broker.subscribe(topic, this.id);
+        this.assignment = broker.subscribe(topic, this.group, this.id);
     }
 
 
@@ -72,7 +115,7 @@ public class MQConsumer<T> {
      * @param topic 需要取消订阅的消息主题。
      */
     public void unSubscribe(String topic) {
-        broker.unSubscribe(topic, this.id);
+        broker.unSubscribe(topic, this.group, this.id);
     }
 
     /**
@@ -91,7 +134,37 @@ public class MQConsumer<T> {
     }
 
     /**
-     * 确认消息消费。
+     * 批量接收指定主题的消息。
+     * <p>
+     * 批量接收不会移动消费位置, 处理完成后对每个分区的最后一条消息调用ack即可确认整批消息。
+     *
+     * @param topic 指定的消息主题。
+     * @param size  最多接收的消息数量。
+     * @return 返回接收到的消息列表, 没有新消息时为空列表。
+     */
+    public List<Message<T>> batchReceive(String topic, int size) {
+        return broker.batchReceive(topic, this.id, size);
+    }
+
+    /**
+     * 从分区的指定位置之后长轮询批量接收消息。
+     * <p>
+     * 没有新消息时服务端会挂起请求, 有消息写入后立即返回, 等待超时则返回空列表。
+     * 消息并行处理时确认会落后于拉取, 通过offset指定拉取位置, 避免重复拉取已在处理中的消息。
+     *
+     * @param topic     指定的消息主题。
+     * @param partition 分区号。
+     * @param offset    已拉取到的最后一条消息的offset, 小于0时从已确认的位置开始。
+     * @param size      最多接收的消息数量。
+     * @param waitMs    没有新消息时最长等待的毫秒数。
+     * @return 返回接收到的消息列表, 等待超时仍没有新消息时为空列表。
+     */
+    public List<Message<T>> batchReceive(String topic, int partition, long offset, int size, long waitMs) {
+        return broker.batchReceive(topic, this.id, partition, offset, size, waitMs);
+    }
+
+    /**
+     * 确认分区0上的消息消费, 用于只有一个分区的主题。
      * <p>
      * 消费者通过调用此方法，确认已处理特定偏移量的消息，以便Broker可以安全地删除这些消息。
      *
@@ -99,23 +172,36 @@ public class MQConsumer<T> {
      * @param offset 已处理消息的偏移量。
      * @return 返回确认操作是否成功的布尔值。
      */
-    public boolean ack(String topic, int offset) {
-        return broker.ack(topic, this.id, offset);
+    public boolean ack(String topic, long offset) {
+        return ack(topic, 0, offset);
+    }
+
+    /**
+     * 确认分区上的消息消费, 确认后该分区上这条消息及之前的消息都不会再被投递。
+     *
+     * @param topic     消息所属的主题。
+     * @param partition 分区号。
+     * @param offset    已处理消息在分区内的偏移量。
+     * @return 返回确认操作是否成功的布尔值。
+     */
+    public boolean ack(String topic, int partition, long offset) {
+        return broker.ack(topic, this.id, partition, offset);
     }
 
     /**
      * 基于消息对象确认消费。
      * <p>
-     * 通过消息头中的偏移量字段，确认已处理特定消息，实现消息消费的确认。
+     * 通过消息头中的分区和偏移量字段，确认已处理特定消息，实现消息消费的确认。
      *
      * @param topic  消息所属的主题。
      * @param message 已处理的消息对象。
      * @return 返回确认操作是否成功的布尔值。
      */
     public boolean ack(String topic, Message<?> message) {
-        // 从header里获取offset, 实际是在send时存到了Entry里
-        int offset = Integer.parseInt(message.getHeaders().get("X-offset"));
-        return ack(topic, offset);
+        // 从header里获取分区和offset, 由服务端读取消息时回填
+        long offset = Long.parseLong(message.getHeaders().get(OFFSET_HEADER));
+        int partition = Integer.parseInt(message.getHeaders().getOrDefault(PARTITION_HEADER, "0"));
+        return ack(topic, partition, offset);
     }
 
     /**
@@ -123,6 +209,34 @@ public class MQConsumer<T> {
      */
     public MQListener<?> listener;
 
+    /**
+     * 消息的分发模式, 默认不保序。
+     */
+    DispatchMode dispatchMode = DispatchMode.UNORDERED;
+
+    /**
+     * 处理消息的并行度, 默认为1, 即按拉取顺序串行处理。
+     */
+    int concurrency = 1;
+
+    /**
+     * 按键保序时使用的消息头。
+     */
+    String keyHeader = MQDispatcher.DEFAULT_KEY_HEADER;
+
+    /**
+     * 设置监听器处理消息的分发方式, 需要在注册监听器之前调用。
+     *
+     * @param mode        分发模式。
+     * @param concurrency 并行度, 不保序模式下为线程数, 按键保序模式下为处理通道数。
+     * @param keyHeader   按键保序时使用的消息头。
+     */
+    public void dispatch(DispatchMode mode, int concurrency, String keyHeader) {
+        this.dispatchMode = mode;
+        this.concurrency = concurrency;
+        this.keyHeader = keyHeader;
+    }
+
     /**
      * 注册消息监听器。
      * <p>
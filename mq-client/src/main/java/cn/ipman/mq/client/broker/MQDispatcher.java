@@ -0,0 +1,274 @@
+package cn.ipman.mq.client.broker;
+
+import cn.ipman.mq.metadata.model.Message;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cn.ipman.mq.metadata.model.Constants.KEY_HEADER;
+import static cn.ipman.mq.metadata.model.Constants.OFFSET_HEADER;
+import static cn.ipman.mq.metadata.model.Constants.PARTITION_HEADER;
+
+/**
+ * 消费者的消息分发器, 每个消费者一个, 把拉取到的消息交给独立的线程池并行处理。
+ * <p>
+ * 不保序模式下所有消息提交到同一个线程池; 按键保序模式下每个处理通道是一个单线程池,
+ * 消息按键消息头的哈希选择通道, 同一个键的消息按拉取顺序串行处理。
+ * <p>
+ * 消息处理完成的顺序与offset顺序不一致, 确认位置只在offset连续的已完成消息上前进,
+ * 前面还有未完成的消息时不会确认后面的消息, 保证重启后不会丢失未处理的消息。
+ * offset是分区内的位置, 每个分区分别跟踪和确认。
+ * 同时在处理中的消息数量有上限, 达到上限时拉取线程阻塞, 不再继续拉取。
+ * 多个分区的拉取线程共享上限时, 上限按拉取线程数量扩大, 挂起在长轮询上的空闲分区不会占满上限。
+ *
+ * @Author IpMan
+ * @Date 2026/10/17 23:40
+ */
+public class MQDispatcher {
+
+    /**
+     * 默认的消息键消息头。
+     */
+    public static final String DEFAULT_KEY_HEADER = KEY_HEADER;
+
+    /**
+     * 监听器处理失败时的最大重试次数。
+     */
+    private static final int MAX_RETRIES = 3;
+
+    private final MQListener<?> listener;
+    private final DispatchMode mode;
+    private final String keyHeader;
+    private final AckCallback ack;
+    private final ExecutorService[] lanes;
+    private final Permits inFlight;
+
+    /**
+     * 构造时指定的在途消息上限。
+     */
+    private final int baseInFlight;
+
+    /**
+     * 当前的在途消息上限, 不小于 baseInFlight。由this保护。
+     */
+    private int maxInFlight;
+
+    /**
+     * 每个分区已分发但还没有确认的消息, offset为键, 值表示是否已处理完成。由自身保护。
+     */
+    private final Map<Integer, TreeMap<Long, Boolean>> pending = new HashMap<>();
+
+    /**
+     * 确认回调。
+     */
+    @FunctionalInterface
+    public interface AckCallback {
+
+        /**
+         * 分区上连续处理完成的消息前进时回调。回调在分发器的锁内调用, 不能阻塞。
+         *
+         * @param partition 分区号。
+         * @param offset    该分区连续处理完成的最后一条消息的offset。
+         */
+        void ack(int partition, long offset);
+    }
+
+    /**
+     * 构造分发器。
+     *
+     * @param name        分发器名称, 用于命名处理线程。
+     * @param listener    消息监听器。
+     * @param mode        分发模式。
+     * @param concurrency 并行度, 不保序模式下为线程数, 按键保序模式下为处理通道数。
+     * @param keyHeader   按键保序时使用的消息头。
+     * @param maxInFlight 同时在处理中的最大消息数量。
+     * @param ack         确认回调, 参数为分区和该分区连续处理完成的最后一条消息的offset。
+     */
+    public MQDispatcher(String name, MQListener<?> listener, DispatchMode mode, int concurrency,
+                        String keyHeader, int maxInFlight, AckCallback ack) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+        }
+        this.listener = listener;
+        this.mode = mode;
+        this.keyHeader = keyHeader;
+        this.ack = ack;
+        this.inFlight = new Permits(maxInFlight);
+        this.baseInFlight = maxInFlight;
+        this.maxInFlight = maxInFlight;
+        ThreadFactory threadFactory = threadFactory(name);
+        if (mode == DispatchMode.ORDERED_BY_KEY) {
+            this.lanes = new ExecutorService[concurrency];
+            for (int i = 0; i < concurrency; i++) {
+                this.lanes[i] = Executors.newSingleThreadExecutor(threadFactory);
+            }
+        } else {
+            this.lanes = new ExecutorService[]{Executors.newFixedThreadPool(concurrency, threadFactory)};
+        }
+    }
+
+    /**
+     * 申请处理容量, 在途消息达到上限时阻塞, 直到有消息处理完成。
+     *
+     * @param permits 申请的消息数量, 即下一次最多拉取的数量。
+     * @throws InterruptedException 等待时被中断。
+     */
+    public void acquire(int permits) throws InterruptedException {
+        inFlight.acquire(permits);
+    }
+
+    /**
+     * 调整在途消息上限, 保证至少为 minInFlight, 不会低于构造时指定的上限。
+     * 每个分区的拉取线程在长轮询期间持有一批容量, 分区数量变化时按拉取线程数量调整,
+     * 否则空闲分区挂起时占用的容量会让其他分区的拉取线程一直阻塞。
+     * 缩小时正在使用的容量不受影响, 处理完成后不再归还到可用容量中。
+     *
+     * @param minInFlight 需要的最小在途消息数量。
+     */
+    public synchronized void ensureCapacity(int minInFlight) {
+        int target = Math.max(baseInFlight, minInFlight);
+        if (target > maxInFlight) {
+            inFlight.release(target - maxInFlight);
+        } else if (target < maxInFlight) {
+            inFlight.reduce(maxInFlight - target);
+        }
+        maxInFlight = target;
+    }
+
+    /**
+     * 归还没有用到的处理容量。
+     *
+     * @param permits 归还的消息数量。
+     */
+    public void release(int permits) {
+        if (permits > 0) {
+            inFlight.release(permits);
+        }
+    }
+
+    /**
+     * 分发一条消息, 同一个分区的消息必须按offset递增的顺序分发, 并且已经申请过处理容量。
+     *
+     * @param message 待处理的消息, X-offset 消息头为消息的offset, X-partition 消息头为分区号(缺省为0)。
+     */
+    public void dispatch(Message<?> message) {
+        long offset = Long.parseLong(message.getHeaders().get(OFFSET_HEADER));
+        int partition = Integer.parseInt(message.getHeaders().getOrDefault(PARTITION_HEADER, "0"));
+        synchronized (pending) {
+            pending.computeIfAbsent(partition, p -> new TreeMap<>()).put(offset, Boolean.FALSE);
+        }
+        lane(message, offset).execute(() -> {
+            handle(message);
+            complete(partition, offset);
+        });
+    }
+
+    /**
+     * 停止处理线程, 已经提交的消息仍会处理完成。
+     */
+    public void shutdown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * 等待已提交的消息全部处理完成。
+     *
+     * @param timeout 超时时间。
+     * @param unit    超时时间单位。
+     * @return 全部完成返回true, 超时返回false。
+     * @throws InterruptedException 等待时被中断。
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ExecutorService lane : lanes) {
+            if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 选择消息的处理通道。按键保序时同一个键总是落在同一个通道, 没有键的消息按offset分散。
+     */
+    private ExecutorService lane(Message<?> message, long offset) {
+        if (lanes.length == 1) {
+            return lanes[0];
+        }
+        String key = message.getHeaders() == null ? null : message.getHeaders().get(keyHeader);
+        int hash = key == null ? Long.hashCode(offset) : key.hashCode();
+        return lanes[Math.floorMod(hash, lanes.length)];
+    }
+
+    /**
+     * 调用监听器处理消息, 失败时重试, 超过重试次数后跳过该消息。
+     */
+    private void handle(Message<?> message) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                listener.onMessage(message);
+                return;
+            } catch (Exception e) {
+                if (attempt > MAX_RETRIES) {
+                    System.out.println(" ===>> dispatch: skip message after " + MAX_RETRIES
+                            + " retries, mode = " + mode + ", message = " + message);
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 标记消息处理完成, 分区的确认位置越过连续完成的消息时回调确认。
+     * 回调在锁内调用, 同一个分区确认的offset严格递增, 不会被并发完成的处理线程打乱顺序。
+     */
+    private void complete(int partition, long offset) {
+        synchronized (pending) {
+            long acked = -1;
+            TreeMap<Long, Boolean> offsets = pending.get(partition);
+            offsets.put(offset, Boolean.TRUE);
+            Map.Entry<Long, Boolean> first;
+            while ((first = offsets.firstEntry()) != null && first.getValue()) {
+                acked = first.getKey();
+                offsets.pollFirstEntry();
+            }
+            if (acked >= 0) {
+                ack.ack(partition, acked);
+            }
+        }
+        inFlight.release();
+    }
+
+    /**
+     * 可以减少许可数量的信号量。
+     */
+    private static final class Permits extends Semaphore {
+
+        Permits(int permits) {
+            super(permits);
+        }
+
+        void reduce(int permits) {
+            reducePermits(permits);
+        }
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger index = new AtomicInteger(0);
+        return runnable -> {
+            Thread thread = new Thread(runnable, "mq-dispatch-" + name + "-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
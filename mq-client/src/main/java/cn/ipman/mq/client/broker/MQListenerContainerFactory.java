@@ -24,15 +24,17 @@ public class MQListenerContainerFactory {
     }
 
     /**
-     * 注册MQ监听器，为指定的主题创建消费者并订阅消息。
+     * 注册MQ监听器，为指定的主题创建消费者并以端点的消费者组订阅消息。
      *
      * @param endpoint MQ监听器端点，包含监听器的配置信息，如主题、处理方法和绑定的Bean。
      */
     public void registryListener(MQListenerEndpoint endpoint) {
         Arrays.stream(endpoint.getTopic()).forEach(topic -> {
             // created and subscribe
-            MQConsumer<?> consumer = broker.createConsumer(topic);
+            MQConsumer<?> consumer = endpoint.getGroup() == null
+                    ? broker.createConsumer(topic) : broker.createConsumer(topic, endpoint.getGroup());
             endpoint.getConsumerMap().putIfAbsent(topic, consumer);
+            consumer.dispatch(endpoint.getMode(), endpoint.getConcurrency(), endpoint.getKey());
             // 添加订阅者
             consumer.addListen(topic, message -> {
                 try {
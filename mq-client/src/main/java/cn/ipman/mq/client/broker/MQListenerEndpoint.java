@@ -30,6 +30,26 @@ public class MQListenerEndpoint {
      */
     private String[] topic;
 
+    /**
+     * 消费者组。
+     */
+    private String group;
+
+    /**
+     * 消息的分发模式。
+     */
+    private DispatchMode mode = DispatchMode.UNORDERED;
+
+    /**
+     * 处理消息的并行度。
+     */
+    private int concurrency = 1;
+
+    /**
+     * 按键保序时使用的消息头。
+     */
+    private String key = MQDispatcher.DEFAULT_KEY_HEADER;
+
     /**
      * MQ消费者映射，用于存储不同类型的MQ消费者。
      * Key为消费者标识，Value为具体的MQ消费者对象。
@@ -63,6 +63,11 @@ public class MQListenerProcessor implements BeanPostProcessor, ApplicationContex
             endpoint.setBean(bean);
             endpoint.setMethod(method);
             endpoint.setTopic(listener.topic());
+            endpoint.setGroup(listener.group().isEmpty()
+                    ? targetClass.getName() + "." + method.getName() : listener.group());
+            endpoint.setMode(listener.mode());
+            endpoint.setConcurrency(listener.concurrency());
+            endpoint.setKey(listener.key());
 
             MQListenerContainerFactory factory = applicationContext.getBean(MQListenerContainerFactory.class);
             factory.registryListener(endpoint);
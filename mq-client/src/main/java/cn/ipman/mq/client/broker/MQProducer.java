@@ -3,6 +3,8 @@ package cn.ipman.mq.client.broker;
 
 import cn.ipman.mq.metadata.model.Message;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * 消息队列生产者类。
  * 该类负责生产消息并发送到指定的主题中。
@@ -38,4 +40,23 @@ public class MQProducer {
     public boolean send(String topic, Message<?> message) {
         return broker.send(topic, message);
     }
+
+    /**
+     * 异步发送消息到指定的主题。
+     * 消息按主题攒成批次, 批次写满或等待超过linger时间后一次请求发送, 调用线程不等待响应。
+     *
+     * @param topic   消息的主题，指定消息的目的地。
+     * @param message 待发送的消息对象。
+     * @return 消息写入后完成的future, 结果为消息的偏移量。
+     */
+    public CompletableFuture<Long> sendAsync(String topic, Message<?> message) {
+        return broker.sendAsync(topic, message);
+    }
+
+    /**
+     * 立即发送所有还在攒批的异步消息。
+     */
+    public void flush() {
+        broker.flush();
+    }
 }
@@ -0,0 +1,256 @@
+package cn.ipman.mq.client.broker;
+
+import cn.ipman.mq.client.client.ClientService;
+import cn.ipman.mq.metadata.model.Message;
+import cn.ipman.mq.metadata.protocol.NettyFrame;
+import com.alibaba.fastjson.JSON;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static cn.ipman.mq.metadata.model.Constants.MAX_FRAME_LENGTH;
+
+/**
+ * 生产者的消息累加器, 按主题和分区把异步发送的消息攒成批次, 一个批次只发送一次请求。
+ * <p>
+ * 消息在调用线程上序列化, 批次按UTF-8编码后的字节数计算, 达到 batchSize 时立即发送,
+ * 否则在第一条消息进入批次 lingerMs 毫秒后由后台线程发送。
+ * 批次不会超过服务端的最大帧长度: 放不下下一条消息时先发送当前批次, 单条消息超过上限时直接失败。
+ * 发送不阻塞任何线程, 响应返回后按顺序完成每条消息的future。
+ * <p>
+ * 后台线程在第一次攒批时才创建, 关闭后剩余的批次立即发送, 之后加入的消息直接失败。
+ *
+ * @Author IpMan
+ * @Date 2026/10/18 00:20
+ */
+public class MessageAccumulator {
+
+    /**
+     * 一个批次请求体的字节数上限, 最大帧长度扣除帧头和headers(主题、分区)留出的空间。
+     */
+    static final int MAX_BATCH_BYTES = MAX_FRAME_LENGTH - NettyFrame.HEADER_SIZE - 64 * 1024;
+
+    private final ClientService clientService;
+
+    /**
+     * 批次的字节数上限, 达到后立即发送。
+     */
+    private final int batchSize;
+
+    /**
+     * 批次的最长等待时间(ms)。
+     */
+    private final long lingerMs;
+
+    /**
+     * 每个主题分区正在累积的批次, 键为 主题#分区, 由this保护。
+     */
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    /**
+     * 发送到期批次的后台线程, 第一次攒批时创建, 由this保护。
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * 是否已经关闭, 由this保护。
+     */
+    private boolean closed;
+
+    /**
+     * 构造累加器。
+     *
+     * @param clientService 用于发送批次的客户端。
+     * @param batchSize     批次的字节数上限。
+     * @param lingerMs      批次的最长等待时间(ms)。
+     */
+    public MessageAccumulator(ClientService clientService, int batchSize, long lingerMs) {
+        this.clientService = clientService;
+        this.batchSize = batchSize;
+        this.lingerMs = lingerMs;
+    }
+
+    /**
+     * 把消息加入所属主题分区的批次。
+     *
+     * @param topic     主题。
+     * @param partition 分区号。
+     * @param message   消息。
+     * @return 消息写入后完成的future, 结果为消息在分区内的偏移量。
+     */
+    public CompletableFuture<Long> append(String topic, int partition, Message<?> message) {
+        String json = JSON.toJSONString(message);
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        // 请求体为 [m1,m2,...], 每条消息另占一个分隔符
+        int bytes = utf8Length(json) + 1;
+        if (bytes > MAX_BATCH_BYTES) {
+            future.completeExceptionally(new IllegalArgumentException("message too large: " + bytes
+                    + " bytes, max " + MAX_BATCH_BYTES));
+            return future;
+        }
+        String key = topic + "#" + partition;
+        List<Batch> ready = new ArrayList<>(2);
+        synchronized (this) {
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("message accumulator is closed"));
+                return future;
+            }
+            Batch batch = batches.get(key);
+            if (batch != null && batch.bytes + bytes > MAX_BATCH_BYTES) {
+                // 当前批次放不下这条消息, 先发送它, 消息进入新的批次
+                batches.remove(key);
+                ready.add(batch);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch(key, topic, partition);
+                batches.put(key, batch);
+                Batch expired = batch;
+                batch.linger = scheduler().schedule(() -> expire(expired), lingerMs, TimeUnit.MILLISECONDS);
+            }
+            batch.add(json, bytes, future);
+            if (batch.bytes >= batchSize) {
+                batches.remove(key);
+                ready.add(batch);
+            }
+        }
+        // 同一个分区的批次按加入的顺序发送
+        for (Batch full : ready) {
+            full.linger.cancel(false);
+            send(full);
+        }
+        return future;
+    }
+
+    /**
+     * 立即发送所有正在累积的批次。
+     */
+    public void flush() {
+        List<Batch> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(batches.values());
+            batches.clear();
+        }
+        for (Batch batch : pending) {
+            batch.linger.cancel(false);
+            send(batch);
+        }
+    }
+
+    /**
+     * 发送剩余的批次并停止后台线程, 之后加入的消息直接失败。
+     * 已经发出的批次在响应返回或请求超时后完成各自的future。重复调用没有影响。
+     */
+    public void close() {
+        ScheduledExecutorService stopped;
+        synchronized (this) {
+            closed = true;
+            stopped = scheduler;
+            scheduler = null;
+        }
+        flush();
+        if (stopped != null) {
+            stopped.shutdown();
+        }
+    }
+
+    private ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "mq-producer-linger");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * 批次到达最长等待时间, 如果还没有因为写满而发送, 则发送它。
+     */
+    private void expire(Batch batch) {
+        synchronized (this) {
+            if (batches.get(batch.key) != batch) {
+                return;
+            }
+            batches.remove(batch.key);
+        }
+        send(batch);
+    }
+
+    private void send(Batch batch) {
+        CompletableFuture<long[]> response;
+        try {
+            response = clientService.batchSend(batch.topic, batch.partition, batch.messages);
+        } catch (Exception e) {
+            // 请求没有发出, 不会再有响应, 立即让批次中的消息失败
+            batch.futures.forEach(future -> future.completeExceptionally(e));
+            return;
+        }
+        response.whenComplete((offsets, e) -> {
+            for (int i = 0; i < batch.futures.size(); i++) {
+                if (e != null) {
+                    batch.futures.get(i).completeExceptionally(e);
+                } else if (offsets == null || i >= offsets.length) {
+                    batch.futures.get(i).completeExceptionally(
+                            new IllegalStateException("missing offset for message " + i + " of batch"));
+                } else {
+                    batch.futures.get(i).complete(offsets[i]);
+                }
+            }
+        });
+    }
+
+    /**
+     * 字符串按UTF-8编码后的字节数, 不需要真正编码。
+     */
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 一个主题分区正在累积的批次。
+     */
+    private static class Batch {
+        final String key;
+        final String topic;
+        final int partition;
+        final List<String> messages = new ArrayList<>();
+        final List<CompletableFuture<Long>> futures = new ArrayList<>();
+        int bytes;
+        ScheduledFuture<?> linger;
+
+        Batch(String key, String topic, int partition) {
+            this.key = key;
+            this.topic = topic;
+            this.partition = partition;
+        }
+
+        void add(String json, int length, CompletableFuture<Long> future) {
+            messages.add(json);
+            futures.add(future);
+            bytes += length;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package cn.ipman.mq.client.broker;
+
+import cn.ipman.mq.client.client.ClientService;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消费者的位点提交器, 把分发器确认的位点攒批后异步提交, 不再每处理一条消息发送一次确认请求。
+ * <p>
+ * 每个分区只保留最新的位点, 累计 batchCount 次确认后立即提交, 否则每隔 intervalMs 毫秒提交一次。
+ * 一次请求提交所有分区, 提交失败时位点放回待提交, 下一次重试。
+ * 客户端崩溃时最多丢失一个周期内的确认, 这些消息会被重新投递。
+ *
+ * @Author IpMan
+ * @Date 2026/10/18 02:40
+ */
+public class OffsetCommitter {
+
+    /**
+     * 所有提交器共享的定时线程。
+     */
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mq-offset-committer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ClientService clientService;
+    private final String topic;
+    private final String consumerId;
+
+    /**
+     * 累计多少次确认后立即提交。
+     */
+    private final int batchCount;
+
+    /**
+     * 还没有提交的位点, 分区号为键, 由this保护。
+     */
+    private Map<Integer, Long> pending = new HashMap<>();
+
+    /**
+     * 上次提交以来的确认次数, 由this保护。
+     */
+    private int count;
+
+    private final ScheduledFuture<?> task;
+
+    /**
+     * 构造提交器并启动定时提交。
+     *
+     * @param clientService 客户端服务。
+     * @param topic         主题。
+     * @param consumerId    消费者ID。
+     * @param batchCount    累计多少次确认后立即提交。
+     * @param intervalMs    定时提交的间隔(ms)。
+     */
+    public OffsetCommitter(ClientService clientService, String topic, String consumerId,
+                           int batchCount, long intervalMs) {
+        this.clientService = clientService;
+        this.topic = topic;
+        this.consumerId = consumerId;
+        this.batchCount = batchCount;
+        this.task = SCHEDULER.scheduleWithFixedDelay(this::flush, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 记录分区上连续处理完成的位点, 可作为分发器的确认回调。
+     *
+     * @param partition 分区号。
+     * @param offset    分区上连续处理完成的最后一条消息的offset。
+     */
+    public void ack(int partition, long offset) {
+        boolean full;
+        synchronized (this) {
+            pending.merge(partition, offset, Math::max);
+            full = ++count >= batchCount;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * 异步提交所有待提交的位点。
+     *
+     * @return 提交完成后完成的future, 没有待提交的位点时立即完成。
+     */
+    public CompletableFuture<Void> flush() {
+        Map<Integer, Long> offsets;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            offsets = pending;
+            pending = new HashMap<>();
+            count = 0;
+        }
+        return clientService.commit(topic, consumerId, offsets).handle((committed, e) -> {
+            if (e != null) {
+                System.out.println(" ===>> commit failed, topic/cid = " + topic + "/" + consumerId
+                        + ", offsets = " + offsets + ", " + e.getMessage());
+                synchronized (this) {
+                    offsets.forEach((partition, offset) -> pending.merge(partition, offset, Math::max));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 停止定时提交, 并提交剩余的位点。
+     *
+     * @return 提交完成后完成的future。
+     */
+    public CompletableFuture<Void> close() {
+        task.cancel(false);
+        return flush();
+    }
+}
@@ -1,9 +1,14 @@
 package cn.ipman.mq.client.client;
 
 
+import cn.ipman.mq.metadata.model.Assignment;
 import cn.ipman.mq.metadata.model.Message;
 import cn.ipman.mq.metadata.model.Statistical;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Description for this class
  *
@@ -13,25 +18,73 @@ import cn.ipman.mq.metadata.model.Statistical;
 public interface ClientService {
 
     /**
-     * 发送消息到指定主题。
+     * 发送消息到指定主题的分区。
      *
-     * @param topic   消息主题。
-     * @param message 消息对象。
+     * @param topic     消息主题。
+     * @param partition 分区号, 小于0时由服务端按消息键或轮询选择分区。
+     * @param message   消息对象。
      * @return 发送是否成功。
      */
-    Boolean send(String topic, Message<?> message);
+    Boolean send(String topic, int partition, Message<?> message);
+
+    /**
+     * 异步批量发送消息到指定主题的分区, 一次请求发送整批消息。
+     *
+     * @param topic     消息主题。
+     * @param partition 分区号, 整批消息写入同一个分区。
+     * @param messages  已序列化为JSON的消息, 按顺序写入。
+     * @return 整批写入后完成的future, 结果为每条消息在分区内的偏移量。
+     */
+    CompletableFuture<long[]> batchSend(String topic, int partition, List<String> messages);
+
+    /**
+     * 查询主题的分区数量。
+     *
+     * @param topic 消息主题。
+     * @return 分区数量。
+     */
+    int partitions(String topic);
+
+    /**
+     * 创建主题。
+     *
+     * @param topic      主题名, 只能包含字母、数字和 . _ -。
+     * @param partitions 分区数量, 小于1时使用服务端的主题配置。
+     * @return 新建了主题返回true, 主题已经存在时返回false。
+     */
+    boolean createTopic(String topic, int partitions);
+
+    /**
+     * 删除主题及其所有消息和消费位点。
+     *
+     * @param topic 主题名。
+     * @return 主题存在并被删除返回true。
+     */
+    boolean deleteTopic(String topic);
+
 
+    /**
+     * 订阅指定主题, 加入消费者组。
+     *
+     * @param topic      主题。
+     * @param group      消费者组。
+     * @param consumerId 消费者ID, 在消费者组内唯一。
+     * @return 消费者的分区分配, 请求失败时为null。
+     */
+    Assignment subscribe(String topic, String group, String consumerId);
 
     /**
-     * 订阅指定主题。
+     * 消费者组成员的心跳, 服务端据此判断成员是否存活, 并返回最新的分区分配。
      *
      * @param topic      主题。
+     * @param group      消费者组。
      * @param consumerId 消费者ID。
+     * @return 消费者最新的分区分配, 请求失败时为null。
      */
-    void subscribe(String topic, String consumerId);
+    Assignment heartbeat(String topic, String group, String consumerId);
 
     /**
-     * 接收指定主题的消息。
+     * 接收指定主题的消息, 服务端依次从各分区已确认的位置之后查找。
      *
      * @param topic      主题。
      * @param consumerId 消费者ID。
@@ -40,22 +93,57 @@ public interface ClientService {
     <T> Message<T> receive(String topic, String consumerId);
 
     /**
-     * 取消订阅指定主题。
+     * 批量接收指定主题的消息, 不移动消费位置, 处理完后按分区ack每个分区的最后一条消息即可。
+     *
+     * @param topic      主题。
+     * @param consumerId 消费者ID。
+     * @param size       最多接收的消息数量。
+     * @return 消息列表, 没有新消息时为空列表。
+     */
+    <T> List<Message<T>> batchReceive(String topic, String consumerId, int size);
+
+    /**
+     * 从分区的指定位置之后长轮询批量接收消息, 没有新消息时由服务端挂起请求, 直到有消息写入或等待超时。
+     *
+     * @param topic      主题。
+     * @param consumerId 消费者ID。
+     * @param partition  分区号。
+     * @param offset     已拉取到的最后一条消息的offset, 小于0时从已确认的位置开始。
+     * @param size       最多接收的消息数量。
+     * @param waitMs     没有新消息时最长等待的毫秒数, 0表示立即返回。
+     * @return 消息列表, 等待超时仍没有新消息时为空列表。
+     */
+    <T> List<Message<T>> batchReceive(String topic, String consumerId, int partition, long offset, int size, long waitMs);
+
+    /**
+     * 取消订阅指定主题, 离开消费者组。
      *
      * @param topic      主题。
+     * @param group      消费者组。
      * @param consumerId 消费者ID。
      */
-    void unSubscribe(String topic, String consumerId);
+    void unSubscribe(String topic, String group, String consumerId);
 
     /**
-     * 确认消息消费。
+     * 确认分区上的消息消费。
      *
      * @param topic      主题。
      * @param consumerId 消费者ID。
-     * @param offset     消息偏移量。
+     * @param partition  分区号。
+     * @param offset     消息在分区内的偏移量。
      * @return 确认是否成功。
      */
-    Boolean ack(String topic, String consumerId, int offset);
+    Boolean ack(String topic, String consumerId, int partition, long offset);
+
+    /**
+     * 异步批量提交消费者组在多个分区上的位点, 一次请求提交所有分区。
+     *
+     * @param topic      主题。
+     * @param consumerId 消费者ID。
+     * @param offsets    分区号为键的位点。
+     * @return 提交完成后完成的future, 结果为位点前进了的分区数量。
+     */
+    CompletableFuture<Integer> commit(String topic, String consumerId, Map<Integer, Long> offsets);
 
     /**
      * 获取指定主题和消费者ID的统计信息。
@@ -2,6 +2,8 @@ package cn.ipman.mq.client.client.http;
 
 
 import cn.ipman.mq.client.client.ClientService;
+import cn.ipman.mq.metadata.model.Assignment;
+import cn.ipman.mq.metadata.model.BatchResult;
 import cn.ipman.mq.metadata.model.HttpResult;
 import cn.ipman.mq.metadata.model.Message;
 import cn.ipman.mq.metadata.model.Statistical;
@@ -9,6 +11,11 @@ import cn.ipman.mq.metadata.utils.HttpUtils;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.TypeReference;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Description for this class
  *
@@ -24,36 +31,135 @@ public class HttpClientImpl implements ClientService {
     }
 
     /**
-     * 发送消息到指定主题。
+     * 发送消息到指定主题的分区。
      *
-     * @param topic  消息主题。
-     * @param message 消息对象。
+     * @param topic     消息主题。
+     * @param partition 分区号, 小于0时由服务端选择分区。
+     * @param message   消息对象。
      * @return 发送是否成功。
      */
     @Override
-    public Boolean send(String topic, Message<?> message) {
-        System.out.println(" ==>> send topic/message: " + topic + "/" + message);
+    public Boolean send(String topic, int partition, Message<?> message) {
+        System.out.println(" ==>> send topic/partition/message: " + topic + "/" + partition + "/" + message);
         System.out.println(JSON.toJSONString(message));
         HttpResult<String> result = HttpUtils.httpPost(JSON.toJSONString(message),
-                brokerUrl + "/send?t=" + topic, new TypeReference<HttpResult<String>>() {
+                brokerUrl + "/send?t=" + topic + "&p=" + partition, new TypeReference<HttpResult<String>>() {
                 });
         System.out.println(" ==>> send result: " + result);
         return result.getCode() == 1;
     }
 
     /**
-     * 订阅指定主题。
+     * 批量发送消息到指定主题的分区。HTTP请求是同步的, 返回时整批已经写入。
      *
-     * @param topic     主题。
+     * @param topic     消息主题。
+     * @param partition 分区号。
+     * @param messages  已序列化为JSON的消息。
+     * @return 已完成的future, 结果为每条消息在分区内的偏移量。
+     */
+    @Override
+    public CompletableFuture<long[]> batchSend(String topic, int partition, List<String> messages) {
+        System.out.println(" ==>> batchSend topic/partition/size: " + topic + "/" + partition + "/" + messages.size());
+        try {
+            HttpResult<BatchResult> result = HttpUtils.httpPost("[" + String.join(",", messages) + "]",
+                    brokerUrl + "/batch-send?t=" + topic + "&p=" + partition, new TypeReference<HttpResult<BatchResult>>() {
+                    });
+            System.out.println(" ==>> batchSend result: " + result);
+            if (result == null || result.getCode() != 1) {
+                throw new IllegalStateException("batch send failed: " + result);
+            }
+            return CompletableFuture.completedFuture(result.getData().getOffsets());
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 查询主题的分区数量。
+     *
+     * @param topic 消息主题。
+     * @return 分区数量。
+     */
+    @Override
+    public int partitions(String topic) {
+        HttpResult<Integer> result = HttpUtils.httpGet(brokerUrl + "/partitions?t=" + topic,
+                new TypeReference<HttpResult<Integer>>() {
+                });
+        if (result == null || result.getCode() != 1) {
+            throw new IllegalStateException("query partitions failed: " + result);
+        }
+        return result.getData();
+    }
+
+    /**
+     * 创建主题。
+     *
+     * @param topic      主题名。
+     * @param partitions 分区数量, 小于1时使用服务端的主题配置。
+     * @return 新建了主题返回true, 主题已经存在时返回false。
+     */
+    @Override
+    public boolean createTopic(String topic, int partitions) {
+        HttpResult<Boolean> result = HttpUtils.httpGet(brokerUrl + "/create-topic?t=" + topic + "&p=" + partitions,
+                new TypeReference<HttpResult<Boolean>>() {
+                });
+        if (result == null || result.getCode() != 1) {
+            throw new IllegalStateException("create topic failed: " + result);
+        }
+        return Boolean.TRUE.equals(result.getData());
+    }
+
+    /**
+     * 删除主题。
+     *
+     * @param topic 主题名。
+     * @return 主题存在并被删除返回true。
+     */
+    @Override
+    public boolean deleteTopic(String topic) {
+        HttpResult<Boolean> result = HttpUtils.httpGet(brokerUrl + "/delete-topic?t=" + topic,
+                new TypeReference<HttpResult<Boolean>>() {
+                });
+        if (result == null || result.getCode() != 1) {
+            throw new IllegalStateException("delete topic failed: " + result);
+        }
+        return Boolean.TRUE.equals(result.getData());
+    }
+
+    /**
+     * 订阅指定主题, 加入消费者组。
+     *
+     * @param topic      主题。
+     * @param group      消费者组。
      * @param consumerId 消费者ID。
+     * @return 消费者的分区分配, 请求失败时为null。
      */
     @Override
-    public void subscribe(String topic, String consumerId) {
-        System.out.println(" ==>> subscribe topic/consumerID: " + topic + "/" + consumerId);
-        HttpResult<String> result = HttpUtils.httpGet(brokerUrl + "/sub?t=" + topic + "&cid=" + consumerId,
-                new TypeReference<HttpResult<String>>() {
+    public Assignment subscribe(String topic, String group, String consumerId) {
+        System.out.println(" ==>> subscribe topic/group/consumerID: " + topic + "/" + group + "/" + consumerId);
+        HttpResult<Assignment> result = HttpUtils.httpGet(
+                brokerUrl + "/sub?t=" + topic + "&g=" + group + "&cid=" + consumerId,
+                new TypeReference<HttpResult<Assignment>>() {
                 });
         System.out.println(" ==>> subscribe result: " + result);
+        return result == null || result.getCode() != 1 ? null : result.getData();
+    }
+
+    /**
+     * 消费者组成员的心跳。
+     *
+     * @param topic      主题。
+     * @param group      消费者组。
+     * @param consumerId 消费者ID。
+     * @return 消费者最新的分区分配, 请求失败时为null。
+     */
+    @Override
+    public Assignment heartbeat(String topic, String group, String consumerId) {
+        HttpResult<Assignment> result = HttpUtils.httpGet(
+                brokerUrl + "/heartbeat?t=" + topic + "&g=" + group + "&cid=" + consumerId,
+                new TypeReference<HttpResult<Assignment>>() {
+                });
+        return result == null || result.getCode() != 1 ? null : result.getData();
     }
 
     /**
@@ -74,16 +180,63 @@ public class HttpClientImpl implements ClientService {
         return (Message<T>) result.getData();
     }
 
+    /**
+     * 批量接收指定主题的消息。
+     *
+     * @param topic      主题。
+     * @param consumerId 消费者ID。
+     * @param size       最多接收的消息数量。
+     * @return 消息列表。
+     */
+    @Override
+    public <T> List<Message<T>> batchReceive(String topic, String consumerId, int size) {
+        System.out.println(" ==>> batchReceive topic/cid/size: " + topic + "/" + consumerId + "/" + size);
+        return receiveBatch(brokerUrl + "/batch-receive?t=" + topic + "&cid=" + consumerId + "&size=" + size);
+    }
+
+    /**
+     * 从分区的指定位置之后批量接收消息。
+     * HTTP接口不支持挂起请求, 忽略等待时间立即返回, 由调用方在没有消息时自行退避。
+     *
+     * @param topic      主题。
+     * @param consumerId 消费者ID。
+     * @param partition  分区号。
+     * @param offset     已拉取到的最后一条消息的offset, 小于0时从已确认的位置开始。
+     * @param size       最多接收的消息数量。
+     * @param waitMs     最长等待的毫秒数, HTTP接口下不生效。
+     * @return 消息列表。
+     */
+    @Override
+    public <T> List<Message<T>> batchReceive(String topic, String consumerId, int partition, long offset,
+                                             int size, long waitMs) {
+        System.out.println(" ==>> batchReceive topic/cid/partition/offset/size: "
+                + topic + "/" + consumerId + "/" + partition + "/" + offset + "/" + size);
+        return receiveBatch(brokerUrl + "/batch-receive?t=" + topic + "&cid=" + consumerId
+                + "&p=" + partition + "&offset=" + offset + "&size=" + size);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<Message<T>> receiveBatch(String url) {
+        HttpResult<List<Message<String>>> result = HttpUtils.httpGet(url,
+                new TypeReference<HttpResult<List<Message<String>>>>() {
+                });
+        System.out.println(" ==>> batchReceive result: " + result);
+        List<Message<String>> messages = result.getData();
+        return messages == null ? new ArrayList<>() : (List<Message<T>>) (List<?>) messages;
+    }
+
     /**
      * 取消订阅指定主题。
      *
      * @param topic     主题。
+     * @param group      消费者组。
      * @param consumerId 消费者ID。
      */
     @Override
-    public void unSubscribe(String topic, String consumerId) {
-        System.out.println(" ==>> unSubscribe topic/cid: " + topic + "/" + consumerId);
-        HttpResult<String> result = HttpUtils.httpGet(brokerUrl + "/unsub?t=" + topic + "&cid=" + consumerId,
+    public void unSubscribe(String topic, String group, String consumerId) {
+        System.out.println(" ==>> unSubscribe topic/group/cid: " + topic + "/" + group + "/" + consumerId);
+        HttpResult<String> result = HttpUtils.httpGet(
+                brokerUrl + "/unsub?t=" + topic + "&g=" + group + "&cid=" + consumerId,
                 new TypeReference<HttpResult<String>>() {
                 });
         System.out.println(" ==>> unSubscribe result: " + result);
@@ -92,16 +245,18 @@ public class HttpClientImpl implements ClientService {
     /**
      * 确认消息消费。
      *
-     * @param topic     主题。
+     * @param topic      主题。
      * @param consumerId 消费者ID。
-     * @param offset    消息偏移量。
+     * @param partition  分区号。
+     * @param offset     消息在分区内的偏移量。
      * @return 确认是否成功。
      */
     @Override
-    public Boolean ack(String topic, String consumerId, int offset) {
-        System.out.println(" ==>> ack topic/cid/offset: " + topic + "/" + consumerId + "/" + offset);
+    public Boolean ack(String topic, String consumerId, int partition, long offset) {
+        System.out.println(" ==>> ack topic/cid/partition/offset: " + topic + "/" + consumerId
+                + "/" + partition + "/" + offset);
         HttpResult<String> result = HttpUtils.httpGet(
-                brokerUrl + "/ack?t=" + topic + "&cid=" + consumerId + "&offset=" + offset,
+                brokerUrl + "/ack?t=" + topic + "&cid=" + consumerId + "&p=" + partition + "&offset=" + offset,
                 new TypeReference<HttpResult<String>>() {
                 });
         System.out.println(" ==>> ack result: " + result);
@@ -109,6 +264,30 @@ public class HttpClientImpl implements ClientService {
     }
 
 
+    /**
+     * 批量提交消费位点。HTTP请求是同步的, 返回时已经提交完成。
+     *
+     * @param topic      主题。
+     * @param consumerId 消费者ID。
+     * @param offsets    分区号为键的位点。
+     * @return 已完成的future, 结果为位点前进了的分区数量。
+     */
+    @Override
+    public CompletableFuture<Integer> commit(String topic, String consumerId, Map<Integer, Long> offsets) {
+        System.out.println(" ==>> commit topic/cid/offsets: " + topic + "/" + consumerId + "/" + offsets);
+        try {
+            HttpResult<Integer> result = HttpUtils.httpPost(JSON.toJSONString(offsets),
+                    brokerUrl + "/commit?t=" + topic + "&cid=" + consumerId, new TypeReference<HttpResult<Integer>>() {
+                    });
+            if (result == null || result.getCode() != 1) {
+                throw new IllegalStateException("commit failed: " + result);
+            }
+            return CompletableFuture.completedFuture(result.getData());
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     /**
      * 获取指定主题和消费者ID的统计信息。
      *
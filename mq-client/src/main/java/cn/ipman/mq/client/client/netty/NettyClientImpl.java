@@ -2,18 +2,30 @@ package cn.ipman.mq.client.client.netty;
 
 
 import cn.ipman.mq.client.client.ClientService;
+import cn.ipman.mq.metadata.model.Assignment;
+import cn.ipman.mq.metadata.model.BatchResult;
 import cn.ipman.mq.metadata.model.Message;
 import cn.ipman.mq.metadata.model.NettyResponse;
 import cn.ipman.mq.metadata.model.Statistical;
+import cn.ipman.mq.metadata.protocol.NettyFrame;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.TypeReference;
+import io.netty.buffer.ByteBuf;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
 
+import static cn.ipman.mq.metadata.model.Constants.OFFSET_HEADER;
+import static cn.ipman.mq.metadata.model.Constants.PARTITION_HEADER;
+
 /**
  * Netty客户端实现类，作为MQ客户端的具体实现，负责与Netty服务端进行通信。
+ * 所有调用线程共享一组连接, 请求在连接上多路复用, 不再为每个请求独占一个连接。
  *
  * @Author IpMan
  * @Date 2024/6/29 20:07
@@ -31,64 +43,64 @@ public class NettyClientImpl implements ClientService {
     int port;
 
     /**
-     * 客户端连接池，管理NettyMQClient的连接。
+     * 单个请求的超时时间(ms)。
+     */
+    long requestTimeout;
+
+    /**
+     * 共享的客户端连接组。
      */
-    NettyMQClientPool clientPool;
+    NettyMQClientGroup clientGroup;
 
     /**
      * 构造函数，初始化Netty客户端实例。
      *
-     * @param host     服务端主机地址。
-     * @param port     服务端端口号。
-     * @param maxTotal 连接池最大总数。
-     * @param maxIdle  连接池最大空闲数。
-     * @param minIdle  连接池最小空闲数。
+     * @param host           服务端主机地址。
+     * @param port           服务端端口号。
+     * @param connections    共享的连接数量。
+     * @param maxInFlight    每个连接上同时在途的最大请求数。
+     * @param requestTimeout 单个请求的超时时间(ms)。
      */
-    public NettyClientImpl(String host, int port, int maxTotal, int maxIdle, int minIdle) {
+    public NettyClientImpl(String host, int port, int connections, int maxInFlight, long requestTimeout) {
         this.host = host;
         this.port = port;
-        this.clientPool = new NettyMQClientPool(host, port, maxTotal, maxIdle, minIdle);
+        this.requestTimeout = requestTimeout;
+        this.clientGroup = new NettyMQClientGroup(host, port, connections, maxInFlight, requestTimeout);
     }
 
     /**
-     * 使用客户端连接池中的客户端执行给定的操作。
+     * 选择一个共享连接执行给定的操作, 连接不被独占, 其他线程可以同时在上面发送请求。
      *
      * @param function 定义如何使用客户端执行特定操作的函数式接口。
      * @param <T>      操作的返回类型。
      * @return 操作的执行结果。
      */
     private <T> T executeWithClient(Function<NettyMQClient, T> function) {
-        NettyMQClient client = null;
         try {
-            client = clientPool.borrowClient();
-            return function.apply(client);
+            return function.apply(clientGroup.next());
         } catch (Exception e) {
             e.printStackTrace();
             return null;
-        } finally {
-            if (client != null) {
-                clientPool.returnClient(client);
-            }
         }
     }
 
 
     /**
-     * 发送消息到指定主题。
+     * 发送消息到指定主题的分区。
      *
-     * @param topic    消息主题。
-     * @param message  待发送的消息。
+     * @param topic     消息主题。
+     * @param partition 分区号, 小于0时由服务端选择分区。
+     * @param message   待发送的消息。
      * @return 发送是否成功的布尔值。
      */
     @Override
-    public Boolean send(String topic, Message<?> message) {
+    public Boolean send(String topic, int partition, Message<?> message) {
         return executeWithClient(client -> {
             try {
-                Map<String, String> params = Map.of("t", topic);
-                CompletableFuture<String> future = client.sendMessage("send", params, message);
-                NettyResponse<String> response = JSON.parseObject(future.get(),
-                        new TypeReference<NettyResponse<String>>() {
-                        });
+                Map<String, String> params = partition < 0 ? Map.of("t", topic)
+                        : Map.of("t", topic, "p", String.valueOf(partition));
+                CompletableFuture<NettyFrame> future = client.sendMessage("send", params, message);
+                NettyResponse<String> response = future.get().toResponse(String.class);
                 System.out.println("【send】 Received response: " + response);
                 return response.getCode() == 1;
             } catch (Exception e) {
@@ -99,25 +111,137 @@ public class NettyClientImpl implements ClientService {
     }
 
     /**
-     * 订阅指定主题。
+     * 异步批量发送消息到指定主题的分区。
+     * 请求体是消息的JSON数组, 由已序列化的消息直接拼接而成; 调用线程不等待响应。
      *
-     * @param topic    消息主题。
+     * @param topic     消息主题。
+     * @param partition 分区号。
+     * @param messages  已序列化为JSON的消息。
+     * @return 整批写入后完成的future, 结果为每条消息在分区内的偏移量。
+     */
+    @Override
+    public CompletableFuture<long[]> batchSend(String topic, int partition, List<String> messages) {
+        try {
+            Map<String, String> params = Map.of("t", topic, "p", String.valueOf(partition));
+            String body = "[" + String.join(",", messages) + "]";
+            return clientGroup.next().sendMessage("batch-send", params, body).thenApply(frame -> {
+                NettyResponse<BatchResult> response = frame.toResponse(BatchResult.class);
+                if (response.getCode() != NettyFrame.CODE_OK) {
+                    throw new IllegalStateException("batch send failed: " + frame.data(String.class));
+                }
+                return response.getData().getOffsets();
+            });
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 查询主题的分区数量。
+     *
+     * @param topic 消息主题。
+     * @return 分区数量。
+     */
+    @Override
+    public int partitions(String topic) {
+        try {
+            NettyFrame frame = clientGroup.next().sendMessage("partitions", Map.of("t", topic), null).get();
+            NettyResponse<Integer> response = frame.toResponse(Integer.class);
+            if (response.getCode() != NettyFrame.CODE_OK) {
+                throw new IllegalStateException("query partitions failed: " + frame.data(String.class));
+            }
+            return response.getData();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("query partitions interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("query partitions failed", e.getCause());
+        }
+    }
+
+    /**
+     * 创建主题。
+     *
+     * @param topic      主题名。
+     * @param partitions 分区数量, 小于1时使用服务端的主题配置。
+     * @return 新建了主题返回true, 主题已经存在时返回false。
+     */
+    @Override
+    public boolean createTopic(String topic, int partitions) {
+        return topicRequest("create-topic", Map.of("t", topic, "p", String.valueOf(partitions)));
+    }
+
+    /**
+     * 删除主题。
+     *
+     * @param topic 主题名。
+     * @return 主题存在并被删除返回true。
+     */
+    @Override
+    public boolean deleteTopic(String topic) {
+        return topicRequest("delete-topic", Map.of("t", topic));
+    }
+
+    private boolean topicRequest(String action, Map<String, String> params) {
+        try {
+            NettyFrame frame = clientGroup.next().sendMessage(action, params, null).get();
+            NettyResponse<Boolean> response = frame.toResponse(Boolean.class);
+            if (response.getCode() != NettyFrame.CODE_OK) {
+                throw new IllegalStateException(action + " failed: " + frame.data(String.class));
+            }
+            return Boolean.TRUE.equals(response.getData());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(action + " interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(action + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * 订阅指定主题, 加入消费者组。
+     *
+     * @param topic      消息主题。
+     * @param group      消费者组。
      * @param consumerId 消费者ID。
+     * @return 消费者的分区分配, 请求失败时为null。
      */
     @Override
-    public void subscribe(String topic, String consumerId) {
-        executeWithClient(client -> {
+    public Assignment subscribe(String topic, String group, String consumerId) {
+        return executeWithClient(client -> {
             try {
-                Map<String, String> params = Map.of("t", topic, "cid", consumerId);
-                CompletableFuture<String> future = client.sendMessage("sub", params, null);
-                NettyResponse<String> response = JSON.parseObject(future.get(),
-                        new TypeReference<NettyResponse<String>>() {
-                        });
+                Map<String, String> params = Map.of("t", topic, "g", group, "cid", consumerId);
+                CompletableFuture<NettyFrame> future = client.sendMessage("sub", params, null);
+                NettyResponse<Assignment> response = future.get().toResponse(Assignment.class);
                 System.out.println("【sub】 Received response: " + response);
+                return response.getCode() == 1 ? response.getData() : null;
             } catch (Exception e) {
                 e.printStackTrace();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 消费者组成员的心跳。
+     *
+     * @param topic      消息主题。
+     * @param group      消费者组。
+     * @param consumerId 消费者ID。
+     * @return 消费者最新的分区分配, 请求失败时为null。
+     */
+    @Override
+    public Assignment heartbeat(String topic, String group, String consumerId) {
+        return executeWithClient(client -> {
+            try {
+                Map<String, String> params = Map.of("t", topic, "g", group, "cid", consumerId);
+                NettyResponse<Assignment> response = client.sendMessage("heartbeat", params, null).get()
+                        .toResponse(Assignment.class);
+                return response.getCode() == 1 ? response.getData() : null;
+            } catch (Exception e) {
+                System.out.println("【heartbeat】 failed: " + e.getMessage());
+                return null;
             }
-            return null;
         });
     }
 
@@ -135,10 +259,9 @@ public class NettyClientImpl implements ClientService {
         return executeWithClient(client -> {
             try {
                 Map<String, String> params = Map.of("t", topic, "cid", consumerId);
-                CompletableFuture<String> future = client.sendMessage("receive", params, null);
-                NettyResponse<Message<String>> response = JSON.parseObject(future.get(),
-                        new TypeReference<NettyResponse<Message<String>>>() {
-                        });
+                CompletableFuture<NettyFrame> future = client.sendMessage("receive", params, null);
+                NettyResponse<Message<String>> response = future.get().toResponse(new TypeReference<Message<String>>() {
+                }.getType());
                 System.out.println("【receive】 Received response: " + response);
                 return (Message<T>) response.getData();
             } catch (Exception e) {
@@ -148,21 +271,95 @@ public class NettyClientImpl implements ClientService {
         });
     }
 
+    /**
+     * 批量接收指定主题的消息。
+     * 使用零拷贝的fetch请求, 服务端直接返回存储中的消息原文和对应的offset(二进制索引表),
+     * 由客户端解析消息并回填 X-offset 和 X-partition 消息头。依次从每个分区已确认的位置拉取, 直到凑满size条。
+     *
+     * @param topic      消息主题。
+     * @param consumerId 消费者ID。
+     * @param size       最多接收的消息数量。
+     * @param <T>        消息体的类型。
+     * @return 消息列表。
+     */
+    @Override
+    public <T> List<Message<T>> batchReceive(String topic, String consumerId, int size) {
+        List<Message<T>> messages = new ArrayList<>();
+        int partitions = partitions(topic);
+        for (int partition = 0; partition < partitions && messages.size() < size; partition++) {
+            messages.addAll(batchReceive(topic, consumerId, partition, -1, size - messages.size(), 0));
+        }
+        return messages;
+    }
+
+    /**
+     * 从分区的指定位置之后长轮询批量接收消息。
+     * fetch请求带上wait参数, 没有新消息时服务端挂起请求, 有消息写入后立即返回, 超时返回空列表。
+     *
+     * @param topic      消息主题。
+     * @param consumerId 消费者ID。
+     * @param partition  分区号。
+     * @param offset     已拉取到的最后一条消息的offset, 小于0时从已确认的位置开始。
+     * @param size       最多接收的消息数量。
+     * @param waitMs     没有新消息时最长等待的毫秒数, 最多为请求超时的一半。
+     * @param <T>        消息体的类型。
+     * @return 消息列表。
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<Message<T>> batchReceive(String topic, String consumerId, int partition, long offset,
+                                             int size, long waitMs) {
+        List<Message<T>> result = executeWithClient(client -> {
+            try {
+                // 长轮询的等待时间要小于请求超时, 留出响应返回的时间
+                long wait = Math.min(waitMs, requestTimeout / 2);
+                Map<String, String> params = Map.of("t", topic, "cid", consumerId, "p", String.valueOf(partition),
+                        "offset", String.valueOf(offset), "size", String.valueOf(size), "wait", String.valueOf(wait));
+                CompletableFuture<NettyFrame> future = client.sendMessage("fetch", params, null);
+                NettyFrame response = future.get();
+                List<Message<T>> messages = new ArrayList<>();
+                if (response.getCode() != NettyFrame.CODE_OK) {
+                    System.out.println("【fetch】 Received error: " + response.data(String.class));
+                    return messages;
+                }
+                // | count(4) | { offset(8) | length(4) } * count | body * count |
+                ByteBuf body = response.getBody();
+                int count = body.readInt();
+                int bodyIndex = body.readerIndex() + count * 12;
+                for (int i = 0; i < count; i++) {
+                    long messageOffset = body.readLong();
+                    int length = body.readInt();
+                    Message<T> message = JSON.parseObject(
+                            body.toString(bodyIndex, length, StandardCharsets.UTF_8), Message.class);
+                    message.getHeaders().put(OFFSET_HEADER, String.valueOf(messageOffset));
+                    message.getHeaders().put(PARTITION_HEADER, String.valueOf(partition));
+                    messages.add(message);
+                    bodyIndex += length;
+                }
+                System.out.println("【fetch】 Received messages: " + messages.size());
+                return messages;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return new ArrayList<>();
+            }
+        });
+        return result == null ? new ArrayList<>() : result;
+    }
+
     /**
      * 取消订阅指定主题。
      *
      * @param topic    消息主题。
+     * @param group      消费者组。
      * @param consumerId 消费者ID。
      */
     @Override
-    public void unSubscribe(String topic, String consumerId) {
+    public void unSubscribe(String topic, String group, String consumerId) {
         executeWithClient(client -> {
             try {
-                Map<String, String> params = Map.of("t", topic, "cid", consumerId);
-                CompletableFuture<String> future = client.sendMessage("unsub", params, null);
-                NettyResponse<String> response = JSON.parseObject(future.get(),
-                        new TypeReference<NettyResponse<String>>() {
-                        });
+                Map<String, String> params = Map.of("t", topic, "g", group, "cid", consumerId);
+                CompletableFuture<NettyFrame> future = client.sendMessage("unsub", params, null);
+                NettyResponse<String> response = future.get().toResponse(String.class);
                 System.out.println("【unsub】 Received response: " + response);
             } catch (Exception e) {
                 e.printStackTrace();
@@ -172,26 +369,26 @@ public class NettyClientImpl implements ClientService {
     }
 
     /**
-     * 确认消息消费，更新消费位点。
+     * 确认消息消费，更新消费者在分区上的消费位点。
      *
-     * @param topic    消息主题。
+     * @param topic      消息主题。
      * @param consumerId 消费者ID。
-     * @param offset   消费位点。
+     * @param partition  分区号。
+     * @param offset     消费位点。
      * @return 确认是否成功的布尔值。
      */
     @Override
-    public Boolean ack(String topic, String consumerId, int offset) {
+    public Boolean ack(String topic, String consumerId, int partition, long offset) {
         return executeWithClient(client -> {
             try {
                 Map<String, String> params = Map.of(
                         "t", topic,
                         "cid", consumerId,
+                        "p", String.valueOf(partition),
                         "offset", String.valueOf(offset)
                 );
-                CompletableFuture<String> future = client.sendMessage("ack", params, null);
-                NettyResponse<?> response = JSON.parseObject(future.get(),
-                        new TypeReference<NettyResponse<String>>() {
-                        });
+                CompletableFuture<NettyFrame> future = client.sendMessage("ack", params, null);
+                NettyResponse<?> response = future.get().toResponse(String.class);
                 System.out.println("【ack】 Received response: " + response);
                 return response.getCode() == 1;
             } catch (Exception e) {
@@ -201,6 +398,30 @@ public class NettyClientImpl implements ClientService {
         });
     }
 
+    /**
+     * 异步批量提交消费位点, 不阻塞调用线程。
+     *
+     * @param topic      消息主题。
+     * @param consumerId 消费者ID。
+     * @param offsets    分区号为键的位点。
+     * @return 提交完成后完成的future, 结果为位点前进了的分区数量。
+     */
+    @Override
+    public CompletableFuture<Integer> commit(String topic, String consumerId, Map<Integer, Long> offsets) {
+        try {
+            Map<String, String> params = Map.of("t", topic, "cid", consumerId);
+            return clientGroup.next().sendMessage("commit", params, JSON.toJSONString(offsets)).thenApply(frame -> {
+                NettyResponse<Integer> response = frame.toResponse(Integer.class);
+                if (response.getCode() != NettyFrame.CODE_OK) {
+                    throw new IllegalStateException("commit failed: " + frame.data(String.class));
+                }
+                return response.getData();
+            });
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     /**
      * 获取指定主题和消费者ID的消费统计信息。
      *
@@ -213,10 +434,9 @@ public class NettyClientImpl implements ClientService {
         return executeWithClient(client -> {
             try {
                 Map<String, String> params = Map.of("t", topic, "cid", consumerId);
-                CompletableFuture<String> future = client.sendMessage("stat", params, null);
-                NettyResponse<Statistical> response = JSON.parseObject(future.get(),
-                        new TypeReference<NettyResponse<Statistical>>() {
-                        });
+                CompletableFuture<NettyFrame> future = client.sendMessage("stat", params, null);
+                NettyResponse<Statistical> response = future.get().toResponse(new TypeReference<Statistical>() {
+                }.getType());
                 System.out.println("【stat】 Received response: " + response);
                 return response.getData();
             } catch (Exception e) {
@@ -0,0 +1,63 @@
+package cn.ipman.mq.client.client.netty;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * 客户端共享的Netty传输层。
+ * <p>
+ * 进程内所有客户端连接(包括连接组中的每个连接和到不同服务端的连接)共用一个EventLoopGroup,
+ * 线程数默认等于CPU核数, 可以通过系统属性 mq.client.ioThreads 调整, 不再随连接数增长。
+ * Linux上可用时使用epoll, 否则使用NIO。
+ *
+ * @Author IpMan
+ * @Date 2026/10/18 00:10
+ */
+public final class NettyClientTransport {
+
+    private static volatile EventLoopGroup group;
+
+    private NettyClientTransport() {
+    }
+
+    /**
+     * 获取共享的EventLoopGroup, 第一次使用时创建。
+     * IO线程是守护线程, 不会阻止进程退出。
+     *
+     * @return 共享的EventLoopGroup。
+     */
+    public static EventLoopGroup group() {
+        EventLoopGroup current = group;
+        if (current == null) {
+            synchronized (NettyClientTransport.class) {
+                current = group;
+                if (current == null) {
+                    int threads = Integer.getInteger("mq.client.ioThreads", Runtime.getRuntime().availableProcessors());
+                    DefaultThreadFactory threadFactory = new DefaultThreadFactory("mq-client-io", true);
+                    current = Epoll.isAvailable()
+                            ? new EpollEventLoopGroup(threads, threadFactory)
+                            : new NioEventLoopGroup(threads, threadFactory);
+                    group = current;
+                    System.out.println(" ===>> client transport: " + current.getClass().getSimpleName()
+                            + ", threads = " + threads);
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * 与共享EventLoopGroup匹配的通道类型。
+     *
+     * @return 通道类型。
+     */
+    public static Class<? extends SocketChannel> channelClass() {
+        return group() instanceof EpollEventLoopGroup ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+}
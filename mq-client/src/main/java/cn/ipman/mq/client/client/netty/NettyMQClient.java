@@ -1,66 +1,59 @@
 package cn.ipman.mq.client.client.netty;
 
-import cn.ipman.mq.metadata.model.Message;
-import com.alibaba.fastjson.JSON;
+import cn.ipman.mq.metadata.protocol.NettyFrame;
+import cn.ipman.mq.metadata.protocol.NettyFrameDecoder;
+import cn.ipman.mq.metadata.protocol.NettyFrameEncoder;
 import io.netty.bootstrap.Bootstrap;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
-import io.netty.handler.timeout.ReadTimeoutHandler;
 
-import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
-
-import static cn.ipman.mq.metadata.model.Constants.DELIMITER;
-import static cn.ipman.mq.metadata.model.Constants.MAX_FRAME_LENGTH;
 
 
 /**
  * NettyMQClient 使用Netty框架实现的MQ客户端。
  * 用于建立与服务端的连接，并发送与接收消息。
+ * 一个连接由多个线程共享, 请求在连接上流水线发送, 响应按请求ID异步匹配。
  *
  * @Author IpMan
  * @Date 2024/6/29 20:07
  */
 public class NettyMQClient {
 
+    // 帧编码器无状态, 所有连接共享一个实例
+    private static final NettyFrameEncoder FRAME_ENCODER = new NettyFrameEncoder();
+
     String host;
     int port;
     NettyMQClientHandler clientHandler;
-    int timeout = 5_000; // 超时时间5s
+    int timeout = 5_000; // 连接超时时间5s
     private Channel channel;
-    private EventLoopGroup group;
 
     /**
      * 构造函数初始化客户端。
      * @param host 服务端主机地址
      * @param port 服务端端口号
+     * @param maxInFlight 连接上同时在途的最大请求数
+     * @param requestTimeout 单个请求的超时时间(ms)
      */
-    public NettyMQClient(String host, int port) {
+    public NettyMQClient(String host, int port, int maxInFlight, long requestTimeout) {
         this.host = host;
         this.port = port;
-        this.clientHandler = new NettyMQClientHandler();
+        this.clientHandler = new NettyMQClientHandler(maxInFlight, requestTimeout);
     }
 
     /**
      * 启动客户端，建立与服务端的连接。
+     * 连接注册到进程内共享的EventLoopGroup上, 不再为每个连接创建线程组。
      */
     public void start() {
-        group = new NioEventLoopGroup(10);
         try {
             Bootstrap b = new Bootstrap();
-            b.group(group);
-            b.channel(NioSocketChannel.class);
+            b.group(NettyClientTransport.group());
+            b.channel(NettyClientTransport.channelClass());
             b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeout); // 连接超时设置
             b.option(ChannelOption.SO_KEEPALIVE, true);     // 开启TCP KeepAlive
             b.handler(new LoggingHandler(LogLevel.INFO));            // 日志处理器
@@ -68,11 +61,8 @@ public class NettyMQClient {
                 @Override
                 protected void initChannel(SocketChannel ch) {
                     ChannelPipeline p = ch.pipeline();
-                    ByteBuf delimiter = Unpooled.copiedBuffer(DELIMITER.getBytes(StandardCharsets.UTF_8));
-                    p.addLast(new DelimiterBasedFrameDecoder(MAX_FRAME_LENGTH, delimiter)); // 消息分帧解码器
-                    p.addLast(new ReadTimeoutHandler(timeout, TimeUnit.MILLISECONDS)); // 读超时处理器
-                    p.addLast(new StringDecoder());      // 字符串解码器
-                    p.addLast(new StringEncoder());      // 字符串编码器
+                    p.addLast(new NettyFrameDecoder());  // 按长度字段分帧的二进制协议解码器
+                    p.addLast(FRAME_ENCODER);            // 二进制协议编码器
                     p.addLast(clientHandler);            // 自定义消息处理处理器
                 }
             });
@@ -80,7 +70,6 @@ public class NettyMQClient {
             ChannelFuture f = b.connect(host, port).sync();
             channel = f.channel();
         } catch (Exception e) {
-            group.shutdownGracefully();
             throw new RuntimeException(e);
         }
     }
@@ -95,30 +84,26 @@ public class NettyMQClient {
 
 
     /**
-     * 关闭客户端连接及线程组。
+     * 关闭客户端连接, 共享的线程组不随连接关闭。
      */
     public void close() {
         if (channel != null) {
             channel.close();
         }
-        if (group != null) {
-            group.shutdownGracefully();
-        }
     }
 
     /**
      * 发送消息到服务端。
      * @param action 消息操作类型。
      * @param params 消息额外参数。
-     * @param message 待发送的消息对象。
-     * @return 完成发送的消息ID的CompletableFuture。
+     * @param message 请求体, 消息对象编码为JSON, 字符串按UTF-8原样发送。
+     * @return 收到响应帧后完成的CompletableFuture。
      */
-    public CompletableFuture<String> sendMessage(String action, Map<String, String> params, Message<?> message) {
+    public CompletableFuture<NettyFrame> sendMessage(String action, Map<String, String> params, Object message) {
         if (channel != null && channel.isActive()) {
-            String jsonMessage = JSON.toJSONString(message);
-            return clientHandler.sendMessage(channel, action, params, jsonMessage);
+            return clientHandler.sendMessage(channel, action, params, message);
         } else {
-            CompletableFuture<String> future = new CompletableFuture<>();
+            CompletableFuture<NettyFrame> future = new CompletableFuture<>();
             future.completeExceptionally(new IllegalStateException("Channel is not active"));
             return future;
         }
@@ -0,0 +1,98 @@
+package cn.ipman.mq.client.client.netty;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 到同一个服务端的一组共享连接。
+ * <p>
+ * 与借出-归还的连接池不同, 连接不会被某个请求独占: 调用方轮询选择一个连接, 在上面流水线发送请求,
+ * 每个连接上可以同时有多个请求在途, 吞吐量不再受限于连接数 × 往返时间。
+ * 连接在第一次使用时建立, 断开后在下次选中时重连。
+ *
+ * @Author IpMan
+ * @Date 2026/10/17 23:55
+ */
+public class NettyMQClientGroup {
+
+    private final String host;
+    private final int port;
+    private final int maxInFlight;
+    private final long requestTimeout;
+
+    /**
+     * 共享的连接, 按下标轮询。
+     */
+    private final AtomicReferenceArray<NettyMQClient> clients;
+
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    private volatile boolean closed = false;
+
+    /**
+     * 创建连接组。
+     *
+     * @param host           服务器主机地址。
+     * @param port           服务器端口。
+     * @param connections    连接数量。
+     * @param maxInFlight    每个连接上同时在途的最大请求数。
+     * @param requestTimeout 单个请求的超时时间(ms)。
+     */
+    public NettyMQClientGroup(String host, int port, int connections, int maxInFlight, long requestTimeout) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("connections must be positive: " + connections);
+        }
+        this.host = host;
+        this.port = port;
+        this.maxInFlight = maxInFlight;
+        this.requestTimeout = requestTimeout;
+        this.clients = new AtomicReferenceArray<>(connections);
+    }
+
+    /**
+     * 轮询选择一个可用的连接, 连接尚未建立或已经断开时先建立连接。
+     *
+     * @return 可用的连接。
+     */
+    public NettyMQClient next() {
+        int index = Math.floorMod(next.getAndIncrement(), clients.length());
+        NettyMQClient client = clients.get(index);
+        if (client != null && client.isActive()) {
+            return client;
+        }
+        return connect(index);
+    }
+
+    /**
+     * 建立指定下标的连接, 同一时间只有一个线程建立连接, 其他线程复用建立好的连接。
+     */
+    private synchronized NettyMQClient connect(int index) {
+        if (closed) {
+            throw new IllegalStateException("client group is closed");
+        }
+        NettyMQClient client = clients.get(index);
+        if (client != null && client.isActive()) {
+            return client;
+        }
+        if (client != null) {
+            client.close();
+        }
+        client = new NettyMQClient(host, port, maxInFlight, requestTimeout);
+        client.start();
+        clients.set(index, client);
+        return client;
+    }
+
+    /**
+     * 关闭所有连接。
+     */
+    public synchronized void close() {
+        closed = true;
+        for (int i = 0; i < clients.length(); i++) {
+            NettyMQClient client = clients.getAndSet(i, null);
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+}
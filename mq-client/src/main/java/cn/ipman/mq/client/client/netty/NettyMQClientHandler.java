@@ -1,28 +1,34 @@
 package cn.ipman.mq.client.client.netty;
 
-import cn.ipman.mq.metadata.model.NettyRequest;
-import cn.ipman.mq.metadata.model.NettyResponse;
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.TypeReference;
+import cn.ipman.mq.metadata.protocol.NettyFrame;
+import cn.ipman.mq.metadata.protocol.OpCode;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 
+import java.nio.channels.ClosedChannelException;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 
-import static cn.ipman.mq.metadata.model.Constants.DELIMITER;
-
 
 /**
  * NettyMQClientHandler 是 Netty 客户端的处理器，用于处理消息的发送和接收。
+ * <p>
+ * 一个连接上可以同时有多个请求在途, 响应按请求ID与请求匹配, 不要求按发送顺序返回。
+ * 在途请求数量有上限, 每个请求有独立的超时时间, 连接断开时所有在途请求立即失败。
  *
  * @Author IpMan
  * @Date 2024/6/29 20:07
  */
-public class NettyMQClientHandler extends SimpleChannelInboundHandler<String> {
+public class NettyMQClientHandler extends SimpleChannelInboundHandler<NettyFrame> {
 
     /**
      * 请求ID生成器，用于唯一标识每个请求。
@@ -31,57 +37,128 @@ public class NettyMQClientHandler extends SimpleChannelInboundHandler<String> {
     /**
      * 存储待处理响应的映射，键为请求ID，值为CompletableFuture，用于异步处理响应。
      */
-    private final ConcurrentHashMap<Long, CompletableFuture<String>> paddingRequests = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, CompletableFuture<NettyFrame>> paddingRequests = new ConcurrentHashMap<>();
+
+    /**
+     * 在途请求的许可, 达到上限时发送方等待, 直到有响应返回或超时。
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * 单个请求的超时时间(ms)。
+     */
+    private final long requestTimeout;
+
+    /**
+     * 构造处理器。
+     *
+     * @param maxInFlight    连接上同时在途的最大请求数。
+     * @param requestTimeout 单个请求的超时时间(ms)。
+     */
+    public NettyMQClientHandler(int maxInFlight, long requestTimeout) {
+        this.inFlight = new Semaphore(maxInFlight);
+        this.requestTimeout = requestTimeout;
+    }
 
     /**
-     * 处理接收到的通道消息。
+     * 处理接收到的响应帧。
      *
-     * @param ctx 通道上下文，用于通道操作。
-     * @param msg 接收到的消息字符串。
+     * @param ctx   通道上下文，用于通道操作。
+     * @param frame 接收到的响应帧。
      */
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, String msg) {
-        // 解析接收到的消息为NettyResponse对象。
-        NettyResponse<?> response = JSON.parseObject(msg, new TypeReference<NettyResponse<?>>(){});
-        // 获取响应的请求ID。
-        long requestId = response.getTraceId();
+    protected void channelRead0(ChannelHandlerContext ctx, NettyFrame frame) {
+        // 响应交给业务线程解析, 先把消息体拷贝到堆内存, 及时释放网络层的池化缓冲区
+        ByteBuf body = frame.getBody();
+        try {
+            frame.setBody(Unpooled.copiedBuffer(body));
+        } finally {
+            body.release();
+        }
         // 根据请求ID从映射中移除并返回对应的CompletableFuture。
-        CompletableFuture<String> future = paddingRequests.remove(requestId);
+        CompletableFuture<NettyFrame> future = paddingRequests.remove(frame.getRequestId());
         if (future != null) {
-            // 如果CompletableFuture存在，则完成它，即将消息字符串作为结果完成。
-            future.complete(msg);
+            // 如果CompletableFuture存在，则完成它，即将响应帧作为结果完成。
+            future.complete(frame);
+        } else {
+            // 请求已经超时, 丢弃迟到的响应
+            frame.release();
         }
     }
 
+    /**
+     * 连接断开时, 所有在途请求立即失败, 不必等到超时。
+     *
+     * @param ctx 通道上下文。
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        ClosedChannelException cause = new ClosedChannelException();
+        paddingRequests.keySet().forEach(requestId -> {
+            CompletableFuture<NettyFrame> future = paddingRequests.remove(requestId);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        });
+        super.channelInactive(ctx);
+    }
+
     /**
      * 发送消息到服务端并返回一个CompletableFuture用于异步接收响应。
      *
-     * @param channel        用于发送消息的Netty通道。
-     * @param action         操作动作。
-     * @param params         操作参数。
-     * @param message        要发送的消息内容。
-     * @return 一个CompletableFuture，用于异步接收服务端的响应消息。
+     * @param channel 用于发送消息的Netty通道。
+     * @param action  操作动作。
+     * @param params  操作参数。
+     * @param message 请求体, 消息对象编码为JSON, 字符串按UTF-8原样发送。
+     * @return 一个CompletableFuture，用于异步接收服务端的响应帧。
      */
-    public CompletableFuture<String> sendMessage(Channel channel, String action,
-                                                 Map<String, String> params, String message) {
+    public CompletableFuture<NettyFrame> sendMessage(Channel channel, String action,
+                                                     Map<String, String> params, Object message) {
+        // 创建请求帧, 操作码对应action, 参数作为headers, 消息作为请求体。
+        OpCode opCode = OpCode.of(action);
+        ByteBuf body = NettyFrame.encode(channel.alloc(), message);
+
+        CompletableFuture<NettyFrame> future = new CompletableFuture<>();
+        // 在途请求达到上限时等待, 等待时间计入请求超时
+        try {
+            if (!inFlight.tryAcquire(requestTimeout, TimeUnit.MILLISECONDS)) {
+                body.release();
+                future.completeExceptionally(new TimeoutException("too many in-flight requests: " + action));
+                return future;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            body.release();
+            future.completeExceptionally(e);
+            return future;
+        }
+
         // 生成唯一的请求ID。
         long requestId = requestIdGenerator.getAndIncrement();
-        // 创建NettyRequest对象，设置请求ID、动作、参数和消息体。
-        NettyRequest<String> request = new NettyRequest<>();
-        request.setTraceId(requestId);
-        request.setAction(action);
-        request.setParams(params);
-        request.setBody(message);
-        // 将NettyRequest对象序列化为JSON字符串。
-        String jsonRequest = JSON.toJSONString(request);
+        NettyFrame request = NettyFrame.request(opCode, requestId, params, body);
 
-        // 创建一个新的CompletableFuture用于接收响应。
-        CompletableFuture<String> future = new CompletableFuture<>();
         // 将请求ID和CompletableFuture存入映射中，用于后续接收响应。
         paddingRequests.put(requestId, future);
-        // 将序列化后的JSON字符串加上分隔符写入通道并刷新。
-        channel.writeAndFlush(jsonRequest + DELIMITER);
+        // 请求超时后从映射中移除, 迟到的响应会被丢弃
+        ScheduledFuture<?> timeout = channel.eventLoop().schedule(() -> {
+            CompletableFuture<NettyFrame> expired = paddingRequests.remove(requestId);
+            if (expired != null) {
+                expired.completeExceptionally(new TimeoutException(
+                        "request timeout after " + requestTimeout + "ms: " + action + "#" + requestId));
+            }
+        }, requestTimeout, TimeUnit.MILLISECONDS);
+        future.whenComplete((frame, e) -> {
+            timeout.cancel(false);
+            inFlight.release();
+        });
+
+        // 将请求帧写入通道并刷新, 写入失败时请求立即失败。
+        channel.writeAndFlush(request).addListener(f -> {
+            if (!f.isSuccess() && paddingRequests.remove(requestId) != null) {
+                future.completeExceptionally(f.cause());
+            }
+        });
         // 返回CompletableFuture。
         return future;
     }
-}
\ No newline at end of file
+}
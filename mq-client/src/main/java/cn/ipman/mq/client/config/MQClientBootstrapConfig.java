@@ -37,9 +37,9 @@ public class MQClientBootstrapConfig {
         return new NettyClientImpl(
                 mqConfigProperties.getHost(),
                 mqConfigProperties.getPort(),
-                mqConfigProperties.getPoolMaxTotal(),
-                mqConfigProperties.getPoolMaxIdle(),
-                mqConfigProperties.getPoolMinIdle()
+                mqConfigProperties.getConnections(),
+                mqConfigProperties.getMaxInFlight(),
+                mqConfigProperties.getRequestTimeout()
         );
     }
 
@@ -52,8 +52,9 @@ public class MQClientBootstrapConfig {
      */
     @Bean(initMethod = "init")
     public MQBroker brokerFactory(@Autowired ClientService clientService) {
-        // 使用客户端服务创建MQBroker实例。
-        return new MQBroker(clientService);
+        // 使用客户端服务创建MQBroker实例, 并按配置设置异步发送的攒批参数。
+        return new MQBroker(clientService, mqConfigProperties.getBatchSize(), mqConfigProperties.getLingerMs(),
+                mqConfigProperties.getCommitIntervalMs(), mqConfigProperties.getCommitBatch());
     }
 
     /**
@@ -19,8 +19,19 @@ public class MQConfigProperties {
 
     private String host = "127.0.0.1";
     private int port = 8765;
-    private int poolMaxTotal = 10;
-    private int poolMaxIdle = 5;
-    private int poolMinIdle = 2;
+    // 共享连接数, 每个连接上的请求多路复用
+    private int connections = 2;
+    // 每个连接上同时在途的最大请求数
+    private int maxInFlight = 1024;
+    // 单个请求的超时时间(ms), 需要大于长轮询的等待时间
+    private long requestTimeout = 10_000;
+    // 异步发送时一个批次的字节数上限
+    private int batchSize = 16 * 1024;
+    // 异步发送时批次的最长等待时间(ms)
+    private long lingerMs = 5;
+    // 消费者定时提交位点的间隔(ms)
+    private long commitIntervalMs = 1000;
+    // 消费者累计多少次确认后立即提交位点
+    private int commitBatch = 100;
 
 }
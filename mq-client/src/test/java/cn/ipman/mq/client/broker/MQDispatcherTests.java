@@ -0,0 +1,157 @@
+package cn.ipman.mq.client.broker;
+
+import cn.ipman.mq.metadata.model.Message;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MQDispatcherTests {
+
+    @Test
+    void ackOnlyContiguousCompleted() throws Exception {
+        CountDownLatch slow = new CountDownLatch(1);
+        List<Long> acks = new CopyOnWriteArrayList<>();
+        MQDispatcher dispatcher = new MQDispatcher("test", message -> {
+            // offset为0的消息阻塞, 后面的消息先处理完成
+            if ("0".equals(message.getHeaders().get("X-offset"))) {
+                try {
+                    slow.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, DispatchMode.UNORDERED, 4, MQDispatcher.DEFAULT_KEY_HEADER, 100, (partition, offset) -> acks.add(offset));
+
+        dispatcher.acquire(3);
+        dispatcher.dispatch(message(0, null));
+        dispatcher.dispatch(message(10, null));
+        dispatcher.dispatch(message(20, null));
+        Thread.sleep(200);
+        assertTrue(acks.isEmpty());
+
+        slow.countDown();
+        dispatcher.shutdown();
+        assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(20L, acks.get(acks.size() - 1));
+    }
+
+    @Test
+    void orderedByKey() throws Exception {
+        Map<String, List<Long>> handled = new ConcurrentHashMap<>();
+        MQDispatcher dispatcher = new MQDispatcher("test", message -> {
+            String key = message.getHeaders().get(MQDispatcher.DEFAULT_KEY_HEADER);
+            handled.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>())
+                    .add(Long.parseLong(message.getHeaders().get("X-offset")));
+        }, DispatchMode.ORDERED_BY_KEY, 4, MQDispatcher.DEFAULT_KEY_HEADER, 1000, (partition, offset) -> {
+        });
+
+        dispatcher.acquire(1000);
+        for (int i = 0; i < 1000; i++) {
+            dispatcher.dispatch(message(i, "k" + (i % 7)));
+        }
+        dispatcher.shutdown();
+        assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(7, handled.size());
+        handled.values().forEach(offsets -> {
+            List<Long> sorted = new ArrayList<>(offsets);
+            sorted.sort(Long::compare);
+            assertEquals(sorted, offsets);
+        });
+    }
+
+    @Test
+    void ackPerPartition() throws Exception {
+        CountDownLatch slow = new CountDownLatch(1);
+        Map<Integer, List<Long>> acks = new ConcurrentHashMap<>();
+        MQDispatcher dispatcher = new MQDispatcher("test", message -> {
+            // 分区0的offset 0阻塞, 不应影响分区1的确认
+            if ("0".equals(message.getHeaders().get("X-partition"))
+                    && "0".equals(message.getHeaders().get("X-offset"))) {
+                try {
+                    slow.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, DispatchMode.UNORDERED, 4, MQDispatcher.DEFAULT_KEY_HEADER, 100,
+                (partition, offset) -> acks.computeIfAbsent(partition, p -> new CopyOnWriteArrayList<>()).add(offset));
+
+        dispatcher.acquire(4);
+        dispatcher.dispatch(message(0, 0, null));
+        dispatcher.dispatch(message(0, 1, null));
+        dispatcher.dispatch(message(10, 0, null));
+        dispatcher.dispatch(message(10, 1, null));
+        Thread.sleep(200);
+        assertFalse(acks.containsKey(0));
+        assertEquals(10L, acks.get(1).get(acks.get(1).size() - 1));
+
+        slow.countDown();
+        dispatcher.shutdown();
+        assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(10L, acks.get(0).get(acks.get(0).size() - 1));
+    }
+
+    @Test
+    void capacityGrowsWithPollers() throws Exception {
+        MQDispatcher dispatcher = new MQDispatcher("test", message -> {
+        }, DispatchMode.UNORDERED, 1, MQDispatcher.DEFAULT_KEY_HEADER, 100, (partition, offset) -> {
+        });
+
+        // 一个分区的拉取线程在长轮询期间占满了上限, 第二个分区加入后仍然可以申请到自己的容量
+        dispatcher.acquire(100);
+        dispatcher.ensureCapacity(200);
+        Thread second = new Thread(() -> {
+            try {
+                dispatcher.acquire(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        second.start();
+        second.join(1000);
+        assertFalse(second.isAlive());
+
+        // 分区减少后上限回落, 但不低于构造时指定的上限
+        dispatcher.release(200);
+        dispatcher.ensureCapacity(0);
+        dispatcher.acquire(100);
+        Thread third = new Thread(() -> {
+            try {
+                dispatcher.acquire(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        third.start();
+        third.join(200);
+        assertTrue(third.isAlive());
+        dispatcher.release(100);
+        third.join(1000);
+        assertFalse(third.isAlive());
+        dispatcher.shutdown();
+    }
+
+    private static Message<String> message(long offset, String key) {
+        return message(offset, 0, key);
+    }
+
+    private static Message<String> message(long offset, int partition, String key) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("X-offset", String.valueOf(offset));
+        headers.put("X-partition", String.valueOf(partition));
+        if (key != null) {
+            headers.put(MQDispatcher.DEFAULT_KEY_HEADER, key);
+        }
+        return new Message<>(offset, "body" + offset, headers);
+    }
+}
@@ -0,0 +1,76 @@
+package cn.ipman.mq.client.broker;
+
+import cn.ipman.mq.client.client.ClientService;
+import cn.ipman.mq.metadata.model.Message;
+import com.alibaba.fastjson.JSON;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageAccumulatorTests {
+
+    @Test
+    void closeSendsRemainingBatchesAndRejectsNewMessages() {
+        List<List<String>> sent = new CopyOnWriteArrayList<>();
+        // 批次不会写满, 也不会在测试期间到期, 只能由close发送
+        MessageAccumulator accumulator = new MessageAccumulator(clientService(sent), 1 << 20, 60_000);
+        CompletableFuture<Long> first = accumulator.append("test", 0, new Message<>(1, "a", null));
+        CompletableFuture<Long> second = accumulator.append("test", 0, new Message<>(2, "b", null));
+        assertFalse(first.isDone());
+
+        accumulator.close();
+        assertEquals(1, sent.size());
+        assertEquals(0L, first.join());
+        assertEquals(1L, second.join());
+
+        CompletableFuture<Long> late = accumulator.append("test", 0, new Message<>(3, "c", null));
+        CompletionException e = assertThrows(CompletionException.class, late::join);
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        assertEquals(1, sent.size());
+        accumulator.close();
+    }
+
+    @Test
+    void batchSizeCountsEncodedBytes() {
+        List<List<String>> sent = new CopyOnWriteArrayList<>();
+        Message<String> message = new Message<>(1, "消息".repeat(10), null);
+        String json = JSON.toJSONString(message);
+        int bytes = json.getBytes(StandardCharsets.UTF_8).length;
+        assertEquals(bytes, MessageAccumulator.utf8Length(json));
+        assertEquals(4, MessageAccumulator.utf8Length("\uD83D\uDE00"));
+
+        // 按字符数还没有写满, 按UTF-8字节数已经写满, 立即发送
+        assertTrue(json.length() + 1 < bytes);
+        MessageAccumulator accumulator = new MessageAccumulator(clientService(sent), bytes, 60_000);
+        assertEquals(0L, accumulator.append("test", 0, message).join());
+        assertEquals(1, sent.size());
+        accumulator.close();
+    }
+
+    /**
+     * 只实现batchSend的客户端, 记录发送的批次, 按批次中的位置返回偏移量。
+     */
+    private ClientService clientService(List<List<String>> sent) {
+        return (ClientService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{ClientService.class}, (proxy, method, args) -> {
+                    if (!"batchSend".equals(method.getName())) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    @SuppressWarnings("unchecked")
+                    List<String> messages = (List<String>) args[2];
+                    sent.add(messages);
+                    long[] offsets = new long[messages.size()];
+                    for (int i = 0; i < offsets.length; i++) {
+                        offsets[i] = i;
+                    }
+                    return CompletableFuture.completedFuture(offsets);
+                });
+    }
+}
@@ -0,0 +1,44 @@
+package cn.ipman.mq.metadata.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 消费者组成员的分区分配结果。
+ * 加入消费者组和每次心跳时由服务端返回, 成员只拉取分配给自己的分区;
+ * 成员加入、离开或心跳超时后服务端重新分配, 并增加分配的代数。
+ *
+ * @Author IpMan
+ * @Date 2026/10/18 01:40
+ */
+@AllArgsConstructor
+@Data
+@NoArgsConstructor
+public class Assignment {
+
+    /**
+     * 订阅的主题。
+     */
+    private String topic;
+
+    /**
+     * 消费者组。
+     */
+    private String group;
+
+    /**
+     * 组内成员的消费者ID。
+     */
+    private String consumerId;
+
+    /**
+     * 分配的代数, 每次重新分配加1, 客户端据此发现分配是否变化。
+     */
+    private int generation;
+
+    /**
+     * 分配给该成员的分区, 按分区号递增排列, 组内成员多于分区时可能为空。
+     */
+    private int[] partitions;
+}
@@ -0,0 +1,46 @@
+package cn.ipman.mq.metadata.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 批量发送的结果。
+ * 用于返回一批消息写入后的位置, 包含写入的分区、第一条消息的偏移量和每条消息的偏移量。
+ * 一批消息总是写入同一个分区, 偏移量都是该分区内的位置。
+ *
+ * @Author IpMan
+ * @Date 2026/10/18 00:40
+ */
+@AllArgsConstructor
+@Data
+@NoArgsConstructor
+public class BatchResult {
+
+    /**
+     * 整批消息写入的分区。
+     */
+    private int partition;
+
+    /**
+     * 第一条消息的偏移量。
+     * 同一个段文件内的消息首尾相接, 批次中途切换段文件时后面的偏移量会跳到新段文件的起点。
+     */
+    private long first;
+
+    /**
+     * 每条消息的偏移量, 顺序与发送顺序一致。
+     */
+    private long[] offsets;
+
+    /**
+     * 根据每条消息的偏移量构造结果。
+     *
+     * @param partition 整批消息写入的分区。
+     * @param offsets   每条消息的偏移量, 空数组时first为-1。
+     * @return 批量发送的结果。
+     */
+    public static BatchResult of(int partition, long[] offsets) {
+        return new BatchResult(partition, offsets.length == 0 ? -1 : offsets[0], offsets);
+    }
+}
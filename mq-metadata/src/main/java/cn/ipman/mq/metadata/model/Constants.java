@@ -10,8 +10,29 @@ package cn.ipman.mq.metadata.model;
  */
 public class Constants {
 
-    public final static String DELIMITER = "\nnnn";
-    public final static int MAX_FRAME_LENGTH = 8192;
+    // 二进制协议单帧的最大长度, 需要容纳单条大消息和一次批量拉取
+    public final static int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    // 长轮询拉取的默认等待时间(ms), 需要小于客户端的请求超时
+    public final static long FETCH_LONG_POLL_WAIT = 2_000;
+
+    // 服务端允许的长轮询最大等待时间(ms)
+    public final static long FETCH_MAX_WAIT = 30_000;
+
+    // 消息的偏移量消息头, 读取消息时回填, 是消息在所属分区中的位置
+    public final static String OFFSET_HEADER = "X-offset";
+
+    // 消息的分区消息头, 读取消息时回填, 确认消息时据此找到分区
+    public final static String PARTITION_HEADER = "X-partition";
+
+    // 消息键消息头, 生产者按它的哈希选择分区, 同一个键的消息落在同一个分区
+    public final static String KEY_HEADER = "X-key";
+
+    // 消费者组成员的心跳间隔(ms)
+    public final static long GROUP_HEARTBEAT_INTERVAL = 3_000;
+
+    // 消费者组成员的会话超时(ms), 超过这个时间没有心跳的成员被移出消费者组, 它的分区分配给其他成员
+    public final static long GROUP_SESSION_TIMEOUT = 10_000;
 
 
 }
@@ -22,12 +22,40 @@ public class Statistical {
     /**
      * 总消息数量，表示该主题或队列中的消息总数。
      */
-    private int total;
+    private long total;
 
     /**
      * 当前消息位置，表示最新写入的消息在文件或队列中的位置。
-     * 用于跟踪和管理消息的消费进度。
+     * 用于跟踪和管理消息的消费进度。多个分区时为各分区写入位置之和。
      */
-    private int position;
+    private long position;
+
+    /**
+     * 主题的分区数量。
+     */
+    private int partitions = 1;
+
+    /**
+     * 每个分区当前的写入位置，下标为分区号。
+     */
+    private long[] positions;
+
+    /**
+     * 尾部消息缓存的命中次数，各分区之和。
+     */
+    private long cacheHits;
+
+    /**
+     * 尾部消息缓存的未命中次数，各分区之和。
+     */
+    private long cacheMisses;
+
+    public Statistical(Subscription subscription, long total, long position) {
+        this(subscription, total, position, 1, new long[]{position});
+    }
+
+    public Statistical(Subscription subscription, long total, long position, int partitions, long[] positions) {
+        this(subscription, total, position, partitions, positions, 0, 0);
+    }
 
 }
@@ -2,16 +2,21 @@ package cn.ipman.mq.metadata.model;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Message Subscription class.
- * 用于表示消息订阅关系，包含订阅的主题、消费者ID以及消费者的消费位点。
+ * 用于表示消息订阅关系，包含订阅的主题、消费者组、消费者ID以及消费者组的消费位点。
+ * 同一个消费者组的成员共享消费位点，主题的分区在组内成员之间分配，每条消息只被组内的一个成员消费。
  *
  * @Author IpMan
  * @Date 2024/6/30 20:29
  */
 @Data
-@AllArgsConstructor
+@NoArgsConstructor
 public class Subscription {
 
     /**
@@ -20,18 +25,79 @@ public class Subscription {
      */
     private String topic;
 
+    /**
+     * 消费者组。
+     * 消费位点按消费者组保存，没有指定消费者组时为消费者ID，即消费者单独成组。
+     */
+    private String group;
+
     /**
      * 消费者的ID。
-     * 用于唯一标识一个消费者，消费者通过消费者ID获取和保存自己的消费位点。
+     * 用于唯一标识消费者组内的一个成员。
      */
     private String consumerId;
 
     /**
-     * 消费者的消费位点。
-     * 消费位点表示消费者已经消费到的消息的偏移量，初始值为-1，表示尚未开始消费。
-     * 消费者根据消费位点从消息队列中拉取新消息。
+     * 消费者的初始消费位点。
+     * 分区还没有确认过消息时从这里开始，初始值为-1，表示从分区的第一条消息开始消费。
      */
-    private int offset = -1;
+    private volatile long offset = -1;
+
+    /**
+     * 每个分区的消费位点，分区号为键。
+     * 消费位点表示消费者已经确认的最后一条消息在分区中的偏移量，消费者根据它从该分区拉取新消息。
+     */
+    private Map<Integer, Long> offsets = new ConcurrentHashMap<>();
+
+    public Subscription(String topic, String consumerId, long offset) {
+        this(topic, consumerId, consumerId, offset);
+    }
+
+    public Subscription(String topic, String group, String consumerId, long offset) {
+        this.topic = topic;
+        this.group = group == null ? consumerId : group;
+        this.consumerId = consumerId;
+        this.offset = offset;
+    }
 
+    /**
+     * 获取指定分区的消费位点。
+     *
+     * @param partition 分区号。
+     * @return 分区的消费位点，还没有确认过消息时为初始消费位点。
+     */
+    public long getOffset(int partition) {
+        return offsets.getOrDefault(partition, offset);
+    }
+
+    /**
+     * 更新指定分区的消费位点。
+     *
+     * @param partition 分区号。
+     * @param offset    分区的消费位点。
+     */
+    public void setOffset(int partition, long offset) {
+        offsets.put(partition, offset);
+    }
+
+    /**
+     * 原子地把指定分区的消费位点推进到offset, 位点只会前进。
+     * 多个线程同时确认同一个分区时, 只有比当前位点大的确认生效, 较小的确认不会把位点回退。
+     *
+     * @param partition 分区号。
+     * @param offset    新的消费位点。
+     * @return 位点前进了返回true, offset不大于当前位点时返回false。
+     */
+    public boolean advanceOffset(int partition, long offset) {
+        boolean[] advanced = new boolean[1];
+        offsets.compute(partition, (p, current) -> {
+            if (offset <= (current == null ? this.offset : current)) {
+                return current;
+            }
+            advanced[0] = true;
+            return offset;
+        });
+        return advanced[0];
+    }
 
 }
@@ -0,0 +1,193 @@
+package cn.ipman.mq.metadata.protocol;
+
+import cn.ipman.mq.metadata.model.NettyResponse;
+import com.alibaba.fastjson.JSON;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.SneakyThrows;
+
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 二进制协议帧。
+ * <p>
+ * 帧布局(大端序):
+ * <pre>
+ * | magic(2) | version(1) | opcode(1) | requestId(8) | flags(1) | code(1) | length(4) | headers | body |
+ * headers = | count(2) | { keyLength(2) | key | valueLength(2) | value } * count |
+ * </pre>
+ * length 为 length 字段之后的字节数(headers + body), 由 LengthFieldBasedFrameDecoder 按它分帧,
+ * 消息体对协议完全透明, 可以包含任意字节, 分帧开销与消息大小无关。
+ * <p>
+ * 消息体的约定: 请求中是消息的JSON; 响应中字符串数据按UTF-8原样存放, 其他数据为JSON, null为空。
+ * 帧持有的 body 是引用计数的ByteBuf, 由最终处理方负责释放。
+ *
+ * @Author IpMan
+ * @Date 2026/10/17 23:05
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class NettyFrame {
+
+    public final static short MAGIC = 0x4D51; // "MQ"
+    public final static byte VERSION = 1;
+
+    // 固定头部各字段的位置
+    public final static int OPCODE_POS = 3;
+    public final static int REQUEST_ID_POS = 4;
+    public final static int FLAGS_POS = 12;
+    public final static int CODE_POS = 13;
+    public final static int LENGTH_POS = 14;
+    public final static int HEADER_SIZE = 18;
+    // 没有headers的帧, headers部分只有 count(2)
+    public final static int EMPTY_HEADERS_SIZE = 2;
+
+    // 标记该帧是响应
+    public final static byte FLAG_RESPONSE = 0x01;
+
+    // 响应码
+    public final static byte CODE_ERROR = 0;
+    public final static byte CODE_OK = 1;
+
+    private byte opcode;
+    private long requestId;
+    private byte flags;
+    private byte code;
+    private Map<String, String> headers;
+    private ByteBuf body;
+
+    /**
+     * 构造请求帧。
+     *
+     * @param opCode    操作码。
+     * @param requestId 请求ID, 响应帧原样带回, 用于匹配请求。
+     * @param headers   请求参数。
+     * @param body      请求体, 可以为null。
+     * @return 请求帧。
+     */
+    public static NettyFrame request(OpCode opCode, long requestId, Map<String, String> headers, ByteBuf body) {
+        return new NettyFrame(opCode.getCode(), requestId, (byte) 0, (byte) 0, headers,
+                body == null ? Unpooled.EMPTY_BUFFER : body);
+    }
+
+    /**
+     * 构造响应帧。
+     *
+     * @param request 对应的请求帧, 只使用其操作码和请求ID。
+     * @param code    响应码。
+     * @param body    响应体。
+     * @return 响应帧。
+     */
+    public static NettyFrame response(NettyFrame request, int code, ByteBuf body) {
+        return response(request.opcode, request.requestId, code, body);
+    }
+
+    /**
+     * 构造响应帧。
+     *
+     * @param opcode    请求的操作码。
+     * @param requestId 请求ID。
+     * @param code      响应码。
+     * @param body      响应体。
+     * @return 响应帧。
+     */
+    public static NettyFrame response(byte opcode, long requestId, int code, ByteBuf body) {
+        return new NettyFrame(opcode, requestId, FLAG_RESPONSE, (byte) code, null,
+                body == null ? Unpooled.EMPTY_BUFFER : body);
+    }
+
+    /**
+     * 按消息体约定编码数据: 字符串按UTF-8原样写入, 其他对象写成JSON, null为空。
+     *
+     * @param alloc 缓冲区分配器。
+     * @param data  待编码的数据。
+     * @return 编码后的缓冲区。
+     */
+    @SneakyThrows
+    public static ByteBuf encode(ByteBufAllocator alloc, Object data) {
+        if (data == null) {
+            return Unpooled.EMPTY_BUFFER;
+        }
+        if (data instanceof CharSequence text) {
+            return ByteBufUtil.writeUtf8(alloc, text);
+        }
+        ByteBuf buf = alloc.buffer();
+        try (ByteBufOutputStream out = new ByteBufOutputStream(buf)) {
+            JSON.writeJSONString(out, data);
+        } catch (Exception e) {
+            buf.release();
+            throw e;
+        }
+        return buf;
+    }
+
+    /**
+     * 按消息体约定解码数据, 不改变body的读位置。
+     *
+     * @param type 数据类型, String类型直接按UTF-8解码。
+     * @param <T>  数据类型。
+     * @return 解码后的数据, 消息体为空时返回null。
+     */
+    @SneakyThrows
+    @SuppressWarnings("unchecked")
+    public <T> T data(Type type) {
+        if (body == null || !body.isReadable()) {
+            return null;
+        }
+        if (type == String.class) {
+            return (T) body.toString(StandardCharsets.UTF_8);
+        }
+        try (ByteBufInputStream in = new ByteBufInputStream(body.duplicate())) {
+            return JSON.parseObject(in, type);
+        }
+    }
+
+    /**
+     * 将响应帧转换为响应对象。失败的响应消息体是错误信息, 不按data类型解码。
+     *
+     * @param type data的类型。
+     * @param <T>  data的类型。
+     * @return 响应对象。
+     */
+    public <T> NettyResponse<T> toResponse(Type type) {
+        T data = code == CODE_OK ? data(type) : null;
+        return new NettyResponse<>(requestId, code, data);
+    }
+
+    /**
+     * 操作码对应的操作。
+     *
+     * @return 操作, 未知操作码返回null。
+     */
+    public OpCode opCode() {
+        return OpCode.of(opcode);
+    }
+
+    /**
+     * 是否为响应帧。
+     *
+     * @return 响应帧返回true。
+     */
+    public boolean isResponse() {
+        return (flags & FLAG_RESPONSE) != 0;
+    }
+
+    /**
+     * 释放消息体。
+     */
+    public void release() {
+        if (body != null && body.refCnt() > 0) {
+            body.release();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package cn.ipman.mq.metadata.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static cn.ipman.mq.metadata.model.Constants.MAX_FRAME_LENGTH;
+
+/**
+ * 二进制协议帧解码器。
+ * <p>
+ * 按 length 字段分帧, 不再逐字节扫描分隔符; 解析固定头部和headers后,
+ * 消息体是原始帧的一个切片, 不做拷贝, 由处理方在使用后释放。
+ *
+ * @Author IpMan
+ * @Date 2026/10/17 23:05
+ */
+public class NettyFrameDecoder extends LengthFieldBasedFrameDecoder {
+
+    public NettyFrameDecoder() {
+        super(MAX_FRAME_LENGTH, NettyFrame.LENGTH_POS, 4, 0, 0);
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+        ByteBuf buf = (ByteBuf) super.decode(ctx, in);
+        if (buf == null) {
+            return null;
+        }
+        try {
+            short magic = buf.readShort();
+            byte version = buf.readByte();
+            if (magic != NettyFrame.MAGIC || version != NettyFrame.VERSION) {
+                throw new CorruptedFrameException("invalid frame magic/version: " + magic + "/" + version);
+            }
+            NettyFrame frame = new NettyFrame();
+            frame.setOpcode(buf.readByte());
+            frame.setRequestId(buf.readLong());
+            frame.setFlags(buf.readByte());
+            frame.setCode(buf.readByte());
+            buf.skipBytes(4); // length
+
+            int count = buf.readUnsignedShort();
+            Map<String, String> headers = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                headers.put(readString(buf), readString(buf));
+            }
+            frame.setHeaders(headers);
+            frame.setBody(buf.retainedSlice());
+            return frame;
+        } finally {
+            buf.release();
+        }
+    }
+
+    private static String readString(ByteBuf buf) {
+        int length = buf.readUnsignedShort();
+        String value = buf.toString(buf.readerIndex(), length, StandardCharsets.UTF_8);
+        buf.skipBytes(length);
+        return value;
+    }
+}
@@ -0,0 +1,82 @@
+package cn.ipman.mq.metadata.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 二进制协议帧编码器。
+ * <p>
+ * 只为固定头部和headers分配一个小缓冲区, 消息体不做拷贝, 与头部组合成CompositeByteBuf写出,
+ * 因此零拷贝拉取中指向映射文件的消息体可以原样发送。
+ *
+ * @Author IpMan
+ * @Date 2026/10/17 23:05
+ */
+@ChannelHandler.Sharable
+public class NettyFrameEncoder extends MessageToMessageEncoder<NettyFrame> {
+
+    // headers的数量和每个键值的长度都是无符号的2字节
+    private static final int MAX_UNSIGNED_SHORT = 0xFFFF;
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, NettyFrame frame, List<Object> out) {
+        Map<String, String> headers = frame.getHeaders();
+        ByteBuf header = ctx.alloc().ioBuffer(NettyFrame.HEADER_SIZE + 64);
+        try {
+            header.writeShort(NettyFrame.MAGIC);
+            header.writeByte(NettyFrame.VERSION);
+            header.writeByte(frame.getOpcode());
+            header.writeLong(frame.getRequestId());
+            header.writeByte(frame.getFlags());
+            header.writeByte(frame.getCode());
+            header.writeInt(0); // length, 写完headers后回填
+            int count = headers == null ? 0 : headers.size();
+            if (count > MAX_UNSIGNED_SHORT) {
+                throw new IllegalArgumentException("too many frame headers: " + count);
+            }
+            header.writeShort(count);
+            if (headers != null) {
+                for (Map.Entry<String, String> entry : headers.entrySet()) {
+                    writeString(header, entry.getKey());
+                    writeString(header, entry.getValue());
+                }
+            }
+        } catch (RuntimeException e) {
+            // 帧不会被写出, 释放头部和帧持有的body
+            header.release();
+            frame.release();
+            throw e;
+        }
+
+        ByteBuf body = frame.getBody();
+        int bodyLength = body == null ? 0 : body.readableBytes();
+        header.setInt(NettyFrame.LENGTH_POS, header.readableBytes() - NettyFrame.HEADER_SIZE + bodyLength);
+        if (bodyLength == 0) {
+            frame.release();
+            out.add(header);
+        } else {
+            // 帧的body引用转交给组合缓冲区, 写出后随之释放
+            out.add(ctx.alloc().compositeBuffer(2).addComponents(true, header, body));
+        }
+    }
+
+    /**
+     * 写入 length(2) 和UTF-8编码的字符串, 编码后超过65535字节时抛出异常, 不写出长度被截断的帧。
+     */
+    private static void writeString(ByteBuf buf, String value) {
+        int lengthIndex = buf.writerIndex();
+        buf.writeShort(0);
+        int length = buf.writeCharSequence(value == null ? "" : value, StandardCharsets.UTF_8);
+        if (length > MAX_UNSIGNED_SHORT) {
+            throw new IllegalArgumentException("frame header string too long: " + length
+                    + " bytes, max " + MAX_UNSIGNED_SHORT);
+        }
+        buf.setShort(lengthIndex, length);
+    }
+}
@@ -0,0 +1,70 @@
+package cn.ipman.mq.metadata.protocol;
+
+import lombok.Getter;
+
+/**
+ * 二进制协议的操作码, 与请求中的 action 一一对应。
+ *
+ * @Author IpMan
+ * @Date 2026/10/17 23:05
+ */
+@Getter
+public enum OpCode {
+
+    SEND(1, "send"),
+    RECEIVE(2, "receive"),
+    BATCH_RECEIVE(3, "batch-receive"),
+    ACK(4, "ack"),
+    SUB(5, "sub"),
+    UNSUB(6, "unsub"),
+    STAT(7, "stat"),
+    FETCH(8, "fetch"),
+    BATCH_SEND(9, "batch-send"),
+    PARTITIONS(10, "partitions"),
+    HEARTBEAT(11, "heartbeat"),
+    COMMIT(12, "commit"),
+    CREATE_TOPIC(13, "create-topic"),
+    DELETE_TOPIC(14, "delete-topic");
+
+    private static final OpCode[] CODES = new OpCode[128];
+
+    static {
+        for (OpCode opCode : values()) {
+            CODES[opCode.code] = opCode;
+        }
+    }
+
+    private final byte code;
+    private final String action;
+
+    OpCode(int code, String action) {
+        this.code = (byte) code;
+        this.action = action;
+    }
+
+    /**
+     * 根据操作码查找。
+     *
+     * @param code 操作码。
+     * @return 对应的操作, 未知操作码返回null。
+     */
+    public static OpCode of(byte code) {
+        return code >= 0 && code < CODES.length ? CODES[code] : null;
+    }
+
+    /**
+     * 根据 action 名称查找。
+     *
+     * @param action 操作名称。
+     * @return 对应的操作。
+     * @throws IllegalArgumentException 如果没有对应的操作。
+     */
+    public static OpCode of(String action) {
+        for (OpCode opCode : values()) {
+            if (opCode.action.equals(action)) {
+                return opCode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown action: " + action);
+    }
+}
@@ -0,0 +1,229 @@
+package cn.ipman.mq.server.server;
+
+import cn.ipman.mq.metadata.model.Assignment;
+import cn.ipman.mq.metadata.model.Subscription;
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static cn.ipman.mq.metadata.model.Constants.GROUP_SESSION_TIMEOUT;
+
+/**
+ * 主题上的一个消费者组。
+ * <p>
+ * 组内成员共享同一份消费位点, 主题的分区在成员之间按范围分配: 成员按ID排序, 每个成员分到连续的一段分区,
+ * 前面的成员多分一个, 成员多于分区时多出的成员没有分区。每条消息只会被组内的一个成员拉取,
+ * 增加成员即可水平扩展消费能力。
+ * <p>
+ * 成员分两种: 发送过心跳的成员有会话, 超过 {@link cn.ipman.mq.metadata.model.Constants#GROUP_SESSION_TIMEOUT}
+ * 没有心跳时被移出消费者组; 只订阅不发心跳的成员(手动拉取的消费者和旧的客户端)没有会话, 直到取消订阅才离开。
+ * 成员加入、离开或过期时立即重新分配分区, 分配的代数加1, 其他成员在下一次心跳时拿到新的分配。
+ *
+ * @Author IpMan
+ * @Date 2026/10/18 01:45
+ */
+public class ConsumerGroup {
+
+    @Getter
+    final String topic;
+
+    @Getter
+    final String group;
+
+    /**
+     * 消费者组共享的订阅关系, 保存组在每个分区上的消费位点。
+     */
+    @Getter
+    final Subscription subscription;
+
+    /**
+     * 主题的分区数量。
+     */
+    final int partitions;
+
+    /**
+     * 组内成员, 消费者ID为键, 按ID排序分配分区。由自身保护。
+     */
+    final TreeMap<String, Member> members = new TreeMap<>();
+
+    /**
+     * 分配的代数, 每次重新分配加1。
+     */
+    int generation = 0;
+
+    /**
+     * 创建消费者组。
+     *
+     * @param subscription 第一个成员的订阅信息, 成为消费者组共享的订阅关系。
+     * @param partitions   主题的分区数量。
+     */
+    public ConsumerGroup(Subscription subscription, int partitions) {
+        this.topic = subscription.getTopic();
+        this.group = subscription.getGroup();
+        this.subscription = subscription;
+        this.partitions = partitions;
+    }
+
+    /**
+     * 成员订阅主题, 加入消费者组。已经是成员时不重新分配。
+     *
+     * @param consumerId 消费者ID。
+     * @return 成员的分区分配。
+     */
+    public synchronized Assignment join(String consumerId) {
+        expire(System.currentTimeMillis());
+        if (!members.containsKey(consumerId)) {
+            members.put(consumerId, new Member());
+            rebalance("join " + consumerId);
+        }
+        return assignment(consumerId);
+    }
+
+    /**
+     * 成员的心跳, 刷新成员的会话。
+     * 成员已经过期或服务端重启后丢失了成员时重新加入消费者组。
+     *
+     * @param consumerId 消费者ID。
+     * @return 成员最新的分区分配。
+     */
+    public synchronized Assignment heartbeat(String consumerId) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Member member = members.get(consumerId);
+        if (member == null) {
+            member = new Member();
+            members.put(consumerId, member);
+            rebalance("join " + consumerId);
+        }
+        member.session = true;
+        member.lastHeartbeat = now;
+        return assignment(consumerId);
+    }
+
+    /**
+     * 成员取消订阅, 离开消费者组, 它的分区分配给其他成员。
+     *
+     * @param consumerId 消费者ID。
+     * @return 成员原来在组内返回true。
+     */
+    public synchronized boolean leave(String consumerId) {
+        if (members.remove(consumerId) == null) {
+            return false;
+        }
+        rebalance("leave " + consumerId);
+        return true;
+    }
+
+    /**
+     * 消费者是否是组内的成员。
+     *
+     * @param consumerId 消费者ID。
+     * @return 是成员返回true。
+     */
+    public synchronized boolean contains(String consumerId) {
+        return members.containsKey(consumerId);
+    }
+
+    /**
+     * 消费者组是否已经没有成员。
+     *
+     * @return 没有成员返回true。
+     */
+    public synchronized boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * 分区当前是否分配给了成员, 拉取消息前检查, 避免重新分配之后两个成员拉取同一个分区。
+     *
+     * @param consumerId 消费者ID。
+     * @param partition  分区号。
+     * @return 分配给了该成员返回true。
+     */
+    public synchronized boolean owns(String consumerId, int partition) {
+        expire(System.currentTimeMillis());
+        Member member = members.get(consumerId);
+        return member != null && Arrays.binarySearch(member.partitions, partition) >= 0;
+    }
+
+    /**
+     * 成员当前分配到的分区。
+     *
+     * @param consumerId 消费者ID。
+     * @return 按分区号递增排列的分区, 不是成员时为空数组。
+     */
+    public synchronized int[] assigned(String consumerId) {
+        expire(System.currentTimeMillis());
+        Member member = members.get(consumerId);
+        return member == null ? new int[0] : member.partitions.clone();
+    }
+
+    /**
+     * 移出会话超时的成员。
+     */
+    private void expire(long now) {
+        boolean expired = false;
+        Iterator<Map.Entry<String, Member>> iterator = members.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Member> entry = iterator.next();
+            Member member = entry.getValue();
+            if (member.session && now - member.lastHeartbeat > GROUP_SESSION_TIMEOUT) {
+                System.out.println(" ===>> group: expire topic/group/cid = " + topic + "/" + group + "/" + entry.getKey());
+                iterator.remove();
+                expired = true;
+            }
+        }
+        if (expired) {
+            rebalance("expire");
+        }
+    }
+
+    /**
+     * 按范围重新分配分区: 成员按ID排序, 每个成员分到 partitions / members 个连续的分区,
+     * 前 partitions % members 个成员各多分一个。
+     */
+    private void rebalance(String reason) {
+        generation++;
+        int size = members.size();
+        int index = 0;
+        int next = 0;
+        for (Member member : members.values()) {
+            int count = partitions / size + (index < partitions % size ? 1 : 0);
+            member.partitions = new int[count];
+            for (int i = 0; i < count; i++) {
+                member.partitions[i] = next++;
+            }
+            index++;
+        }
+        System.out.println(" ===>> group: rebalance topic/group/generation = " + topic + "/" + group
+                + "/" + generation + ", " + reason + ", members = " + members.keySet());
+    }
+
+    private Assignment assignment(String consumerId) {
+        return new Assignment(topic, group, consumerId, generation, members.get(consumerId).partitions.clone());
+    }
+
+    /**
+     * 组内的一个成员。
+     */
+    static class Member {
+
+        /**
+         * 是否发送过心跳, 只有发送过心跳的成员会因为会话超时被移出。
+         */
+        boolean session;
+
+        /**
+         * 最后一次心跳的时间。
+         */
+        long lastHeartbeat;
+
+        /**
+         * 分配给成员的分区, 按分区号递增排列。
+         */
+        int[] partitions = new int[0];
+    }
+}
@@ -1,5 +1,7 @@
 package cn.ipman.mq.server.server;
 
+import cn.ipman.mq.metadata.model.Assignment;
+import cn.ipman.mq.metadata.model.BatchResult;
 import cn.ipman.mq.metadata.model.HttpResult;
 import cn.ipman.mq.metadata.model.Message;
 import cn.ipman.mq.metadata.model.Statistical;
@@ -10,6 +12,7 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * MQ server.
@@ -24,8 +27,18 @@ public class MQServer {
     // send
     @RequestMapping("/send")
     public HttpResult<String> send(@RequestParam("t") String topic,
+                                   @RequestParam(name = "p", required = false, defaultValue = "-1") int partition,
                                    @RequestBody Message<String> message) {
-        return HttpResult.ok("msg" + MessageQueue.send(topic, message));
+        return HttpResult.ok("msg" + MessageQueue.send(topic, partition, message).join());
+    }
+
+
+    // batch send
+    @RequestMapping("/batch-send")
+    public HttpResult<BatchResult> batchSend(@RequestParam("t") String topic,
+                                             @RequestParam(name = "p", required = false, defaultValue = "-1") int partition,
+                                             @RequestBody List<Message<String>> messages) {
+        return new HttpResult<>(1, MessageQueue.batchSend(topic, partition, messages).join());
     }
 
 
@@ -41,8 +54,10 @@ public class MQServer {
     @RequestMapping("/batch-receive")
     public HttpResult<List<Message<?>>> batchReceive(@RequestParam("t") String topic,
                                                      @RequestParam("cid") String consumerId,
+                                                     @RequestParam(name = "p", required = false, defaultValue = "-1") int partition,
+                                                     @RequestParam(name = "offset", required = false, defaultValue = "-1") long offset,
                                                      @RequestParam(name = "size", required = false, defaultValue = "1000") int size) {
-        return HttpResult.msg(MessageQueue.batchReceive(topic, consumerId, size));
+        return HttpResult.msg(MessageQueue.batchReceive(topic, consumerId, partition, offset, size));
     }
 
 
@@ -50,23 +65,60 @@ public class MQServer {
     @RequestMapping("/ack")
     public HttpResult<String> ack(@RequestParam("t") String topic,
                                   @RequestParam("cid") String consumerId,
-                                  @RequestParam("offset") Integer offset) {
-        return HttpResult.ok("" + MessageQueue.ack(topic, consumerId, offset));
+                                  @RequestParam(name = "p", required = false, defaultValue = "0") int partition,
+                                  @RequestParam("offset") Long offset) {
+        return HttpResult.ok("" + MessageQueue.ack(topic, consumerId, partition, offset));
+    }
+
+    // batch commit offsets
+    @RequestMapping("/commit")
+    public HttpResult<Integer> commit(@RequestParam("t") String topic,
+                                      @RequestParam("cid") String consumerId,
+                                      @RequestBody Map<Integer, Long> offsets) {
+        return new HttpResult<>(1, MessageQueue.commit(topic, consumerId, offsets));
+    }
+
+    // partitions
+    @RequestMapping("/partitions")
+    public HttpResult<Integer> partitions(@RequestParam("t") String topic) {
+        return new HttpResult<>(1, MessageQueue.partitions(topic));
+    }
+
+    // create topic
+    @RequestMapping("/create-topic")
+    public HttpResult<Boolean> createTopic(@RequestParam("t") String topic,
+                                           @RequestParam(name = "p", required = false, defaultValue = "-1") int partitions) {
+        return new HttpResult<>(1, MessageQueue.createTopic(topic, partitions));
+    }
+
+    // delete topic
+    @RequestMapping("/delete-topic")
+    public HttpResult<Boolean> deleteTopic(@RequestParam("t") String topic) {
+        return new HttpResult<>(1, MessageQueue.deleteTopic(topic));
     }
 
     // 1. subscriber
     @RequestMapping("/sub")
-    public HttpResult<String> subscribe(@RequestParam("t") String topic,
-                                        @RequestParam("cid") String consumerId) {
-        MessageQueue.sub(new Subscription(topic, consumerId, -1));
-        return HttpResult.ok();
+    public HttpResult<Assignment> subscribe(@RequestParam("t") String topic,
+                                            @RequestParam("cid") String consumerId,
+                                            @RequestParam(name = "g", required = false) String group) {
+        return new HttpResult<>(1, MessageQueue.sub(new Subscription(topic, group, consumerId, -1)));
+    }
+
+    // consumer group heartbeat
+    @RequestMapping("/heartbeat")
+    public HttpResult<Assignment> heartbeat(@RequestParam("t") String topic,
+                                            @RequestParam("cid") String consumerId,
+                                            @RequestParam(name = "g", required = false) String group) {
+        return new HttpResult<>(1, MessageQueue.heartbeat(new Subscription(topic, group, consumerId, -1)));
     }
 
     // unsubscribe
     @RequestMapping("/unsub")
     public HttpResult<String> unSubscribe(@RequestParam("t") String topic,
-                                          @RequestParam("cid") String consumerId) {
-        MessageQueue.unsub(new Subscription(topic, consumerId, -1));
+                                          @RequestParam("cid") String consumerId,
+                                          @RequestParam(name = "g", required = false) String group) {
+        MessageQueue.unsub(new Subscription(topic, group, consumerId, -1));
         return HttpResult.ok();
     }
 
@@ -1,39 +1,99 @@
 package cn.ipman.mq.server.server;
 
+import cn.ipman.mq.metadata.model.Assignment;
+import cn.ipman.mq.metadata.model.BatchResult;
 import cn.ipman.mq.metadata.model.Message;
 import cn.ipman.mq.metadata.model.Statistical;
 import cn.ipman.mq.metadata.model.Subscription;
-import cn.ipman.mq.server.store.Indexer;
+import cn.ipman.mq.server.store.FetchResult;
 import cn.ipman.mq.server.store.MessageStore;
+import cn.ipman.mq.server.store.OffsetStore;
+import cn.ipman.mq.server.store.TopicConfig;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static cn.ipman.mq.metadata.model.Constants.KEY_HEADER;
+import static cn.ipman.mq.metadata.model.Constants.OFFSET_HEADER;
 
 /**
  * 消息队列管理类，负责消息的发送和接收，以及订阅关系的管理。
+ * <p>
+ * 一个主题由多个分区组成, 每个分区有独立的存储。写入时由生产者指定分区,
+ * 未指定时按消息键的哈希选择分区, 没有消息键则轮询。
+ * 消费者以消费者组订阅主题, 消费位点按消费者组和分区记录, 分区在组内成员之间分配, 见 {@link ConsumerGroup}。
+ * <p>
+ * 主题可以在运行时创建和删除。默认服务端启动时不打开任何存储, 内置主题和磁盘上已有的主题在第一次被访问时才加载,
+ * 没有用到的主题不占用文件句柄和映射内存; 也可以在启动时通过 {@link #preload()} 并行加载所有主题。
+ * <p>
+ * 配置了保留策略的主题由后台清理线程定期删除最旧的段文件, 见 {@link MessageStore#cleanup(long, long)}。
  */
 public class MessageQueue {
 
-    // 所有消息队列的映射，主题为键，消息队列为值。
-    public static final Map<String, MessageQueue> queues = new HashMap<>();
+    // 所有已打开的消息队列，主题为键。多个IO线程和业务线程并发访问
+    public static final Map<String, MessageQueue> queues = new ConcurrentHashMap<>();
     private static final String TEST_TOPIC = "cn.ipman.test";
 
-    static {
-        // 初始化测试主题和订单主题的消息队列。
-        queues.put(TEST_TOPIC, new MessageQueue(TEST_TOPIC));
-        queues.put("im.order", new MessageQueue("im.order"));
-    }
+    // 内置主题，不需要创建即可使用
+    static final Set<String> DEFAULT_TOPICS = Set.of(TEST_TOPIC, "im.order");
+
+    // 合法的主题名, 主题名同时是存储目录名, 不能包含路径分隔符
+    private static final Pattern TOPIC_NAME = Pattern.compile("[A-Za-z0-9_][A-Za-z0-9._-]{0,248}");
+
+    // 所有主题共享的保留策略清理线程
+    private static final ScheduledExecutorService CLEANER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mq-retention-cleaner");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    // 订阅关系映射，消费者ID为键，订阅信息为值
-    Map<String, Subscription> subscriptions = new HashMap<>();
+    // 消费者组，组名为键
+    final Map<String, ConsumerGroup> groups = new ConcurrentHashMap<>();
+
+    // 消费者所在的消费者组，消费者ID为键，拉取和确认时据此找到消费者组的消费位点
+    final Map<String, ConsumerGroup> members = new ConcurrentHashMap<>();
 
     // 消息队列的主题
-    String topic;
+    final String topic;
+
+    // 主题的分区, 下标为分区号, 每个分区有自己的store和indexer
+    final Partition[] partitions;
+
+    // 消费者组的消费位点存储, 重启后据此恢复消费位点
+    final OffsetStore offsetStore;
 
-    // 消息存储实例，每个主题有一个独立的消息存储
-    MessageStore store; // 每个topic都有自己的store, 每个topic都有自己的indexer
+    // 是否删除所有消费者组都已确认过的段
+    final boolean retentionCommitted;
+
+    // 定期执行保留策略的任务, 没有配置保留策略时为null
+    final ScheduledFuture<?> cleanupTask;
+
+    // 没有消息键时轮询选择分区
+    final AtomicInteger roundRobin = new AtomicInteger(0);
+
+    // 不指定分区接收消息时, 从这个分区开始查找, 避免总是先消费分区0
+    final AtomicInteger receiveCursor = new AtomicInteger(0);
 
     /**
      * 创建一个新的消息队列实例。
@@ -41,9 +101,327 @@ public class MessageQueue {
      * @param topic 消息队列的主题。
      */
     public MessageQueue(String topic) {
-        this.topic = topic;
-        store = new MessageStore(topic);
-        store.init();
+        this(TopicConfig.of(topic));
+    }
+
+    /**
+     * 按主题配置创建消息队列, 加载所有分区和消费位点。
+     *
+     * @param config 主题配置。
+     */
+    public MessageQueue(TopicConfig config) {
+        this.topic = config.getTopic();
+        this.partitions = new Partition[config.getPartitions()];
+        // 各分区的存储互不依赖, 在恢复线程池上并行加载, 每个分区内的段文件也并行校验
+        List<ForkJoinTask<Partition>> tasks = new ArrayList<>(partitions.length);
+        for (int i = 0; i < partitions.length; i++) {
+            int id = i;
+            tasks.add(MessageStore.RECOVERY.submit(() -> new Partition(config, id)));
+        }
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = tasks.get(i).join();
+        }
+        this.offsetStore = new OffsetStore(config);
+        this.offsetStore.init();
+        this.retentionCommitted = config.isRetentionCommitted();
+        this.cleanupTask = config.hasRetention() ? CLEANER.scheduleWithFixedDelay(this::cleanupQuietly,
+                config.getRetentionCheckIntervalMs(), config.getRetentionCheckIntervalMs(), TimeUnit.MILLISECONDS) : null;
+    }
+
+    /**
+     * 关闭消息队列, 停止保留策略的清理, 写入还没有落盘的消费位点。
+     */
+    public void close() {
+        if (cleanupTask != null) {
+            cleanupTask.cancel(false);
+        }
+        offsetStore.close();
+    }
+
+    /**
+     * 对所有分区执行一次保留策略, 删除过期的段文件。
+     *
+     * @return 删除的段文件数量。
+     */
+    int cleanup() {
+        long now = System.currentTimeMillis();
+        int deleted = 0;
+        for (Partition partition : partitions) {
+            long committed = retentionCommitted ? committed(partition.getId()) : -1;
+            deleted += partition.getStore().cleanup(now, committed);
+        }
+        return deleted;
+    }
+
+    private void cleanupQuietly() {
+        try {
+            cleanup();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 所有消费者组在分区上最小的已确认位点, 包括当前没有成员、只在位点存储中保存过位点的消费者组。
+     *
+     * @param partition 分区号。
+     * @return 最小的已确认位点, 没有任何消费者组或有消费者组还没有确认过消息时返回-1。
+     */
+    long committed(int partition) {
+        long min = Long.MAX_VALUE;
+        for (ConsumerGroup group : groups.values()) {
+            min = Math.min(min, group.getSubscription().getOffset(partition));
+        }
+        for (String group : offsetStore.groups()) {
+            if (!groups.containsKey(group)) {
+                min = Math.min(min, offsetStore.offsets(group).getOrDefault(partition, -1L));
+            }
+        }
+        return min == Long.MAX_VALUE ? -1 : min;
+    }
+
+    /**
+     * 关闭消息队列及所有分区的存储, 删除主题和服务端停止时调用。
+     */
+    void closeAll() {
+        close();
+        for (Partition partition : partitions) {
+            partition.close();
+        }
+    }
+
+    /**
+     * 关闭所有消息队列及其分区的存储, 服务端停止时调用。
+     * 组提交刷盘线程在停止前完成最后一次提交, 等待落盘的发送请求都会得到响应; 当前段文件刷盘后释放映射。
+     * 关闭的队列仍留在 queues 中, 被唤醒的长轮询不会重新打开主题, 之后的写入会失败。
+     */
+    public static void shutdown() {
+        queues.values().forEach(MessageQueue::closeAll);
+    }
+
+    /**
+     * 并行打开内置主题和磁盘上已有的所有主题, 服务端启动时调用, 之后第一次访问主题时不再需要加载存储。
+     *
+     * @return 打开的主题数量。
+     */
+    public static int preload() {
+        Set<String> topics = new TreeSet<>(DEFAULT_TOPICS);
+        File[] dirs = new File(MessageStore.STORE_DIR).listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (TOPIC_NAME.matcher(dir.getName()).matches()) {
+                    topics.add(dir.getName());
+                }
+            }
+        }
+        return preload(topics);
+    }
+
+    /**
+     * 并行打开指定的主题。
+     * 打开主题时持有 queues 的桶锁, 因此主题在普通线程上打开, 不在恢复线程池上执行,
+     * 避免工作线程等待分区加载时窃取到另一个主题的任务, 在同一个线程上重入桶锁。
+     *
+     * @param topics 主题名。
+     * @return 打开的主题数量。
+     */
+    static int preload(Collection<String> topics) {
+        if (topics.isEmpty()) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        AtomicInteger index = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(topics.size(), Runtime.getRuntime().availableProcessors()), runnable -> {
+                    Thread thread = new Thread(runnable, "mq-preload-" + index.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            List<CompletableFuture<MessageQueue>> futures = topics.stream()
+                    .map(topic -> CompletableFuture.supplyAsync(() -> queue(topic), executor))
+                    .toList();
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } finally {
+            executor.shutdown();
+        }
+        System.out.println(" ===>> preload topics: " + topics.size() + " topics in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return topics.size();
+    }
+
+    /**
+     * 主题是否已经打开。访问已经打开的主题只读写内存, 不会创建文件、映射段文件或执行恢复。
+     *
+     * @param topic 消息的主题。
+     * @return 已经打开返回true。
+     */
+    public static boolean isOpen(String topic) {
+        return topic != null && queues.containsKey(topic);
+    }
+
+    /**
+     * 查找主题的消息队列, 内置主题和磁盘上已有的主题在第一次访问时打开。
+     *
+     * @param topic 消息的主题。
+     * @return 消息队列。
+     */
+    private static MessageQueue queue(String topic) {
+        MessageQueue messageQueue = queues.get(topic);
+        if (messageQueue != null) {
+            return messageQueue;
+        }
+        if (topic == null || !TOPIC_NAME.matcher(topic).matches()
+                || !DEFAULT_TOPICS.contains(topic) && !new File(MessageStore.STORE_DIR + topic).isDirectory()) {
+            throw new RuntimeException("Topic not found: " + topic);
+        }
+        // computeIfAbsent对同一个主题的并发访问只打开一次存储, 与创建、删除主题互斥
+        return queues.computeIfAbsent(topic, t -> open(TopicConfig.of(t)));
+    }
+
+    /**
+     * 打开主题的存储。分区数量只能增加, 磁盘上已有的分区比配置多时以磁盘为准,
+     * 运行时创建的主题重启后不需要再配置分区数量。
+     *
+     * @param config 主题配置。
+     * @return 消息队列。
+     */
+    private static MessageQueue open(TopicConfig config) {
+        File[] dirs = new File(MessageStore.STORE_DIR + config.getTopic())
+                .listFiles(f -> f.isDirectory() && f.getName().matches("\\d+"));
+        if (dirs != null && dirs.length > config.getPartitions()) {
+            config.setPartitions(dirs.length);
+        }
+        System.out.println(" ===>> open topic: " + config.getTopic() + ", partitions = " + config.getPartitions());
+        return new MessageQueue(config);
+    }
+
+    /**
+     * 创建主题。
+     *
+     * @param topic      主题名, 只能包含字母、数字和 . _ -。
+     * @param partitions 分区数量, 小于1时使用主题配置中的分区数量。
+     * @return 新建了主题返回true, 主题已经存在时返回false, 已有主题的分区数量不变。
+     */
+    public static boolean createTopic(String topic, int partitions) {
+        if (topic == null || !TOPIC_NAME.matcher(topic).matches()) {
+            throw new IllegalArgumentException("invalid topic: " + topic);
+        }
+        boolean[] created = new boolean[1];
+        queues.compute(topic, (t, queue) -> {
+            if (queue != null || new File(MessageStore.STORE_DIR + t).isDirectory()) {
+                return queue != null ? queue : open(TopicConfig.of(t));
+            }
+            TopicConfig config = TopicConfig.of(t);
+            if (partitions > 0) {
+                config.setPartitions(partitions);
+            }
+            created[0] = true;
+            return open(config);
+        });
+        System.out.println(" ===>> create topic: " + topic + ", created = " + created[0]);
+        return created[0];
+    }
+
+    /**
+     * 删除主题, 关闭主题的存储并删除它的所有消息、索引和消费位点。
+     * 删除时仍在访问该主题的请求会失败, 挂起的长轮询被唤醒后返回空结果。
+     *
+     * @param topic 主题名。
+     * @return 主题存在并被删除返回true。
+     */
+    public static boolean deleteTopic(String topic) {
+        if (topic == null || !TOPIC_NAME.matcher(topic).matches()) {
+            throw new IllegalArgumentException("invalid topic: " + topic);
+        }
+        boolean[] deleted = new boolean[1];
+        queues.compute(topic, (t, queue) -> {
+            if (queue != null) {
+                queue.closeAll();
+            }
+            Path dir = new File(MessageStore.STORE_DIR + t).toPath();
+            if (queue != null || Files.isDirectory(dir)) {
+                deleted[0] = true;
+                delete(dir);
+            }
+            return null;
+        });
+        System.out.println(" ===>> delete topic: " + topic + ", deleted = " + deleted[0]);
+        return deleted[0];
+    }
+
+    private static void delete(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 查找消费者所在的消费者组。
+     *
+     * @param consumerId 消费者的ID。
+     * @return 消费者组。
+     */
+    private ConsumerGroup group(String consumerId) {
+        ConsumerGroup group = members.get(consumerId);
+        if (group == null || !group.contains(consumerId)) {
+            throw new RuntimeException("Subscriptions not found for topic/consumerId = " + topic + "/" + consumerId);
+        }
+        return group;
+    }
+
+    /**
+     * 查找消费者所在消费者组的订阅关系。
+     *
+     * @param consumerId 消费者的ID。
+     * @return 订阅关系。
+     */
+    private Subscription subscription(String consumerId) {
+        return group(consumerId).getSubscription();
+    }
+
+    /**
+     * 查找分区。
+     *
+     * @param partition 分区号。
+     * @return 分区。
+     */
+    Partition partition(int partition) {
+        if (partition < 0 || partition >= partitions.length) {
+            throw new RuntimeException("Partition not found: " + topic + "/" + partition);
+        }
+        return partitions[partition];
+    }
+
+    /**
+     * 为没有指定分区的消息选择分区: 有消息键时按键的哈希选择, 同一个键总是落在同一个分区; 否则轮询。
+     * 客户端使用同样的规则, 因此由客户端还是服务端选择分区结果一致。
+     *
+     * @param message 要写入的消息。
+     * @return 分区号。
+     */
+    int partitionFor(Message<?> message) {
+        if (partitions.length == 1) {
+            return 0;
+        }
+        String key = message.getHeaders() == null ? null : message.getHeaders().get(KEY_HEADER);
+        int hash = key == null ? roundRobin.getAndIncrement() : key.hashCode();
+        return Math.floorMod(hash, partitions.length);
+    }
+
+    /**
+     * 获取主题的分区数量。
+     *
+     * @param topic 消息的主题。
+     * @return 分区数量。
+     */
+    public static int partitions(String topic) {
+        return queue(topic).partitions.length;
     }
 
     /**
@@ -55,109 +433,220 @@ public class MessageQueue {
      * @return 消息列表。
      */
     public static List<Message<?>> batchReceive(String topic, String consumerId, int size) {
-        MessageQueue messageQueue = queues.get(topic);
-        if (messageQueue == null) {
-            throw new RuntimeException("Topic not found: " + topic);
-        }
-        if (!messageQueue.subscriptions.containsKey(consumerId)) {
-            throw new RuntimeException("Subscriptions not found for topic/consumerId = " + topic + "/" + consumerId);
+        return batchReceive(topic, consumerId, -1, -1, size);
+    }
+
+    /**
+     * 从指定位置之后批量接收消息。
+     *
+     * @param topic      消息的主题。
+     * @param consumerId 消费者的ID。
+     * @param partition  分区号, 小于0时依次从分配给消费者的所有分区已确认的位置接收, 此时忽略after。
+     * @param after      客户端已拉取到的最后一条消息的offset, 小于0时从消费者组已确认的位置开始。
+     * @param size       批量接收的消息数量。
+     * @return 消息列表, 分区没有分配给该消费者时为空列表。
+     */
+    public static List<Message<?>> batchReceive(String topic, String consumerId, int partition, long after, int size) {
+        MessageQueue messageQueue = queue(topic);
+        ConsumerGroup group = messageQueue.group(consumerId);
+        Subscription subscription = group.getSubscription();
+        List<Message<?>> result = new ArrayList<>();
+        if (partition >= 0) {
+            if (!group.owns(consumerId, partition)) {
+                return result;
+            }
+            // 寻找消费者组的消费位置, 客户端带了拉取位置时从该位置继续
+            long offset = after < 0 ? subscription.getOffset(partition) : after;
+            messageQueue.receive(messageQueue.partition(partition), offset, size, result);
+            return result;
         }
-        // 寻找consumerId的消费位置
-        int offset = messageQueue.subscriptions.get(consumerId).getOffset();
-        int nextOffset = 0;
-        if (offset > -1) {
-            Indexer.Entry entry = Indexer.getEntry(topic, offset);
-            if (entry == null) return null;
-            nextOffset = messageQueue.store.nextOffset(offset, entry);
+        for (int p : group.assigned(consumerId)) {
+            if (result.size() >= size) break;
+            messageQueue.receive(messageQueue.partition(p), subscription.getOffset(p), size, result);
         }
-        // 批量获取数据
-        List<Message<?>> result = new ArrayList<>();
-        Message<?> receive = messageQueue.receive(nextOffset);
-        while (receive != null && result.size() < size) {
-            result.add(receive);
-            offset = Integer.parseInt(receive.getHeaders().get("X-offset"));
-            Indexer.Entry entry = Indexer.getEntry(topic, offset);
-            if (entry == null) {
+        return result;
+    }
+
+    /**
+     * 从分区中指定位置之后依次读取消息, 直到结果达到指定数量或没有更多消息。
+     *
+     * @param partition 分区。
+     * @param offset    已确认或已拉取的最后一条消息的offset。
+     * @param size      结果的最大数量。
+     * @param result    存放读取到的消息。
+     */
+    private void receive(Partition partition, long offset, int size, List<Message<?>> result) {
+        long nextOffset = partition.nextOffset(offset);
+        while (nextOffset >= 0 && result.size() < size) {
+            Message<?> receive = partition.getStore().read(nextOffset);
+            if (receive == null) {
                 break;
             }
+            result.add(receive);
+            offset = Long.parseLong(receive.getHeaders().get(OFFSET_HEADER));
             // 获取下一条消息
-            nextOffset = messageQueue.store.nextOffset(offset, entry);
-            receive = messageQueue.receive(nextOffset);
+            nextOffset = partition.getStore().nextOffset(offset);
         }
-        return result;
     }
 
+    /**
+     * 零拷贝批量拉取消息, 返回消息体在段文件中的只读切片, 服务端不解码消息。
+     * 与批量接收一样不移动消费位置, 由客户端ack最后一条消息的offset。
+     * 客户端并行处理消息时ack会落后于拉取, 此时由客户端带上自己的拉取位置, 避免重复拉取未确认的消息。
+     *
+     * @param topic      消息的主题。
+     * @param consumerId 消费者的ID。
+     * @param partition  分区号。
+     * @param after      客户端已拉取到的最后一条消息的offset, 小于0时从消费者组已确认的位置开始。
+     * @param size       批量拉取的消息数量。
+     * @param maxBytes   消息体总字节数上限。
+     * @return 拉取结果, 分区没有分配给该消费者时为空结果。
+     */
+    public static FetchResult fetch(String topic, String consumerId, int partition, long after, int size, int maxBytes) {
+        MessageQueue messageQueue = queue(topic);
+        ConsumerGroup group = messageQueue.group(consumerId);
+        Partition p = messageQueue.partition(partition);
+        if (!group.owns(consumerId, partition)) return new FetchResult(0);
+        Subscription subscription = group.getSubscription();
+        long offset = after < 0 ? subscription.getOffset(partition) : after;
+        long nextOffset = p.nextOffset(offset);
+        if (nextOffset < 0) return new FetchResult(0);
+        return p.getStore().fetch(nextOffset, size, maxBytes);
+    }
+
+    /**
+     * 获取分区当前的写入位置, 长轮询在拉取前记录它, 用于判断挂起前是否有新消息写入。
+     *
+     * @param topic     消息的主题。
+     * @param partition 分区号。
+     * @return 当前写入位置。
+     */
+    public static long pos(String topic, int partition) {
+        return queue(topic).partition(partition).getStore().pos();
+    }
+
+    /**
+     * 挂起一个等待新消息的长轮询请求, 分区有新消息写入时回调一次waiter。
+     * waiter在写入消息的线程上执行, 只应把真正的拉取转交给自己的线程, 不能阻塞。
+     *
+     * @param topic     消息的主题。
+     * @param partition 分区号。
+     * @param pos       拉取前记录的写入位置, 挂起前已有新消息写入时立即回调。
+     * @param waiter    唤醒回调。
+     */
+    public static void await(String topic, int partition, long pos, Runnable waiter) {
+        queue(topic).partition(partition).await(pos, waiter);
+    }
 
     /**
-     * 统计消息队列的状态。
+     * 取消挂起的长轮询请求, 在请求超时时调用。
+     *
+     * @param topic     消息的主题。
+     * @param partition 分区号。
+     * @param waiter    挂起时传入的唤醒回调。
+     */
+    public static void cancelAwait(String topic, int partition, Runnable waiter) {
+        MessageQueue messageQueue = queues.get(topic);
+        if (messageQueue != null && partition >= 0 && partition < messageQueue.partitions.length) {
+            messageQueue.partitions[partition].cancelAwait(waiter);
+        }
+    }
+
+    /**
+     * 统计消息队列的状态, 包括各分区的写入位置和尾部消息缓存的命中情况。
      *
      * @param topic      消息的主题。
      * @param consumerId 消费者的ID。
      * @return 消息队列的统计信息。
      */
     public static Statistical stat(String topic, String consumerId) {
-        MessageQueue queue = queues.get(topic);
-        Subscription subscription = queue.subscriptions.get(consumerId);
-        return new Statistical(subscription, queue.store.total(), queue.store.pos());
+        MessageQueue queue = queue(topic);
+        ConsumerGroup group = queue.members.get(consumerId);
+        Subscription subscription = group == null ? null : group.getSubscription();
+        long total = 0;
+        long position = 0;
+        long hits = 0;
+        long misses = 0;
+        long[] positions = new long[queue.partitions.length];
+        for (int i = 0; i < positions.length; i++) {
+            MessageStore store = queue.partitions[i].getStore();
+            total += store.total();
+            positions[i] = store.pos();
+            position += positions[i];
+            if (store.getTailCache() != null) {
+                hits += store.getTailCache().hits();
+                misses += store.getTailCache().misses();
+            }
+        }
+        return new Statistical(subscription, total, position, positions.length, positions, hits, misses);
     }
 
     /**
-     * 发送消息。
+     * 订阅消息, 消费者加入订阅信息中的消费者组, 消费者组不存在时创建。
      *
-     * @param message 要发送的消息。
-     * @return 消息的偏移量。
+     * @param subscription 订阅信息。
+     * @return 消费者的分区分配。
      */
-    public int send(Message<String> message) {
-        // 获取当前存储位置作为消息的偏移量
-        int offset = store.pos();
-        // 将偏移量记录在消息头中
-        message.getHeaders().put("X-offset", String.valueOf(offset));
-        // 写入消息到存储
-        offset = store.write(message);
-        return offset;
+    public Assignment subscribe(Subscription subscription) {
+        ConsumerGroup group = groups.computeIfAbsent(subscription.getGroup(), g -> newGroup(subscription));
+        members.put(subscription.getConsumerId(), group);
+        return group.join(subscription.getConsumerId());
     }
 
     /**
-     * 根据偏移量接收消息。
+     * 消费者组成员的心跳, 成员不在组内时重新加入。
      *
-     * @param offset 消息的偏移量。
-     * @return 消息对象。
+     * @param subscription 订阅信息。
+     * @return 消费者最新的分区分配。
      */
-    public Message<?> receive(int offset) {
-        return store.read(offset);
+    public Assignment refresh(Subscription subscription) {
+        ConsumerGroup group = groups.computeIfAbsent(subscription.getGroup(), g -> newGroup(subscription));
+        members.put(subscription.getConsumerId(), group);
+        return group.heartbeat(subscription.getConsumerId());
     }
 
     /**
-     * 订阅消息。
+     * 创建消费者组, 从位点存储恢复消费者组上次确认的位点。
      *
-     * @param subscription 订阅信息。
+     * @param subscription 第一个成员的订阅信息。
+     * @return 消费者组。
      */
-    public void subscribe(Subscription subscription) {
-        // 添加订阅关系
-        String consumerId = subscription.getConsumerId();
-        subscriptions.putIfAbsent(consumerId, subscription);
+    private ConsumerGroup newGroup(Subscription subscription) {
+        offsetStore.offsets(subscription.getGroup()).forEach(subscription::setOffset);
+        return new ConsumerGroup(subscription, partitions.length);
     }
 
     /**
-     * 取消订阅。
+     * 取消订阅, 消费者离开消费者组。消费者组没有成员后仍然保留, 组内的消费位点不会丢失。
      *
      * @param subscription 订阅信息。
      */
     private void unsubscribe(Subscription subscription) {
-        String consumerId = subscription.getConsumerId();
-        subscriptions.remove(consumerId);
+        ConsumerGroup group = members.remove(subscription.getConsumerId());
+        if (group != null) {
+            group.leave(subscription.getConsumerId());
+        }
     }
 
     /**
      * 订阅消息的公共接口。
      *
      * @param subscription 订阅信息。
+     * @return 消费者的分区分配。
      */
-    public static void sub(Subscription subscription) {
-        MessageQueue messageQueue = queues.get(subscription.getTopic());
+    public static Assignment sub(Subscription subscription) {
         System.out.println(" ===>> sub: subscription = " + subscription);
-        if (messageQueue == null) throw new RuntimeException("topic not found");
-        messageQueue.subscribe(subscription);
+        return queue(subscription.getTopic()).subscribe(subscription);
+    }
+
+    /**
+     * 消费者组成员心跳的公共接口。
+     *
+     * @param subscription 订阅信息。
+     * @return 消费者最新的分区分配。
+     */
+    public static Assignment heartbeat(Subscription subscription) {
+        return queue(subscription.getTopic()).refresh(subscription);
     }
 
     /**
@@ -175,15 +664,31 @@ public class MessageQueue {
     /**
      * 发送消息的公共接口。
      *
-     * @param topic   消息的主题。
-     * @param message 要发送的消息。
-     * @return 消息的偏移量。
+     * @param topic     消息的主题。
+     * @param partition 分区号, 小于0时按消息键或轮询选择分区。
+     * @param message   要发送的消息。
+     * @return 满足刷盘策略后完成的future, 结果为消息在分区内的偏移量。
      */
-    public static int send(String topic, Message<String> message) {
-        MessageQueue messageQueue = queues.get(topic);
-        System.out.println(" ===>> send: topic/message = " + topic + "/" + message);
-        if (messageQueue == null) throw new RuntimeException("topic not found");
-        return messageQueue.send(message);
+    public static CompletableFuture<Long> send(String topic, int partition, Message<String> message) {
+        System.out.println(" ===>> send: topic/partition/message = " + topic + "/" + partition + "/" + message);
+        MessageQueue messageQueue = queue(topic);
+        int p = partition < 0 ? messageQueue.partitionFor(message) : partition;
+        return messageQueue.partition(p).send(message);
+    }
+
+    /**
+     * 批量发送消息的公共接口, 整批消息写入同一个分区。
+     *
+     * @param topic     消息的主题。
+     * @param partition 分区号, 小于0时按第一条消息的键或轮询选择分区。
+     * @param messages  要发送的消息。
+     * @return 满足刷盘策略后完成的future, 结果为写入的分区和每条消息的偏移量。
+     */
+    public static CompletableFuture<BatchResult> batchSend(String topic, int partition, List<Message<String>> messages) {
+        System.out.println(" ===>> batch send: topic/partition/size = " + topic + "/" + partition + "/" + messages.size());
+        MessageQueue messageQueue = queue(topic);
+        int p = partition >= 0 || messages.isEmpty() ? Math.max(partition, 0) : messageQueue.partitionFor(messages.get(0));
+        return messageQueue.partition(p).batchSend(messages).thenApply(offsets -> BatchResult.of(p, offsets));
     }
 
     /**
@@ -191,76 +696,92 @@ public class MessageQueue {
      *
      * @param topic      消息的主题。
      * @param consumerId 消费者的ID。
+     * @param partition  分区号。
      * @param offset     消息的偏移量。
      * @return 消息对象。
      */
-    public static Message<?> receive(String topic, String consumerId, int offset) {
-        MessageQueue messageQueue = queues.get(topic);
-        if (messageQueue == null) throw new RuntimeException("topic not found");
-        if (messageQueue.subscriptions.containsKey(consumerId)) {
-            return messageQueue.receive(offset);
-        }
-        throw new RuntimeException("subscriptions not found for topic/consumerId = " + topic + "/" + consumerId);
+    public static Message<?> receive(String topic, String consumerId, int partition, long offset) {
+        MessageQueue messageQueue = queue(topic);
+        messageQueue.subscription(consumerId);
+        return messageQueue.partition(partition).getStore().read(offset);
     }
 
     /**
      * 接收消息，不传入偏移量。
+     * 从分配给消费者的各分区已确认的位置之后查找下一条消息, 每次从不同的分区开始查找。
      *
      * @param topic      消息的主题。
      * @param consumerId 消费者的ID。
-     * @return 消息对象。
+     * @return 消息对象, 所有分区都没有新消息时返回null。
      */
     public static Message<?> receive(String topic, String consumerId) {
-        MessageQueue messageQueue = queues.get(topic);
-        if (messageQueue == null) throw new RuntimeException("topic not found");
-        if (messageQueue.subscriptions.containsKey(consumerId)) {
-
+        MessageQueue messageQueue = queue(topic);
+        ConsumerGroup group = messageQueue.group(consumerId);
+        Subscription subscription = group.getSubscription();
+        int[] assigned = group.assigned(consumerId);
+        int start = messageQueue.receiveCursor.getAndIncrement();
+        for (int i = 0; i < assigned.length; i++) {
+            Partition partition = messageQueue.partitions[assigned[Math.floorMod(start + i, assigned.length)]];
             // 这个offset来源于客户端ack
-            int offset = messageQueue.subscriptions.get(consumerId).getOffset();
-            int nextOffset = 0;
-            if (offset > -1) {
-                System.out.println(" ===>> receive: start = " + topic + "/" + consumerId + "/" + offset);
-                Indexer.Entry entry = Indexer.getEntry(topic, offset);
-                if (entry == null) return null;
-                nextOffset = messageQueue.store.nextOffset(offset, entry) ;
-            }
+            long offset = subscription.getOffset(partition.getId());
+            long nextOffset = partition.nextOffset(offset);
+            if (nextOffset < 0) continue;
 
             // 拿到偏移量,再获取数据
-            Message<?> receive = messageQueue.receive(nextOffset);
-            System.out.println(" ===>> receive: topic/cid/idx = " + topic + "/" + consumerId + "/" + offset);
+            Message<?> receive = partition.getStore().read(nextOffset);
+            System.out.println(" ===>> receive: topic/cid/partition/idx = " + topic + "/" + consumerId
+                    + "/" + partition.getId() + "/" + offset);
             System.out.println(" ===>> receive: message = " + receive);
-            return receive;
-
+            if (receive != null) {
+                return receive;
+            }
         }
-        throw new RuntimeException("subscriptions not found for topic/consumerId = " + topic + "/" + consumerId);
+        return null;
     }
 
 
     /**
-     * 确认消息消费并更新消费者偏移量。
+     * 确认消息消费并更新消费者组在分区上的偏移量。
+     * 重新分配之后, 原来的成员仍可以确认它已经处理完的消息, 偏移量只会前进。
      *
      * @param topic      消息的主题。
      * @param consumerId 消费者的ID。
+     * @param partition  分区号。
      * @param offset     消息的偏移量。
      * @return 更新后的偏移量。
      */
-    public static int ack(String topic, String consumerId, int offset) {
-        MessageQueue messageQueue = queues.get(topic);
-        if (messageQueue == null) throw new RuntimeException("topic not found");
+    public static long ack(String topic, String consumerId, int partition, long offset) {
+        MessageQueue messageQueue = queue(topic);
+        ConsumerGroup group = messageQueue.group(consumerId);
+        Subscription subscription = group.getSubscription();
+        Partition p = messageQueue.partition(partition);
 
-        if (messageQueue.subscriptions.containsKey(consumerId)) {
-            Subscription subscription = messageQueue.subscriptions.get(consumerId);
+        // 检查偏移量是否有效, 并发的确认之间用CAS推进订阅的偏移量, 偏移量不会回退
+        if (offset < p.getStore().limit() && subscription.advanceOffset(partition, offset)) {
+            System.out.println(" ===>> ack: topic/cid/partition/offset = " + topic + "/" + consumerId
+                    + "/" + partition + "/" + offset);
+            messageQueue.offsetStore.commit(group.getGroup(), partition, offset);
+            return offset;
+        }
+        return -1;
+    }
 
-            // 检查偏移量是否有效并更新订阅的偏移量
-            int maxOffset = (messageQueue.store.getCurrentFileIndex() + 1) * MessageStore.LEN;
-            if (offset > subscription.getOffset() && offset < maxOffset) {
-                System.out.println(" ===>> ack: topic/cid/offset = " + topic + "/" + consumerId + "/" + offset);
-                subscription.setOffset(offset);
-                return offset;
+    /**
+     * 批量提交消费者组在多个分区上的位点, 客户端攒批后一次请求提交。
+     *
+     * @param topic      消息的主题。
+     * @param consumerId 消费者的ID。
+     * @param offsets    分区号为键的位点。
+     * @return 位点前进了的分区数量。
+     */
+    public static int commit(String topic, String consumerId, Map<Integer, Long> offsets) {
+        int committed = 0;
+        for (Map.Entry<Integer, Long> entry : offsets.entrySet()) {
+            if (ack(topic, consumerId, entry.getKey(), entry.getValue()) >= 0) {
+                committed++;
             }
-            return -1;
         }
-        throw new RuntimeException("subscriptions not found for topic/consumerId = " + topic + "/" + consumerId);
+        return committed;
     }
 
 }
@@ -1,21 +1,13 @@
 package cn.ipman.mq.server.server;
 
+import cn.ipman.mq.metadata.protocol.NettyFrameDecoder;
+import cn.ipman.mq.metadata.protocol.NettyFrameEncoder;
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
-
-import java.nio.charset.StandardCharsets;
-
-import static cn.ipman.mq.metadata.model.Constants.DELIMITER;
-import static cn.ipman.mq.metadata.model.Constants.MAX_FRAME_LENGTH;
 
 
 /**
@@ -28,6 +20,11 @@ import static cn.ipman.mq.metadata.model.Constants.MAX_FRAME_LENGTH;
  */
 public class NettyMQServer {
 
+    /**
+     * 帧编码器无状态, 所有通道共享一个实例。
+     */
+    private static final NettyFrameEncoder FRAME_ENCODER = new NettyFrameEncoder();
+
     /**
      * 服务器监听端口。
      */
@@ -40,6 +37,10 @@ public class NettyMQServer {
      * Worker线程组的线程数，负责处理网络IO事件。
      */
     int workerThreads;
+    /**
+     * 请求处理流水线, Worker线程只做网络IO, 业务处理在流水线的执行器上进行。
+     */
+    RequestPipeline pipeline;
 
     /**
      * 构造函数初始化服务器的端口和线程数。
@@ -47,11 +48,13 @@ public class NettyMQServer {
      * @param port       服务器监听端口
      * @param bossThreads    Boss线程组的线程数
      * @param workerThreads  Worker线程组的线程数
+     * @param pipeline       请求处理流水线
      */
-    public NettyMQServer(int port, int bossThreads, int workerThreads) {
+    public NettyMQServer(int port, int bossThreads, int workerThreads, RequestPipeline pipeline) {
         this.port = port;
         this.bossThreads = bossThreads;
         this.workerThreads  = workerThreads;
+        this.pipeline = pipeline;
     }
 
     /**
@@ -85,11 +88,9 @@ public class NettyMQServer {
                         protected void initChannel(SocketChannel ch) {
                             // 初始化通道的处理器，包括解码器和自定义处理器
                             ChannelPipeline p = ch.pipeline();
-                            ByteBuf delimiter = Unpooled.copiedBuffer(DELIMITER.getBytes(StandardCharsets.UTF_8));
-                            p.addLast(new DelimiterBasedFrameDecoder(MAX_FRAME_LENGTH, delimiter));
-                            p.addLast(new StringDecoder());
-                            p.addLast(new StringEncoder());
-                            p.addLast(new NettyMQServerHandler());
+                            p.addLast(new NettyFrameDecoder());
+                            p.addLast(FRAME_ENCODER);
+                            p.addLast(new NettyMQServerHandler(pipeline));
                         }
                     });
 
@@ -102,6 +103,7 @@ public class NettyMQServer {
             // 关闭线程组
             workerGroup.shutdownGracefully();
             bossGroup.shutdownGracefully();
+            pipeline.shutdown();
         }
     }
 }
\ No newline at end of file
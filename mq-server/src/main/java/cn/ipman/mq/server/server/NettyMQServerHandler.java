@@ -1,22 +1,66 @@
 package cn.ipman.mq.server.server;
 
 import cn.ipman.mq.metadata.model.*;
+import cn.ipman.mq.metadata.protocol.NettyFrame;
+import cn.ipman.mq.metadata.protocol.OpCode;
+import cn.ipman.mq.server.store.FetchResult;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.TypeReference;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 
-
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static cn.ipman.mq.metadata.model.Constants.DELIMITER;
+import static cn.ipman.mq.metadata.model.Constants.FETCH_MAX_WAIT;
+import static cn.ipman.mq.metadata.model.Constants.MAX_FRAME_LENGTH;
 
 /**
  * MQ服务器的Netty处理程序适配器。
  * 该类负责处理Netty通道中的入站事件，主要是解析客户端发送的消息并进行相应的业务处理。
+ * <p>
+ * IO线程只负责解帧和写响应, 业务处理按操作码交给 {@link RequestPipeline} 的执行器。
+ * 每个通道一个处理器实例, 通道的在途请求数达到高水位时关闭autoRead, 不再从该连接读取新请求,
+ * 回落到低水位后重新打开, 把服务端的压力反馈给客户端的TCP窗口。
+ * 挂起的长轮询不占用执行器, 不计入在途请求数, 被唤醒重新排队时才再次计入。
  */
 public class NettyMQServerHandler extends ChannelInboundHandlerAdapter {
 
+    // 零拷贝拉取默认的消息体总字节数上限
+    private static final int FETCH_MAX_BYTES = 1024 * 1024;
+    // 零拷贝拉取一次最多返回的消息条数, 客户端请求更多时按上限返回
+    private static final int FETCH_MAX_MESSAGES = 10_000;
+    // 零拷贝拉取响应中索引表开头的 count(4)
+    private static final int FETCH_COUNT_SIZE = 4;
+    // 零拷贝拉取响应中每条消息的 offset(8) 和 length(4)
+    private static final int FETCH_ENTRY_SIZE = 12;
+
+    private final RequestPipeline pipeline;
+
+    /**
+     * 当前通道排队或正在执行器上处理、还没有响应的请求数, 不包括挂起的长轮询。
+     */
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    /**
+     * 创建通道的处理器。
+     *
+     * @param pipeline 所有通道共享的请求处理流水线。
+     */
+    public NettyMQServerHandler(RequestPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
     /**
      * 当通道可读时调用，用于处理接收到的消息。
      *
@@ -26,52 +70,167 @@ public class NettyMQServerHandler extends ChannelInboundHandlerAdapter {
      */
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        // 解析请求消息
-        // 解析请求
-        String message = (String) msg;
-        System.out.println("Received message: " + message);
-        NettyRequest<?> request = JSON.parseObject(message, new TypeReference<NettyRequest<?>>() {
+        // 解析请求帧: 操作码对应action, headers即请求参数, 消息体为请求的JSON
+        NettyFrame frame = (NettyFrame) msg;
+        NettyRequest<String> request;
+        try {
+            OpCode opCode = frame.opCode();
+            request = new NettyRequest<>(frame.getRequestId(), opCode == null ? "unknown" : opCode.getAction(),
+                    frame.getHeaders(), frame.data(String.class));
+        } finally {
+            frame.release();
+        }
+        System.out.println("Received request: " + request);
+        byte opcode = frame.getOpcode();
+        OpCode opCode = frame.opCode();
+
+        if (inFlight.incrementAndGet() >= pipeline.getHighWater() && ctx.channel().config().isAutoRead()) {
+            ctx.channel().config().setAutoRead(false);
+        }
+        Executor executor = pipeline.executor(opCode, request.getParams().get("t"), request.getParams().get("p"));
+        submit(ctx, request, opcode, executor, () -> process(ctx, request, opCode, opcode));
+    }
+
+    /**
+     * 在业务执行器上处理请求。
+     *
+     * @param ctx     通道上下文。
+     * @param request 客户端的请求。
+     * @param opCode  请求的操作, 未知操作为null。
+     * @param opcode  请求的操作码。
+     */
+    private void process(ChannelHandlerContext ctx, NettyRequest<?> request, OpCode opCode, byte opcode) {
+        // 零拷贝拉取直接把段文件中的消息体写入通道, 不经过NettyResponse序列化;
+        // 带wait参数时为长轮询, 没有新消息就挂起请求, 直到有消息写入或超时
+        if (opCode == OpCode.FETCH) {
+            long wait = Math.min(FETCH_MAX_WAIT,
+                    Long.parseLong(request.getParams().getOrDefault("wait", "0")));
+            handleFetch(ctx, request, opcode, System.currentTimeMillis() + wait);
+            return;
+        }
+        // 处理请求并构造响应, send请求要等刷盘策略满足后才会完成
+        CompletableFuture<NettyResponse<?>> future;
+        try {
+            future = handlerRequest(request);
+        } catch (Exception e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((response, e) -> {
+            if (e != null) {
+                e.printStackTrace();
+                response = new NettyResponse<>(request.getTraceId(), 0, String.valueOf(e.getMessage()));
+            }
+            writeResponse(ctx, opcode, response);
         });
-        // 处理请求并构造响应
-        // 处理请求并返回
-        NettyResponse<?> response = handlerRequest(request);
-        // 将响应转换为JSON字符串并发送给客户端
-        String jsonResponse = JSON.toJSONString(response) + DELIMITER;
-        ctx.writeAndFlush(jsonResponse);
+    }
+
+    /**
+     * 把请求提交到执行器, 队列已满时直接响应服务繁忙。
+     *
+     * @param ctx      通道上下文。
+     * @param request  客户端的请求。
+     * @param opcode   请求的操作码。
+     * @param executor 执行请求的执行器。
+     * @param task     处理请求的任务。
+     */
+    private void submit(ChannelHandlerContext ctx, NettyRequest<?> request, byte opcode,
+                        Executor executor, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            writeResponse(ctx, opcode, new NettyResponse<>(request.getTraceId(), 0, "server busy"));
+        }
+    }
+
+    /**
+     * 一个请求已经响应, 在途请求数回落到低水位时恢复读取。
+     * autoRead只在通道的EventLoop上修改, 与 channelRead 中的关闭不会交错。
+     *
+     * @param ctx 通道上下文。
+     */
+    private void complete(ChannelHandlerContext ctx) {
+        if (inFlight.decrementAndGet() <= pipeline.getLowWater() && !ctx.channel().config().isAutoRead()) {
+            ctx.channel().eventLoop().execute(() -> {
+                if (inFlight.get() <= pipeline.getLowWater()) {
+                    ctx.channel().config().setAutoRead(true);
+                }
+            });
+        }
+    }
+
+    /**
+     * 将响应编码为响应帧并发送给客户端。
+     *
+     * @param ctx      通道上下文。
+     * @param opcode   请求的操作码。
+     * @param response 响应对象, data按消息体约定编码。
+     */
+    private void writeResponse(ChannelHandlerContext ctx, byte opcode, NettyResponse<?> response) {
+        try {
+            ByteBuf body = NettyFrame.encode(ctx.alloc(), response.getData());
+            ctx.writeAndFlush(NettyFrame.response(opcode, response.getTraceId(), response.getCode(), body));
+        } finally {
+            complete(ctx);
+        }
     }
 
     /**
      * 根据请求的动作处理请求。
      *
      * @param request 客户端的请求。
-     * @return 构造的响应对象。
+     * @return 构造的响应对象, 异步完成。
      */
-    private NettyResponse<?> handlerRequest(NettyRequest<?> request) {
-        return switch (request.getAction()) {
-            case "send" -> handleSend(request);
+    private CompletableFuture<NettyResponse<?>> handlerRequest(NettyRequest<?> request) {
+        if ("send".equals(request.getAction())) {
+            return handleSend(request);
+        }
+        if ("batch-send".equals(request.getAction())) {
+            return handleBatchSend(request);
+        }
+        return CompletableFuture.completedFuture(switch (request.getAction()) {
             case "receive" -> handleReceive(request);
             case "batch-receive" -> handleBatchReceive(request);
             case "ack" -> handleAck(request);
+            case "commit" -> handleCommit(request);
             case "sub" -> handleSubscribe(request);
             case "unsub" -> handleUnSubscribe(request);
+            case "heartbeat" -> handleHeartbeat(request);
             case "stat" -> handleStat(request);
+            case "partitions" -> handlePartitions(request);
+            case "create-topic" -> handleCreateTopic(request);
+            case "delete-topic" -> handleDeleteTopic(request);
             default -> new NettyResponse<>(request.getTraceId(), 0, "Unknown action");
-        };
+        });
     }
 
     /**
      * 处理发送消息的请求。
      *
      * @param request 包含发送消息请求信息的对象。
-     * @return 构造的响应对象。
+     * @return 构造的响应对象, 消息按刷盘策略落盘后完成。
      */
-    private NettyResponse<?> handleSend(NettyRequest<?> request) {
+    private CompletableFuture<NettyResponse<?>> handleSend(NettyRequest<?> request) {
         // 调用MessageQueue发送消息
         // 调用 MessageQueue.send 方法
         String topic = request.getParams().get("t");
-        String result = String.valueOf(MessageQueue.send(topic,
-                JSON.parseObject((String) request.getBody(), new TypeReference<Message<String>>(){})));
-        return new NettyResponse<>(request.getTraceId(), 1, "msg" + result);
+        return MessageQueue.send(topic, partition(request, -1),
+                        JSON.parseObject((String) request.getBody(), new TypeReference<Message<String>>(){}))
+                .thenApply(offset -> new NettyResponse<>(request.getTraceId(), 1, "msg" + offset));
+    }
+
+    /**
+     * 处理批量发送消息的请求, 请求体是消息的JSON数组, 整批写入同一个分区。
+     *
+     * @param request 包含批量发送消息请求信息的对象。
+     * @return 构造的响应对象, data为写入的分区、第一条和每条消息的偏移量, 整批按刷盘策略落盘后完成。
+     */
+    private CompletableFuture<NettyResponse<?>> handleBatchSend(NettyRequest<?> request) {
+        String topic = request.getParams().get("t");
+        List<Message<String>> messages = JSON.parseObject((String) request.getBody(),
+                new TypeReference<List<Message<String>>>() {
+                });
+        return MessageQueue.batchSend(topic, partition(request, -1), messages)
+                .thenApply(result -> new NettyResponse<>(request.getTraceId(), 1, result));
     }
 
     /**
@@ -101,11 +260,148 @@ public class NettyMQServerHandler extends ChannelInboundHandlerAdapter {
         // 调用 MessageQueue.batchReceive 方法
         String topic = request.getParams().get("t");
         String consumerId = request.getParams().get("cid");
+        long after = Long.parseLong(request.getParams().getOrDefault("offset", "-1"));
         int size = Integer.parseInt(request.getParams().getOrDefault("size", "1000"));
-        List<Message<?>> messages = MessageQueue.batchReceive(topic, consumerId, size);
+        List<Message<?>> messages = MessageQueue.batchReceive(topic, consumerId, partition(request, -1), after, size);
         return new NettyResponse<>(request.getTraceId(), 1, messages);
     }
 
+    /**
+     * 处理零拷贝批量拉取的请求, 运行在读线程池上。
+     * <p>
+     * 有新消息或已经到达截止时间时立即响应, 否则挂起请求: 主题有新消息写入或超时时,
+     * 重新提交到读线程池执行拉取, 挂起期间不占用任何线程。
+     *
+     * @param ctx      通道上下文。
+     * @param request  包含批量拉取请求信息的对象。
+     * @param opcode   请求的操作码。
+     * @param deadline 长轮询的截止时间, 不大于当前时间时不挂起。
+     */
+    private void handleFetch(ChannelHandlerContext ctx, NettyRequest<?> request, byte opcode, long deadline) {
+        if (!ctx.channel().isActive()) {
+            complete(ctx);
+            return;
+        }
+        try {
+            String topic = request.getParams().get("t");
+            int partition = partition(request, 0);
+            // 先记录写入位置再拉取, 挂起时据此发现拉取之后写入的消息
+            long pos = MessageQueue.pos(topic, partition);
+            FetchResult result = fetch(request);
+            long remaining = deadline - System.currentTimeMillis();
+            if (result.getCount() > 0 || remaining <= 0) {
+                // 消息体切片指向映射内存, 写完成(或失败)之后才释放映射引用
+                try {
+                    ctx.writeAndFlush(NettyFrame.response(opcode, request.getTraceId(), NettyFrame.CODE_OK,
+                            encodeFetch(ctx, result))).addListener(future -> result.release());
+                } catch (Exception e) {
+                    result.release();
+                    throw e;
+                }
+                complete(ctx);
+                return;
+            }
+            result.release();
+            PendingFetch pending = new PendingFetch(ctx, request, opcode, deadline);
+            pending.timeout = ctx.executor().schedule(() -> {
+                MessageQueue.cancelAwait(topic, partition, pending);
+                pending.run();
+            }, remaining, TimeUnit.MILLISECONDS);
+            MessageQueue.await(topic, partition, pos, pending);
+            // 挂起期间不占用执行器, 不计入在途请求, 否则长轮询多的连接会因为达到高水位而停止读取;
+            // 已经被唤醒时重新排队的请求另外计数, 两次修改的先后不影响结果
+            complete(ctx);
+        } catch (Exception e) {
+            e.printStackTrace();
+            writeResponse(ctx, opcode, new NettyResponse<>(request.getTraceId(), 0, String.valueOf(e.getMessage())));
+        }
+    }
+
+    /**
+     * 按请求参数执行一次零拷贝拉取。
+     *
+     * @param request 包含批量拉取请求信息的对象。
+     * @return 拉取结果。
+     */
+    private FetchResult fetch(NettyRequest<?> request) {
+        String topic = request.getParams().get("t");
+        String consumerId = request.getParams().get("cid");
+        long after = Long.parseLong(request.getParams().getOrDefault("offset", "-1"));
+        // 条数来自客户端, 先限制在合理范围内, 索引表的大小和结果数组都按它分配
+        int size = Math.max(1, Math.min(FETCH_MAX_MESSAGES,
+                Integer.parseInt(request.getParams().getOrDefault("size", "100"))));
+        // 整帧不能超过 MAX_FRAME_LENGTH, 扣除帧头、空的headers和索引表的开销
+        int budget = MAX_FRAME_LENGTH - NettyFrame.HEADER_SIZE - NettyFrame.EMPTY_HEADERS_SIZE
+                - FETCH_COUNT_SIZE - size * FETCH_ENTRY_SIZE;
+        int maxBytes = Math.min(budget,
+                Integer.parseInt(request.getParams().getOrDefault("maxBytes", String.valueOf(FETCH_MAX_BYTES))));
+        return MessageQueue.fetch(topic, consumerId, partition(request, 0), after, size, Math.max(maxBytes, 1));
+    }
+
+    /**
+     * 将拉取结果编码为响应帧的消息体。
+     * <p>
+     * 响应帧的消息体由一个小的索引表和多个消息体切片拼接而成:
+     * <pre>
+     * | count(4) | { offset(8) | length(4) } * count | body * count |
+     * </pre>
+     * 其中 body 是段文件中消息体(JSON)的只读切片, 直接包装成ByteBuf, 写入时通过gathering write从映射内存发送,
+     * 服务端不做任何解码和序列化。
+     *
+     * @param ctx    通道上下文, 用于分配缓冲区。
+     * @param result 拉取结果。
+     * @return 拼接好的响应消息体。
+     */
+    private ByteBuf encodeFetch(ChannelHandlerContext ctx, FetchResult result) {
+        int count = result.getCount();
+        ByteBuf table = ctx.alloc().ioBuffer(FETCH_COUNT_SIZE + count * FETCH_ENTRY_SIZE);
+        table.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            table.writeLong(result.getOffsets()[i]);
+            table.writeInt(result.getBodies()[i].remaining());
+        }
+        CompositeByteBuf body = ctx.alloc().compositeBuffer(count + 1);
+        body.addComponent(true, table);
+        for (int i = 0; i < count; i++) {
+            body.addComponent(true, Unpooled.wrappedBuffer(result.getBodies()[i]));
+        }
+        return body;
+    }
+
+    /**
+     * 挂起的长轮询拉取请求。
+     * 被新消息唤醒或超时时只触发一次, 重新计入在途请求并在读线程池上重新拉取; 超时计时使用所属通道的EventLoop。
+     * 唤醒可能发生在写线程上, 这里只增加计数, autoRead仍然只由EventLoop上的 channelRead 关闭。
+     */
+    private class PendingFetch implements Runnable {
+
+        final ChannelHandlerContext ctx;
+        final NettyRequest<?> request;
+        final byte opcode;
+        final long deadline;
+        final AtomicBoolean fired = new AtomicBoolean();
+        volatile ScheduledFuture<?> timeout;
+
+        PendingFetch(ChannelHandlerContext ctx, NettyRequest<?> request, byte opcode, long deadline) {
+            this.ctx = ctx;
+            this.request = request;
+            this.opcode = opcode;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            if (!fired.compareAndSet(false, true)) {
+                return;
+            }
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            inFlight.incrementAndGet();
+            submit(ctx, request, opcode, pipeline.readPool(), () -> handleFetch(ctx, request, opcode, deadline));
+        }
+    }
+
     /**
      * 处理消息确认（ACK）的请求。
      *
@@ -117,24 +413,48 @@ public class NettyMQServerHandler extends ChannelInboundHandlerAdapter {
         // 调用 MessageQueue.ack 方法
         String topic = request.getParams().get("t");
         String consumerId = request.getParams().get("cid");
-        int offset = Integer.parseInt(request.getParams().get("offset"));
-        String result = String.valueOf(MessageQueue.ack(topic, consumerId, offset));
+        long offset = Long.parseLong(request.getParams().get("offset"));
+        String result = String.valueOf(MessageQueue.ack(topic, consumerId, partition(request, 0), offset));
         return new NettyResponse<>(request.getTraceId(), 1, result);
     }
 
     /**
-     * 处理订阅消息的请求。
+     * 处理批量提交消费位点的请求, 请求体是分区号到位点的JSON对象。
+     *
+     * @param request 包含提交请求信息的对象。
+     * @return 构造的响应对象, data为位点前进了的分区数量。
+     */
+    private NettyResponse<?> handleCommit(NettyRequest<?> request) {
+        String topic = request.getParams().get("t");
+        String consumerId = request.getParams().get("cid");
+        Map<Integer, Long> offsets = JSON.parseObject((String) request.getBody(),
+                new TypeReference<Map<Integer, Long>>() {
+                });
+        return new NettyResponse<>(request.getTraceId(), 1, MessageQueue.commit(topic, consumerId, offsets));
+    }
+
+    /**
+     * 处理订阅消息的请求, 消费者加入参数g指定的消费者组, 没有指定时单独成组。
      *
      * @param request 包含订阅消息请求信息的对象。
-     * @return 构造的响应对象。
+     * @return 构造的响应对象, data为消费者的分区分配。
      */
     private NettyResponse<?> handleSubscribe(NettyRequest<?> request) {
         // 调用MessageQueue订阅消息
         // 调用 MessageQueue.sub 方法
-        String topic = request.getParams().get("t");
-        String consumerId = request.getParams().get("cid");
-        MessageQueue.sub(new Subscription(topic, consumerId, -1));
-        return new NettyResponse<>(request.getTraceId(), 1, null);
+        Assignment assignment = MessageQueue.sub(subscription(request));
+        return new NettyResponse<>(request.getTraceId(), 1, assignment);
+    }
+
+    /**
+     * 处理消费者组成员心跳的请求。
+     *
+     * @param request 包含心跳请求信息的对象。
+     * @return 构造的响应对象, data为消费者最新的分区分配。
+     */
+    private NettyResponse<?> handleHeartbeat(NettyRequest<?> request) {
+        Assignment assignment = MessageQueue.heartbeat(subscription(request));
+        return new NettyResponse<>(request.getTraceId(), 1, assignment);
     }
 
     /**
@@ -146,9 +466,7 @@ public class NettyMQServerHandler extends ChannelInboundHandlerAdapter {
     private NettyResponse<?> handleUnSubscribe(NettyRequest<?> request) {
         // 调用MessageQueue取消订阅消息
         // 调用 MessageQueue.unsub 方法
-        String topic = request.getParams().get("t");
-        String consumerId = request.getParams().get("cid");
-        MessageQueue.unsub(new Subscription(topic, consumerId, -1));
+        MessageQueue.unsub(subscription(request));
         return new NettyResponse<>(request.getTraceId(), 1, null);
     }
 
@@ -167,6 +485,62 @@ public class NettyMQServerHandler extends ChannelInboundHandlerAdapter {
         return new NettyResponse<>(request.getTraceId(), 1, stat);
     }
 
+    /**
+     * 处理查询主题分区数量的请求。
+     *
+     * @param request 包含查询请求信息的对象。
+     * @return 构造的响应对象, data为分区数量。
+     */
+    private NettyResponse<?> handlePartitions(NettyRequest<?> request) {
+        String topic = request.getParams().get("t");
+        return new NettyResponse<>(request.getTraceId(), 1, MessageQueue.partitions(topic));
+    }
+
+    /**
+     * 处理创建主题的请求, 参数p为分区数量, 没有指定时使用主题配置。
+     *
+     * @param request 包含创建主题请求信息的对象。
+     * @return 构造的响应对象, data为是否新建了主题。
+     */
+    private NettyResponse<?> handleCreateTopic(NettyRequest<?> request) {
+        String topic = request.getParams().get("t");
+        return new NettyResponse<>(request.getTraceId(), 1, MessageQueue.createTopic(topic, partition(request, -1)));
+    }
+
+    /**
+     * 处理删除主题的请求。
+     *
+     * @param request 包含删除主题请求信息的对象。
+     * @return 构造的响应对象, data为主题是否存在并被删除。
+     */
+    private NettyResponse<?> handleDeleteTopic(NettyRequest<?> request) {
+        String topic = request.getParams().get("t");
+        return new NettyResponse<>(request.getTraceId(), 1, MessageQueue.deleteTopic(topic));
+    }
+
+    /**
+     * 根据请求参数构造订阅信息: t为主题, cid为消费者ID, g为消费者组。
+     *
+     * @param request 客户端的请求。
+     * @return 订阅信息。
+     */
+    private static Subscription subscription(NettyRequest<?> request) {
+        String consumerId = request.getParams().get("cid");
+        return new Subscription(request.getParams().get("t"), request.getParams().get("g"), consumerId, -1);
+    }
+
+    /**
+     * 读取请求中的分区号参数p。
+     *
+     * @param request      客户端的请求。
+     * @param defaultValue 没有分区参数时的默认值。
+     * @return 分区号。
+     */
+    private static int partition(NettyRequest<?> request, int defaultValue) {
+        String partition = request.getParams().get("p");
+        return partition == null ? defaultValue : Integer.parseInt(partition);
+    }
+
     /**
      * 当通道发生异常时调用。
      *
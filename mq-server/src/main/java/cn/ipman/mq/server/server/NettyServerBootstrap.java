@@ -5,6 +5,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextClosedEvent;
 import org.springframework.stereotype.Component;
 
 
@@ -36,7 +37,43 @@ public class NettyServerBootstrap implements ApplicationListener<ApplicationEven
     private int workerThreads;
 
     /**
-     * 处理应用事件。当应用准备就绪时，启动Netty服务器。
+     * 写通道数量, 同一个主题的写入落在同一个写通道上串行执行。
+     */
+    @Value("${mq.server.pipeline.write-threads:4}")
+    private int writeThreads;
+
+    /**
+     * 读线程数量, 负责拉取消息。
+     */
+    @Value("${mq.server.pipeline.read-threads:8}")
+    private int readThreads;
+
+    /**
+     * 每个执行器的队列容量, 队列满时请求直接返回服务繁忙。
+     */
+    @Value("${mq.server.pipeline.queue-capacity:10000}")
+    private int queueCapacity;
+
+    /**
+     * 单个连接在途请求数的高水位, 达到后暂停读取该连接。
+     */
+    @Value("${mq.server.pipeline.high-water:512}")
+    private int highWater;
+
+    /**
+     * 单个连接在途请求数的低水位, 回落后恢复读取该连接。
+     */
+    @Value("${mq.server.pipeline.low-water:256}")
+    private int lowWater;
+
+    /**
+     * 是否在启动时并行加载所有主题, 加载完成后才开始监听端口。关闭时主题在第一次访问时加载。
+     */
+    @Value("${mq.server.preload-topics:false}")
+    private boolean preloadTopics;
+
+    /**
+     * 处理应用事件。当应用准备就绪时，启动Netty服务器; 应用关闭时写入还没有落盘的消费位点。
      *
      * @param event 应用事件。如果事件为ApplicationReadyEvent类型，则启动Netty服务器。
      */
@@ -45,7 +82,12 @@ public class NettyServerBootstrap implements ApplicationListener<ApplicationEven
         if (event instanceof ApplicationReadyEvent) {
             // 在新线程中启动Netty服务器，以避免阻塞应用启动过程
             Thread thread = new Thread(() -> {
-                NettyMQServer server = new NettyMQServer(serverPort, bossThreads, workerThreads);
+                if (preloadTopics) {
+                    MessageQueue.preload();
+                }
+                RequestPipeline pipeline = new RequestPipeline(writeThreads, readThreads, queueCapacity,
+                        highWater, lowWater);
+                NettyMQServer server = new NettyMQServer(serverPort, bossThreads, workerThreads, pipeline);
                 try {
                     server.run();
                 } catch (Exception e) {
@@ -54,5 +96,8 @@ public class NettyServerBootstrap implements ApplicationListener<ApplicationEven
             });
             thread.start();
         }
+        if (event instanceof ContextClosedEvent) {
+            MessageQueue.shutdown();
+        }
     }
 }
@@ -0,0 +1,129 @@
+package cn.ipman.mq.server.server;
+
+import cn.ipman.mq.metadata.model.Message;
+import cn.ipman.mq.server.store.MessageStore;
+import cn.ipman.mq.server.store.TopicConfig;
+import lombok.Getter;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 主题的一个分区。
+ * <p>
+ * 每个分区拥有独立的消息存储(段文件、索引文件和写锁), 同一个主题的不同分区可以并行写入,
+ * 也可以放在不同的磁盘上。offset是消息在分区内的位置, 不同分区的offset互不相关。
+ *
+ * @Author IpMan
+ * @Date 2026/10/18 01:10
+ */
+public class Partition {
+
+    /**
+     * 分区号。
+     */
+    @Getter
+    final int id;
+
+    /**
+     * 分区的消息存储。
+     */
+    @Getter
+    final MessageStore store;
+
+    // 挂起等待本分区新消息的长轮询请求, 有消息写入时全部唤醒
+    final Queue<Runnable> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 创建并加载分区。
+     *
+     * @param config 主题配置。
+     * @param id     分区号。
+     */
+    public Partition(TopicConfig config, int id) {
+        this.id = id;
+        this.store = new MessageStore(config, id);
+        this.store.init();
+    }
+
+    /**
+     * 写入一条消息。
+     *
+     * @param message 要写入的消息。
+     * @return 满足刷盘策略后完成的future, 结果为消息在分区内的偏移量。
+     */
+    public CompletableFuture<Long> send(Message<String> message) {
+        // 写入消息到存储, 偏移量由存储在写入时分配并记录在记录头中
+        CompletableFuture<Long> future = store.writeAsync(message);
+        // 写入后消息已经可读, 立即唤醒挂起的长轮询, 不必等待刷盘
+        wakeup();
+        return future;
+    }
+
+    /**
+     * 批量写入消息, 整批只进入一次存储的写锁。
+     *
+     * @param messages 要写入的消息。
+     * @return 满足刷盘策略后完成的future, 结果为每条消息在分区内的偏移量。
+     */
+    public CompletableFuture<long[]> batchSend(List<Message<String>> messages) {
+        CompletableFuture<long[]> future = store.writeBatchAsync(messages);
+        wakeup();
+        return future;
+    }
+
+    /**
+     * 计算已确认位置之后下一条消息的offset。
+     * 已确认位置所在的段已经按保留策略删除时, 从保留的第一条消息开始。
+     *
+     * @param acked 已确认(或已拉取)的最后一条消息的offset, 小于0表示从头开始。
+     * @return 下一条消息的offset, 没有下一条消息时返回-1。
+     */
+    public long nextOffset(long acked) {
+        long start = store.startOffset();
+        return acked < start ? start : store.nextOffset(acked);
+    }
+
+    /**
+     * 挂起一个等待新消息的长轮询请求, 分区有新消息写入时回调一次waiter。
+     *
+     * @param pos    拉取前记录的写入位置, 挂起前已有新消息写入时立即回调。
+     * @param waiter 唤醒回调。
+     */
+    public void await(long pos, Runnable waiter) {
+        waiters.add(waiter);
+        // 拉取和挂起之间写入的消息不会再唤醒这个请求, 需要自己检查一次
+        if (store.pos() != pos) {
+            wakeup();
+        }
+    }
+
+    /**
+     * 取消挂起的长轮询请求。
+     *
+     * @param waiter 挂起时传入的唤醒回调。
+     */
+    public void cancelAwait(Runnable waiter) {
+        waiters.remove(waiter);
+    }
+
+    /**
+     * 关闭分区的存储, 唤醒挂起的长轮询请求让它们尽快返回。
+     */
+    public void close() {
+        store.close();
+        wakeup();
+    }
+
+    /**
+     * 唤醒所有挂起的长轮询请求。
+     */
+    void wakeup() {
+        Runnable waiter;
+        while ((waiter = waiters.poll()) != null) {
+            waiter.run();
+        }
+    }
+}
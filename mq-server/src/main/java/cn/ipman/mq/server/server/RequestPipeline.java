@@ -0,0 +1,133 @@
+package cn.ipman.mq.server.server;
+
+import cn.ipman.mq.metadata.protocol.OpCode;
+import lombok.Getter;
+
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 服务端的请求处理流水线, 把业务处理从Netty的IO线程上移走。
+ * <p>
+ * 请求按操作码分派到不同的执行器:
+ * <ul>
+ *     <li>写请求(send、batch-send)按主题和分区的哈希进入写通道, 每个写通道是一个单线程执行器,
+ *     同一个分区的写入串行执行, 一个分区的磁盘变慢不会阻塞其他通道上的分区;</li>
+ *     <li>读请求(receive、batch-receive、fetch)进入读线程池, 冷段文件的缺页只阻塞读线程;</li>
+ *     <li>主题的创建和删除(create-topic、delete-topic)要创建或删除文件, 也进入读线程池;</li>
+ *     <li>管理请求(ack、commit、sub、unsub、heartbeat、stat、partitions)访问已经打开的主题时只访问内存,
+ *     直接在IO线程上执行; 主题还没有打开时第一次访问要创建文件、映射段文件并恢复所有分区, 进入读线程池。</li>
+ * </ul>
+ * 所有执行器的队列都是有界的, 队列满时拒绝请求, 由调用方返回服务繁忙。
+ * 单个通道在途请求过多时由 {@link NettyMQServerHandler} 关闭该通道的autoRead, 在途请求回落后再打开。
+ *
+ * @Author IpMan
+ * @Date 2026/10/18 00:55
+ */
+public class RequestPipeline {
+
+    /**
+     * 在当前线程上直接执行, 用于管理请求。
+     */
+    private static final Executor DIRECT = Runnable::run;
+
+    private final ThreadPoolExecutor[] writeLanes;
+    private final ThreadPoolExecutor readPool;
+
+    /**
+     * 单个通道在途请求数达到该值时停止读取。
+     */
+    @Getter
+    private final int highWater;
+
+    /**
+     * 单个通道在途请求数回落到该值时恢复读取。
+     */
+    @Getter
+    private final int lowWater;
+
+    /**
+     * 创建请求处理流水线。
+     *
+     * @param writeThreads  写通道数量。
+     * @param readThreads   读线程数量。
+     * @param queueCapacity 每个执行器的队列容量。
+     * @param highWater     单个通道停止读取的在途请求数。
+     * @param lowWater      单个通道恢复读取的在途请求数。
+     */
+    public RequestPipeline(int writeThreads, int readThreads, int queueCapacity, int highWater, int lowWater) {
+        if (writeThreads < 1 || readThreads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("invalid pipeline size: write=" + writeThreads
+                    + ", read=" + readThreads + ", queue=" + queueCapacity);
+        }
+        if (lowWater < 0 || lowWater >= highWater) {
+            throw new IllegalArgumentException("invalid water marks: high=" + highWater + ", low=" + lowWater);
+        }
+        this.writeLanes = new ThreadPoolExecutor[writeThreads];
+        ThreadFactory writeFactory = threadFactory("mq-write");
+        for (int i = 0; i < writeThreads; i++) {
+            this.writeLanes[i] = executor(1, queueCapacity, writeFactory);
+        }
+        this.readPool = executor(readThreads, queueCapacity, threadFactory("mq-read"));
+        this.highWater = highWater;
+        this.lowWater = lowWater;
+    }
+
+    /**
+     * 根据操作码选择执行请求的执行器。
+     *
+     * @param opCode    请求的操作码, 未知操作为null。
+     * @param topic     请求的主题, 写请求据此选择写通道, 管理请求据此判断是否需要打开主题。
+     * @param partition 请求的分区参数, 没有指定分区时为null。
+     * @return 执行器, 提交任务时队列已满会抛出 RejectedExecutionException。
+     */
+    public Executor executor(OpCode opCode, String topic, String partition) {
+        if (opCode == null) {
+            return DIRECT;
+        }
+        return switch (opCode) {
+            case SEND, BATCH_SEND -> writeLanes[Math.floorMod(Objects.hash(topic, partition), writeLanes.length)];
+            case RECEIVE, BATCH_RECEIVE, FETCH, CREATE_TOPIC, DELETE_TOPIC -> readPool;
+            // preload-topics 关闭时主题在第一次访问时才打开, 不能在IO线程上执行
+            default -> MessageQueue.isOpen(topic) ? DIRECT : readPool;
+        };
+    }
+
+    /**
+     * 读线程池, 挂起的长轮询被唤醒后在这里重新拉取。
+     *
+     * @return 读线程池。
+     */
+    public Executor readPool() {
+        return readPool;
+    }
+
+    /**
+     * 停止所有执行器, 已经提交的请求仍会执行完成。
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : writeLanes) {
+            lane.shutdown();
+        }
+        readPool.shutdown();
+    }
+
+    private static ThreadPoolExecutor executor(int threads, int queueCapacity, ThreadFactory threadFactory) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger index = new AtomicInteger(0);
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
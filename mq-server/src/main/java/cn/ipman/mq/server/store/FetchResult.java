@@ -0,0 +1,81 @@
+package cn.ipman.mq.server.store;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量拉取的结果, 保存每条消息的逻辑偏移量和消息体在段文件中的只读切片。
+ * <p>
+ * 消息体切片直接指向 MappedByteBuffer, 不做拷贝也不做解码, 由网络层原样写入通道。
+ * 拉取结果持有切片所在段的映射引用, 发送完成后必须调用 {@link #release()}, 否则段被淘汰后映射无法解除。
+ *
+ * @Author IpMan
+ * @Date 2026/10/17 22:50
+ */
+@Getter
+public class FetchResult {
+
+    // 每条消息的逻辑偏移量
+    private final long[] offsets;
+    // 每条消息体(JSON)在段文件中的只读切片
+    private final ByteBuffer[] bodies;
+    // 实际拉取到的消息条数
+    private int count;
+    // 所有消息体的总字节数
+    private int bytes;
+    // 切片所在段的映射引用, 由this保护
+    @Getter(AccessLevel.NONE)
+    private List<MappedWindow.Mapping> mappings = new ArrayList<>(1);
+
+    public FetchResult(int size) {
+        this.offsets = new long[size];
+        this.bodies = new ByteBuffer[size];
+    }
+
+    /**
+     * 追加一条消息。
+     *
+     * @param offset 消息的逻辑偏移量。
+     * @param body   消息体的只读切片。
+     */
+    void add(long offset, ByteBuffer body) {
+        offsets[count] = offset;
+        bodies[count] = body;
+        count++;
+        bytes += body.remaining();
+    }
+
+    /**
+     * 持有一个段的映射引用, 直到结果被释放。
+     *
+     * @param mapping 已增加引用的映射。
+     */
+    synchronized void retain(MappedWindow.Mapping mapping) {
+        mappings.add(mapping);
+    }
+
+    /**
+     * 释放结果持有的映射引用, 之后不能再访问消息体切片。重复调用没有影响。
+     */
+    public void release() {
+        List<MappedWindow.Mapping> retained;
+        synchronized (this) {
+            retained = mappings;
+            mappings = List.of();
+        }
+        retained.forEach(MappedWindow.Mapping::release);
+    }
+
+    /**
+     * 是否已装满。
+     *
+     * @return 已达到请求的条数返回true。
+     */
+    boolean isFull() {
+        return count == offsets.length;
+    }
+}
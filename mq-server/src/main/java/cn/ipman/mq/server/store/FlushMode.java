@@ -0,0 +1,25 @@
+package cn.ipman.mq.server.store;
+
+/**
+ * 消息刷盘策略, 决定发送请求在什么时候可以被确认。
+ *
+ * @Author IpMan
+ * @Date 2026/10/17 21:30
+ */
+public enum FlushMode {
+
+    /**
+     * 异步刷盘: 写入映射内存即确认, 由操作系统择机落盘。吞吐最高, 宕机可能丢失最近的消息。
+     */
+    ASYNC,
+
+    /**
+     * 组提交: 由刷盘线程每隔固定时间或累计一定字节数统一force一次, 再批量确认这期间的发送请求。
+     */
+    GROUP_COMMIT,
+
+    /**
+     * 同步刷盘: 每条消息写入后立即force对应区域再确认。
+     */
+    SYNC
+}
@@ -0,0 +1,141 @@
+package cn.ipman.mq.server.store;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 组提交刷盘服务。
+ * <p>
+ * 发送请求写入映射内存后登记到等待队列, 刷盘线程每隔 flushIntervalMs 毫秒,
+ * 或未刷盘数据达到 flushBytes 字节时被提前唤醒, force一次已写入的全部数据,
+ * 然后统一完成所有已落盘的发送请求。多个请求共享一次fsync, 从而兼顾持久性和吞吐。
+ *
+ * @Author IpMan
+ * @Date 2026/10/17 21:35
+ */
+public class GroupCommitService implements Runnable {
+
+    private final MessageStore store;
+    private final int flushIntervalMs;
+    private final int flushBytes;
+
+    // 等待刷盘的发送请求
+    private final Queue<FlushRequest> requests = new ConcurrentLinkedQueue<>();
+    private final Object signal = new Object();
+    private boolean notified = false;
+
+    // 已经落盘的逻辑偏移量(不含)
+    private volatile long flushedOffset;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    /**
+     * 等待刷盘的发送请求。
+     *
+     * @param offset    消息的逻辑偏移量, 作为发送结果返回。
+     * @param endOffset 消息记录末尾的逻辑偏移量, 落盘位置超过它即可确认。
+     * @param future    刷盘完成后要完成的future。
+     */
+    record FlushRequest(long offset, long endOffset, CompletableFuture<Long> future) {
+    }
+
+    public GroupCommitService(MessageStore store, int flushIntervalMs, int flushBytes) {
+        this.store = store;
+        this.flushIntervalMs = flushIntervalMs;
+        this.flushBytes = flushBytes;
+    }
+
+    /**
+     * 启动刷盘线程, 启动前存储中已有的数据视为已落盘。
+     */
+    public void start() {
+        flushedOffset = store.pos();
+        running = true;
+        thread = new Thread(this, "mq-flusher-" + store.topic);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 登记一个等待刷盘的发送请求。
+     *
+     * @param offset    消息的逻辑偏移量。
+     * @param endOffset 消息记录末尾的逻辑偏移量。
+     * @return 落盘后完成的future, 结果为消息的逻辑偏移量。
+     */
+    public CompletableFuture<Long> submit(long offset, long endOffset) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        requests.add(new FlushRequest(offset, endOffset, future));
+        if (endOffset - flushedOffset >= flushBytes) {
+            wakeup();
+        }
+        return future;
+    }
+
+    /**
+     * 唤醒刷盘线程立即执行一次组提交。
+     */
+    public void wakeup() {
+        synchronized (signal) {
+            notified = true;
+            signal.notify();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                synchronized (signal) {
+                    if (!notified) {
+                        signal.wait(flushIntervalMs);
+                    }
+                    notified = false;
+                }
+                commit();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        // 退出前把剩余数据刷完
+        commit();
+    }
+
+    /**
+     * 执行一次组提交: force自上次提交以来写入的数据, 并完成已落盘的发送请求。
+     */
+    private void commit() {
+        long target = store.pos();
+        if (target > flushedOffset) {
+            store.force(flushedOffset, target);
+            flushedOffset = target;
+        }
+        long flushed = flushedOffset;
+        requests.removeIf(request -> {
+            if (request.endOffset() <= flushed) {
+                request.future().complete(request.offset());
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * 停止刷盘线程, 停止前会完成最后一次组提交。
+     */
+    public void shutdown() {
+        running = false;
+        wakeup();
+        if (thread != null) {
+            try {
+                thread.join(flushIntervalMs * 10L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
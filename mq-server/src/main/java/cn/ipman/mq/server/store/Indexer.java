@@ -1,130 +1,374 @@
 package cn.ipman.mq.server.store;
 
-import lombok.AllArgsConstructor;
-import lombok.Data;
-import lombok.Getter;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
+import lombok.SneakyThrows;
 
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
  * 索引器类，用于存储和检索消息的偏移量和长度信息。
- * 提供了根据主题和偏移量添加入口、根据主题获取所有入口、根据主题和偏移量获取特定入口的方法。
+ * <p>
+ * 每个主题的 {@link MessageStore} 持有一个索引器, 按段文件分段, 每段依次保存
+ * 每条记录在段内的位置和长度(各4字节, 共8字节一个条目)。记录按写入顺序追加, 段内位置单调递增,
+ * 因此按offset查找时先用 offset / segmentSize 定位段, 再在段内二分查找, 全程不分配对象。
+ * <p>
+ * 持久化: 指定目录时, 每个段的条目直接写在与段文件同名的 .idx 文件的内存映射中,
+ * 重启时映射 .idx 文件即可恢复索引, 只需校验和扫描索引之后的尾部数据; 未指定目录时条目保存在堆内存中。
+ * .idx 文件只在段文件写满时刷盘, 未刷盘的部分在重启时由数据文件重建。
+ * <p>
+ * 线程模型: 只有持有存储写锁的线程(或初始化线程)追加条目, 读线程无锁查找。
+ * 追加时先写条目再递增 volatile 的 size, 读线程只访问 size 以内的条目, 看到的一定是完整写入的数据。
  *
  * @Author IpMan
  * @Date 2024/7/6 20:37
  */
 public class Indexer {
 
-    // 存储主题与多个入口（偏移量、长度）的映射，用于快速检索。
-    static MultiValueMap<String, Entry> indexers = new LinkedMultiValueMap<>();
-    // 存储主题、偏移量与入口的映射，用于快速通过偏移量定位入口。
-    @Getter
-    static Map<String, Entry> mappings = new ConcurrentHashMap<>();
-    // 存储主题与多个文件段的映射，每个文件段包含文件索引和最大偏移量。
-    static MultiValueMap<String, FileSegment> fileSegments = new LinkedMultiValueMap<>();
-    // 偏移量占位符，用于构造唯一的键值对，方便检索。
-    public final static String OFFSET_PLACEHOLDER = "||__offset_key__||";
+    public final static String INDEX_FILE_FORMAT = ".idx";
+    // 每个条目: position(4) | length(4)
+    public final static int ENTRY_SIZE = 8;
+
+    // 堆内存索引每段初始可容纳的条目数, 写满后按倍数扩容
+    private static final int INITIAL_CAPACITY = 1024;
+    // .idx 文件初始映射的条目数, 写满后按倍数扩容重新映射
+    private static final int INITIAL_FILE_CAPACITY = 64 * 1024;
+
+    private final int segmentSize;
+    // .idx 文件所在目录, 为null时只在堆内存中建索引
+    private final String dir;
+    // 按段序号连续排列的段索引, 新增段时整体替换数组(写时复制), 读线程无需加锁
+    private volatile Segment[] segments = new Segment[0];
+    // 消息总数
+    private volatile long total = 0;
+
+    /**
+     * 单个段文件的索引。
+     */
+    public static final class Segment {
+        final int fileIndex;
+        // 对应的 .idx 文件, 为null表示堆内存索引
+        final File file;
+        ByteBuffer entries;
+        volatile int size = 0;
+        // 段文件写满后最后一条记录的末尾offset, -1表示仍在写入
+        volatile long maxOffset = -1;
+
+        Segment(int fileIndex, File file, int capacity) {
+            this.fileIndex = fileIndex;
+            this.file = file;
+            if (file == null) {
+                entries = ByteBuffer.allocate(capacity * ENTRY_SIZE);
+            } else {
+                long existing = file.exists() ? file.length() : 0;
+                entries = map(Math.max((int) existing, capacity * ENTRY_SIZE));
+            }
+        }
+
+        @SneakyThrows
+        private MappedByteBuffer map(int capacity) {
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+
+        void add(int position, int length) {
+            int n = size;
+            int index = n * ENTRY_SIZE;
+            if (index + ENTRY_SIZE > entries.capacity()) {
+                int capacity = entries.capacity() * 2;
+                if (file == null) {
+                    ByteBuffer next = ByteBuffer.allocate(capacity);
+                    next.put(entries.duplicate().clear());
+                    entries = next;
+                } else {
+                    // 同一文件的两个映射共享页缓存, 旧映射上的读线程仍能看到正确数据
+                    entries = map(capacity);
+                }
+            }
+            entries.putInt(index, position);
+            entries.putInt(index + 4, length);
+            size = n + 1;
+        }
+
+        /**
+         * 段内条目数。
+         *
+         * @return 条目数。
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * 第i个条目记录在段内的位置。
+         *
+         * @param i 条目序号。
+         * @return 段内位置。
+         */
+        public int position(int i) {
+            return entries.getInt(i * ENTRY_SIZE);
+        }
+
+        /**
+         * 第i个条目的记录长度。
+         *
+         * @param i 条目序号。
+         * @return 记录总长度。
+         */
+        public int length(int i) {
+            return entries.getInt(i * ENTRY_SIZE + 4);
+        }
+
+        int length(long position) {
+            int n = size;
+            ByteBuffer e = entries;
+            int low = 0, high = n - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int p = e.getInt(mid * ENTRY_SIZE);
+                if (p < position) {
+                    low = mid + 1;
+                } else if (p > position) {
+                    high = mid - 1;
+                } else {
+                    return e.getInt(mid * ENTRY_SIZE + 4);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * 统计 .idx 文件中已有的条目数。
+         * 条目按顺序写入, 之后的区域全为0, 已写满的段直接二分查找第一个空条目;
+         * 仍在写入的段可能因崩溃丢失中间的页, 逐条检查条目是否首尾相接。
+         *
+         * @param contiguous 是否逐条检查条目首尾相接。
+         * @return 有效条目数。
+         */
+        int count(boolean contiguous) {
+            int capacity = entries.capacity() / ENTRY_SIZE;
+            if (contiguous) {
+                int n = 0;
+                int expected = 0;
+                while (n < capacity && length(n) > 0 && position(n) == expected) {
+                    expected += length(n);
+                    n++;
+                }
+                return n;
+            }
+            int low = 0, high = capacity;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (length(mid) > 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * 丢弃第n条之后的条目, 并清零文件中残留的旧条目, 保证有效条目之后全为0。
+         *
+         * @param n 保留的条目数。
+         */
+        void truncate(int n) {
+            int capacity = entries.capacity() / ENTRY_SIZE;
+            for (int i = n; i < capacity; i++) {
+                if (entries.getLong(i * ENTRY_SIZE) != 0) {
+                    entries.putLong(i * ENTRY_SIZE, 0L);
+                }
+            }
+            size = n;
+        }
+
+        void force() {
+            if (entries instanceof MappedByteBuffer mapped) {
+                mapped.force(0, size * ENTRY_SIZE);
+            }
+        }
+    }
 
     /**
-     * 入口类，包含消息在文件中的偏移量、长度和文件索引。
+     * 构造函数, 只在堆内存中建索引。
+     *
+     * @param segmentSize 段文件大小, 用于把逻辑offset换算成段序号和段内位置。
      */
-    @AllArgsConstructor
-    @Data
-    public static class Entry {
-        int offset;
-        int length;
-        // 文件索引，用于定位消息在哪个文件中。
-        int fileIndex;
+    public Indexer(int segmentSize) {
+        this(segmentSize, null);
     }
 
     /**
-     * 文件段类，包含文件索引和该文件段的最大偏移量。
+     * 构造函数, 索引条目写入指定目录下的 .idx 文件。
+     *
+     * @param segmentSize 段文件大小。
+     * @param dir         .idx 文件所在目录, 为null时只在堆内存中建索引。
      */
-    @AllArgsConstructor
-    @Data
-    public static class FileSegment {
-        int fileIndex;
-        int maxOffset;
+    public Indexer(int segmentSize, String dir) {
+        this.segmentSize = segmentSize;
+        this.dir = dir;
     }
 
     /**
-     * 根据主题和偏移量生成唯一的键值，用于存储和检索入口。
+     * 打开段文件已有的索引。
+     * 只统计 .idx 中的条目数, 条目是否与数据文件一致由调用方校验, 不一致时调用 {@link #truncate(int, int)}。
      *
-     * @param topic 消息主题。
-     * @param offset 消息偏移量。
-     * @return 唯一的键值。
+     * @param fileIndex  文件索引, 必须大于已打开的所有段。
+     * @param contiguous 是否逐条检查条目首尾相接, 对可能在崩溃时仍在写入的段使用。
+     * @return 段索引。
      */
-    public static String getOffsetKey(String topic, int offset) {
-        return topic + OFFSET_PLACEHOLDER + offset;
+    public Segment open(int fileIndex, boolean contiguous) {
+        Segment segment = segment(fileIndex, true);
+        int n = segment.count(contiguous);
+        segment.size = n;
+        total = total + n;
+        return segment;
     }
 
     /**
-     * 添加入口到索引器中，同时在映射中记录偏移量到入口的映射。
+     * 丢弃段内第n条之后的条目。
      *
-     * @param topic 消息主题。
-     * @param offset 消息偏移量。
-     * @param length 消息长度。
-     * @param fileIndex 消息所在的文件索引。
+     * @param fileIndex 文件索引。
+     * @param n         保留的条目数。
      */
-    public static void addEntry(String topic, int offset, int length, int fileIndex) {
-        Entry entry = new Entry(offset, length, fileIndex);
-        indexers.add(topic, entry);
-        mappings.put(getOffsetKey(topic, offset), entry);
+    public void truncate(int fileIndex, int n) {
+        Segment segment = segment(fileIndex, false);
+        if (segment == null || n > segment.size) return;
+        total = total - (segment.size - n);
+        segment.truncate(n);
     }
 
     /**
-     * 添加文件段到索引器中。
+     * 添加一条记录的索引。offset必须大于之前添加的所有offset。
+     *
+     * @param offset 记录的逻辑偏移量。
+     * @param length 记录总长度。
+     */
+    public void addEntry(long offset, int length) {
+        int fileIndex = (int) (offset / segmentSize);
+        segment(fileIndex, true).add((int) (offset % segmentSize), length);
+        total = total + 1;
+    }
+
+    /**
+     * 标记段文件已写满, 记录该段最后一条记录的末尾offset, 用于消费时按offset切换文件。
+     * 已写满的段不再变化, 此时将其 .idx 文件刷盘。
      *
-     * @param topic 消息主题。
      * @param fileIndex 文件索引。
-     * @param maxPosition 该文件段的最大偏移量。
+     * @param maxOffset 该段最后一条记录末尾的逻辑偏移量。
      */
-    public static void addFileSegments(String topic, int fileIndex, int maxPosition) {
-        fileSegments.add(topic, new FileSegment(fileIndex, maxPosition));
+    public void seal(int fileIndex, long maxOffset) {
+        Segment segment = segment(fileIndex, true);
+        segment.force();
+        segment.maxOffset = maxOffset;
     }
 
     /**
-     * 根据主题和文件索引获取对应的文件段。
+     * 获取已写满段文件的末尾offset。
      *
-     * @param topic 消息主题。
      * @param fileIndex 文件索引。
-     * @return 对应的文件段，如果不存在则返回null。
+     * @return 段末尾的逻辑偏移量, 段不存在或仍在写入时返回-1。
      */
-    public static FileSegment getFileSegment(String topic, int fileIndex) {
-        if (fileSegments == null || !fileSegments.containsKey(topic)){
-            return null;
-        }
-        for (FileSegment fileSegment : fileSegments.get(topic)) {
-            if (fileSegment.getFileIndex() == fileIndex) {
-                return fileSegment;
-            }
+    public long maxOffset(int fileIndex) {
+        Segment segment = segment(fileIndex, false);
+        return segment == null ? -1 : segment.maxOffset;
+    }
+
+    /**
+     * 获取段内最后一条记录的段内位置。
+     *
+     * @param fileIndex 文件索引。
+     * @return 最后一条记录的段内位置, 段不存在或没有记录时返回-1。
+     */
+    public int lastPosition(int fileIndex) {
+        Segment segment = segment(fileIndex, false);
+        if (segment == null) return -1;
+        int n = segment.size;
+        return n == 0 ? -1 : segment.position(n - 1);
+    }
+
+    /**
+     * 丢弃fileIndex之前的所有段, 删除段文件时调用。调用方必须持有存储写锁, 与新增段互斥。
+     * 读线程仍可能持有旧的段数组, 只会读到已删除段的旧条目, 不会越界。
+     *
+     * @param fileIndex 保留的第一个段的文件索引。
+     */
+    public void trim(int fileIndex) {
+        Segment[] current = segments;
+        if (current.length == 0) return;
+        int n = Math.min(fileIndex - current[0].fileIndex, current.length);
+        if (n <= 0) return;
+        long removed = 0;
+        for (int i = 0; i < n; i++) {
+            removed += current[i].size;
         }
-        return null;
+        segments = Arrays.copyOfRange(current, n, current.length);
+        total = total - removed;
     }
 
     /**
-     * 根据主题获取所有入口。
+     * 根据offset获取记录长度。
      *
-     * @param topic 消息主题。
-     * @return 主题对应的入口列表。
+     * @param offset 记录的逻辑偏移量。
+     * @return 记录总长度, 该offset处没有记录时返回-1。
      */
-    public static List<Entry> getEntries(String topic) {
-        return indexers.get(topic);
+    public int length(long offset) {
+        if (offset < 0) return -1;
+        Segment segment = segment((int) (offset / segmentSize), false);
+        return segment == null ? -1 : segment.length(offset % segmentSize);
     }
 
     /**
-     * 根据主题和偏移量获取特定的入口。
+     * 按各段的条目数重新计算记录总数。并行恢复直接修改各段的索引, 全部完成后调用。
+     */
+    public void recount() {
+        long n = 0;
+        for (Segment segment : segments) {
+            n += segment.size;
+        }
+        total = n;
+    }
+
+    /**
+     * 获取所有段中的记录总数。
      *
-     * @param topic 消息主题。
-     * @param offset 消息偏移量。
-     * @return 对应的入口，如果不存在则返回null。
+     * @return 记录总数。
      */
-    public static Entry getEntry(String topic, int offset) {
-        return mappings.get(getOffsetKey(topic, offset));
+    public long total() {
+        return total;
     }
 
-}
\ No newline at end of file
+    private Segment segment(int fileIndex, boolean create) {
+        Segment[] current = segments;
+        if (current.length > 0) {
+            int i = fileIndex - current[0].fileIndex;
+            if (i >= 0 && i < current.length) {
+                return current[i];
+            }
+        }
+        if (!create) {
+            return null;
+        }
+        // 段序号只会递增, 新段总是追加在末尾; 中间缺失的段补齐为空段
+        int first = current.length > 0 ? current[0].fileIndex : fileIndex;
+        if (fileIndex < first) {
+            throw new IllegalStateException("index segment " + fileIndex + " is before first segment " + first);
+        }
+        Segment[] next = Arrays.copyOf(current, fileIndex - first + 1);
+        for (int i = current.length; i < next.length; i++) {
+            File file = dir == null ? null : new File(dir, (first + i) + INDEX_FILE_FORMAT);
+            // 段文件较小时按可容纳的最多记录数映射, 避免 .idx 文件比数据文件还大
+            int capacity = dir == null ? INITIAL_CAPACITY
+                    : Math.min(INITIAL_FILE_CAPACITY, segmentSize / MessageRecord.HEADER_SIZE + 1);
+            next[i] = new Segment(first + i, file, capacity);
+        }
+        segments = next;
+        return next[next.length - 1];
+    }
+}
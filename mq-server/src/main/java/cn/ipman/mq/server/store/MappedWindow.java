@@ -0,0 +1,325 @@
+package cn.ipman.mq.server.store;
+
+import lombok.Getter;
+import lombok.SneakyThrows;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分区段文件的映射窗口, 同时映射的段文件数量有上限, 超过时按最近最少使用解除映射。
+ * <p>
+ * 段文件在第一次访问时才映射, 正在写入的段被固定在窗口中, 不会被淘汰。
+ * 每个映射带有引用计数: 窗口持有一个引用, 读线程和正在发送的零拷贝切片各持有一个引用,
+ * 映射被淘汰或段文件被删除时只释放窗口的引用, 最后一个引用释放时才刷盘并显式解除映射,
+ * 因此不会有线程访问已经解除映射的内存, 也不必等GC回收映射。
+ * 淘汰的映射在窗口的锁内移除, 释放交给后台线程, 整段刷盘和解除映射不会阻塞持有写锁的写线程和其他读线程;
+ * 因此段被移出窗口时数据不一定已经落盘, 需要持久化的调用方要自己刷盘。
+ * <p>
+ * 窗口限制了分区占用的映射内存(RSS)和映射数量(vm.max_map_count), 不在窗口中的旧段由
+ * {@link MessageStore} 通过 FileChannel 的定位读读取。
+ *
+ * @Author IpMan
+ * @Date 2026/10/18 03:40
+ */
+public class MappedWindow {
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> clazz = Class.forName("sun.misc.Unsafe");
+            Field field = clazz.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = clazz.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            // 不支持显式解除映射时退回到由GC回收映射
+            System.out.println(" ===>> mapped window: explicit unmap not supported, " + e);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * 所有分区共享的释放线程, 释放被淘汰的映射。
+     */
+    private static final ExecutorService RELEASER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mq-segment-release");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String dir;
+    private final int segmentSize;
+
+    /**
+     * 最多同时映射的段文件数量。
+     */
+    @Getter
+    private final int capacity;
+
+    /**
+     * 已映射的段, 按访问顺序排列, 最旧的在前面。由this保护。
+     */
+    private final LinkedHashMap<Integer, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 固定在窗口中的段(正在写入的段), 不会被淘汰。由this保护。
+     */
+    private int pinned = -1;
+
+    /**
+     * 窗口是否已经关闭, 关闭后不再建立新的映射, 读取改用定位读。由this保护。
+     */
+    private boolean closed;
+
+    /**
+     * 一个段文件的映射。
+     */
+    public static final class Mapping {
+
+        @Getter
+        final int fileIndex;
+
+        @Getter
+        final MappedByteBuffer buffer;
+
+        // 窗口持有初始的一个引用, 降为0时解除映射, 之后不能再增加
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Mapping(int fileIndex, MappedByteBuffer buffer) {
+            this.fileIndex = fileIndex;
+            this.buffer = buffer;
+        }
+
+        boolean retain() {
+            int n;
+            do {
+                n = refs.get();
+                if (n == 0) {
+                    return false;
+                }
+            } while (!refs.compareAndSet(n, n + 1));
+            return true;
+        }
+
+        /**
+         * 释放一个引用, 最后一个引用释放时刷盘并解除映射。
+         */
+        public void release() {
+            if (refs.decrementAndGet() == 0) {
+                buffer.force();
+                unmap(buffer);
+            }
+        }
+    }
+
+    /**
+     * 创建映射窗口。
+     *
+     * @param dir         段文件所在目录。
+     * @param segmentSize 段文件大小。
+     * @param capacity    最多同时映射的段文件数量, 至少为2: 正在写入的段和刚写满的段。
+     */
+    public MappedWindow(String dir, int segmentSize, int capacity) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.capacity = Math.max(2, capacity);
+    }
+
+    /**
+     * 获取段文件的映射, 没有映射时立即映射, 必要时淘汰最久没有访问的段。
+     * 调用方用完后必须调用 {@link Mapping#release()}。
+     *
+     * @param fileIndex 文件索引。
+     * @return 已增加引用的映射, 段文件不存在或窗口已经关闭时返回null。
+     */
+    public Mapping acquire(int fileIndex) {
+        Mapping mapping;
+        List<Mapping> evicted;
+        synchronized (this) {
+            mapping = mappings.get(fileIndex);
+            if (mapping != null && mapping.retain()) {
+                return mapping;
+            }
+            if (closed) {
+                return null;
+            }
+            File file = new File(dir, fileIndex + MessageStore.STORE_FILE_FORMAT);
+            if (!file.exists()) {
+                return null;
+            }
+            mapping = new Mapping(fileIndex, map(file));
+            mapping.retain();
+            mappings.put(fileIndex, mapping);
+            evicted = evict();
+        }
+        retire(evicted);
+        return mapping;
+    }
+
+    /**
+     * 创建段文件、把文件长度设置为段大小并建立映射, 映射不放入窗口。
+     * 用于后台预分配下一个段, 切换时再通过 {@link #adopt(Mapping)} 放入窗口。
+     *
+     * @param fileIndex 文件索引。
+     * @return 持有一个引用的映射, 调用方不再使用时必须释放。
+     */
+    @SneakyThrows
+    public Mapping allocate(int fileIndex) {
+        File file = new File(dir, fileIndex + MessageStore.STORE_FILE_FORMAT);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < segmentSize) {
+                raf.setLength(segmentSize);
+            }
+        }
+        return new Mapping(fileIndex, map(file));
+    }
+
+    /**
+     * 把预分配的映射放入窗口, 作为正在写入的段固定在窗口中。
+     *
+     * @param mapping {@link #allocate(int)} 返回的映射, 它的引用转交给窗口。
+     * @return 同一个映射, 已经为调用方增加了一个引用。
+     */
+    public Mapping adopt(Mapping mapping) {
+        List<Mapping> evicted;
+        synchronized (this) {
+            Mapping old = mappings.put(mapping.fileIndex, mapping);
+            mapping.retain();
+            pinned = mapping.fileIndex;
+            evicted = evict();
+            if (old != null && old != mapping) {
+                evicted.add(old);
+            }
+        }
+        retire(evicted);
+        return mapping;
+    }
+
+    /**
+     * 获取已经映射的段, 不会新建映射。
+     *
+     * @param fileIndex 文件索引。
+     * @return 已增加引用的映射, 段不在窗口中时返回null。
+     */
+    public synchronized Mapping peek(int fileIndex) {
+        Mapping mapping = mappings.get(fileIndex);
+        return mapping != null && mapping.retain() ? mapping : null;
+    }
+
+    /**
+     * 把正在写入的段固定在窗口中, 之前固定的段恢复为普通的段。
+     *
+     * @param fileIndex 文件索引。
+     */
+    public void pin(int fileIndex) {
+        List<Mapping> evicted;
+        synchronized (this) {
+            pinned = fileIndex;
+            evicted = evict();
+        }
+        retire(evicted);
+    }
+
+    /**
+     * 从窗口中移除段, 段文件被删除前调用。正在使用的映射在最后一个引用释放后解除。
+     *
+     * @param fileIndex 文件索引。
+     */
+    public void remove(int fileIndex) {
+        Mapping mapping;
+        synchronized (this) {
+            mapping = mappings.remove(fileIndex);
+        }
+        if (mapping != null) {
+            mapping.release();
+        }
+    }
+
+    /**
+     * 当前映射的段数量。
+     *
+     * @return 映射数量。
+     */
+    public synchronized int size() {
+        return mappings.size();
+    }
+
+    /**
+     * 移除所有段, 存储关闭时调用。
+     */
+    public void close() {
+        List<Mapping> removed;
+        synchronized (this) {
+            closed = true;
+            removed = new ArrayList<>(mappings.values());
+            mappings.clear();
+        }
+        removed.forEach(Mapping::release);
+    }
+
+    /**
+     * 超过容量时按最近最少使用从窗口中移除段, 不释放映射。必须持有this。
+     *
+     * @return 被移除的映射, 由调用方在锁外通过 {@link #retire(List)} 释放。
+     */
+    private List<Mapping> evict() {
+        List<Mapping> evicted = new ArrayList<>(1);
+        Iterator<Map.Entry<Integer, Mapping>> iterator = mappings.entrySet().iterator();
+        while (mappings.size() > capacity && iterator.hasNext()) {
+            Map.Entry<Integer, Mapping> entry = iterator.next();
+            if (entry.getKey() != pinned) {
+                iterator.remove();
+                evicted.add(entry.getValue());
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * 在后台线程上释放窗口对被移除映射的引用, 最后一个引用释放时在那里刷盘并解除映射。
+     */
+    private static void retire(List<Mapping> evicted) {
+        if (!evicted.isEmpty()) {
+            RELEASER.execute(() -> evicted.forEach(Mapping::release));
+        }
+    }
+
+    @SneakyThrows
+    private MappedByteBuffer map(File file) {
+        // 映射建立后不再需要通道
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package cn.ipman.mq.server.store;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * 消息记录的二进制格式定义，负责记录头的编码、解析与校验。
+ * <p>
+ * V1 记录布局(大端序):
+ * <pre>
+ * | length(4) | crc32c(4) | magic(1) | flags(1) | timestamp(8) | offset(8) | body(length - 26) |
+ * </pre>
+ * length 为整条记录(含头部)的字节数; crc32c 覆盖 magic、flags、timestamp 和 body。
+ * offset 由写入位置唯一确定, 加载时直接与物理位置比对, 因此不纳入校验,
+ * 这样消息体的校验值可以在确定写入位置之前算好。
+ * <p>
+ * 兼容旧格式: 旧记录以10位ASCII数字作为长度前缀, 首字节必然是 '0'~'9';
+ * 而V1记录的 length 高位字节为0(单条记录远小于16MB), 据此逐条区分两种格式。
+ *
+ * @Author IpMan
+ * @Date 2026/10/17 20:10
+ */
+public final class MessageRecord {
+
+    // 当前记录格式版本
+    public static final byte MAGIC_V1 = 1;
+
+    // 记录头各字段的位置
+    public static final int LENGTH_POS = 0;
+    public static final int CRC_POS = 4;
+    public static final int MAGIC_POS = 8;
+    public static final int FLAGS_POS = 9;
+    public static final int TIMESTAMP_POS = 10;
+    public static final int OFFSET_POS = 18;
+    public static final int HEADER_SIZE = 26;
+
+    // 旧格式: 10位ASCII长度前缀, 长度值只包含消息体
+    public static final int LEGACY_HEADER_SIZE = 10;
+
+    private MessageRecord() {
+    }
+
+    /**
+     * 判断指定位置的记录是否为旧的ASCII长度前缀格式。
+     *
+     * @param buffer   数据缓冲区。
+     * @param position 记录起始位置。
+     * @return 是旧格式返回true。
+     */
+    public static boolean isLegacy(ByteBuffer buffer, int position) {
+        byte first = buffer.get(position);
+        return first >= '0' && first <= '9';
+    }
+
+    /**
+     * 记录头长度, 旧格式为10字节, V1格式为26字节。
+     *
+     * @param buffer   数据缓冲区。
+     * @param position 记录起始位置。
+     * @return 记录头长度。
+     */
+    public static int headerSize(ByteBuffer buffer, int position) {
+        return isLegacy(buffer, position) ? LEGACY_HEADER_SIZE : HEADER_SIZE;
+    }
+
+    /**
+     * 解析指定位置记录的总长度(含头部), 不做任何对象分配。
+     *
+     * @param buffer   数据缓冲区, 其limit视为可读边界。
+     * @param position 记录起始位置。
+     * @return 记录总长度; 0表示此处没有记录(文件尾部的空白区); -1表示记录头非法或记录越界。
+     */
+    public static int recordLength(ByteBuffer buffer, int position) {
+        int limit = buffer.limit();
+        if (position + LEGACY_HEADER_SIZE > limit) {
+            return 0;
+        }
+        int length;
+        if (isLegacy(buffer, position)) {
+            length = 0;
+            for (int i = 0; i < LEGACY_HEADER_SIZE; i++) {
+                byte b = buffer.get(position + i);
+                if (b < '0' || b > '9') return -1;
+                length = length * 10 + (b - '0');
+            }
+            if (length == 0) return -1;
+            length += LEGACY_HEADER_SIZE;
+        } else {
+            if (position + HEADER_SIZE > limit) {
+                return buffer.getInt(position) == 0 ? 0 : -1;
+            }
+            length = buffer.getInt(position + LENGTH_POS);
+            if (length == 0) return 0;
+            if (length < HEADER_SIZE) return -1;
+        }
+        return position + length > limit ? -1 : length;
+    }
+
+    /**
+     * 校验指定位置的记录是否完整。V1记录校验magic与crc32c; 旧格式没有校验码, 只检查消息体是JSON对象。
+     *
+     * @param buffer   数据缓冲区。
+     * @param position 记录起始位置。
+     * @param length   记录总长度, 来自 {@link #recordLength(ByteBuffer, int)}。
+     * @return 记录完整返回true。
+     */
+    public static boolean verify(ByteBuffer buffer, int position, int length) {
+        if (isLegacy(buffer, position)) {
+            return buffer.get(position + LEGACY_HEADER_SIZE) == '{'
+                    && buffer.get(position + length - 1) == '}';
+        }
+        if (buffer.get(position + MAGIC_POS) != MAGIC_V1) {
+            return false;
+        }
+        return checksum(buffer, position, length) == buffer.getInt(position + CRC_POS);
+    }
+
+    /**
+     * 计算V1记录的crc32c, 覆盖magic、flags、timestamp和消息体, 不含offset。
+     *
+     * @param buffer   数据缓冲区。
+     * @param position 记录起始位置。
+     * @param length   记录总长度。
+     * @return crc32c校验值。
+     */
+    public static int checksum(ByteBuffer buffer, int position, int length) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer view = buffer.duplicate();
+        view.limit(position + OFFSET_POS).position(position + MAGIC_POS);
+        crc.update(view);
+        view.limit(position + length).position(position + HEADER_SIZE);
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 读取V1记录中保存的逻辑偏移量。
+     *
+     * @param buffer   数据缓冲区。
+     * @param position 记录起始位置。
+     * @return 逻辑偏移量, 旧格式记录返回-1。
+     */
+    public static long offset(ByteBuffer buffer, int position) {
+        return isLegacy(buffer, position) ? -1 : buffer.getLong(position + OFFSET_POS);
+    }
+
+    /**
+     * 读取V1记录的写入时间戳。
+     *
+     * @param buffer   数据缓冲区。
+     * @param position 记录起始位置。
+     * @return 写入时间戳, 旧格式记录返回-1。
+     */
+    public static long timestamp(ByteBuffer buffer, int position) {
+        return isLegacy(buffer, position) ? -1 : buffer.getLong(position + TIMESTAMP_POS);
+    }
+}
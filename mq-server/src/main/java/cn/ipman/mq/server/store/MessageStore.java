@@ -13,29 +13,81 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import static cn.ipman.mq.metadata.model.Constants.OFFSET_HEADER;
+import static cn.ipman.mq.metadata.model.Constants.PARTITION_HEADER;
 
 /**
  * 消息存储类，用于存储和检索消息。
- * 使用MappedByteBuffer来映射文件到内存，以提高读写效率。
+ * 使用MappedByteBuffer来映射文件到内存，以提高读写效率; 同时映射的段文件数量由 {@link MappedWindow} 限制,
+ * 窗口之外的旧段使用 FileChannel 的定位读读取。
+ * 每个分区一个存储实例，段文件和索引文件位于 storage/主题/分区号/ 目录下。
  */
 public class MessageStore {
 
     String topic;
-    public static final int LEN = 1024 * 10;  // 10KB 每个文件的大小
+    // 分区号
+    @Getter
+    int partition;
+    // 分区的存储目录
+    String dir;
+    // 每个段文件的大小, 由主题配置决定, 已有段文件时以文件实际大小为准
+    @Getter
+    int segmentSize;
+    // 正在写入的段的映射, 写线程持有它的引用, 切换段文件时释放
     MappedByteBuffer mappedByteBuffer = null;
-    FileChannel channel = null;
+    MappedWindow.Mapping activeMapping = null;
+    // 读线程据此判断段是否在尾部
+    @Getter
+    volatile int currentFileIndex = 0;
+    // 保留的第一个段文件的索引, 更早的段已经按保留策略删除
+    @Getter
+    volatile int firstFileIndex = 0;
+    // 已写入数据末尾的逻辑偏移量, 刷盘线程会并发读取
+    volatile long currentOffset = 0;
+    // 已映射的段文件, 段大小在init时可能被已有文件修正, 因此在init中创建
     @Getter
-    int currentFileIndex = 0;
-    int currentOffset = 0;
-    Map<Integer, MappedByteBuffer> fileBuffers = new HashMap<>();
+    MappedWindow window;
+    long maxMappedBytes;
+    // 下一个段文件的后台预分配器, 不预分配时为null
+    @Getter
+    SegmentAllocator allocator;
+    boolean preallocate;
+    boolean preTouch;
+    // 刷盘策略
+    FlushMode flushMode;
+    // 组提交刷盘服务, 仅在 GROUP_COMMIT 策略下创建
+    GroupCommitService groupCommitService;
+    // 消息索引, 段大小在init时可能被已有文件修正, 因此在init中创建
+    Indexer indexer;
+    // 尾部消息缓存, 多个消费者组读取同一条消息时只解码一次; 容量为0时不缓存
+    @Getter
+    TailCache tailCache;
+    // 启动恢复时清零的不完整数据的字节数
+    @Getter
+    long droppedBytes;
+    // 消息的最长保留时间(ms)和每个分区最多保留的字节数, 小于等于0为不限制
+    long retentionMs;
+    long retentionBytes;
     public final static String STORE_DIR = "storage/";
+
+    /**
+     * 所有存储共享的恢复线程池, 启动时并行加载分区和校验段文件。
+     */
+    public static final ForkJoinPool RECOVERY = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("mq-recovery-" + thread.getPoolIndex());
+        return thread;
+    }, null, false);
     public final static String STORE_FILE_FORMAT = ".dat";
 
     /**
@@ -44,7 +96,53 @@ public class MessageStore {
      * @param topic 消息主题，用于消息的分类存储。
      */
     public MessageStore(String topic) {
-        this.topic = topic;
+        this(TopicConfig.of(topic));
+    }
+
+    /**
+     * 构造函数，按主题配置初始化消息存储。
+     *
+     * @param config 主题配置，包含段文件大小等存储参数。
+     */
+    public MessageStore(TopicConfig config) {
+        this(config, 0);
+    }
+
+    /**
+     * 构造函数，按主题配置初始化一个分区的消息存储。
+     *
+     * @param config    主题配置，包含段文件大小等存储参数。
+     * @param partition 分区号。
+     */
+    public MessageStore(TopicConfig config, int partition) {
+        this(config, partition, STORE_DIR);
+    }
+
+    /**
+     * 构造函数，在指定的存储根目录下初始化一个分区的消息存储。
+     *
+     * @param config    主题配置，包含段文件大小等存储参数。
+     * @param partition 分区号。
+     * @param storeDir  存储根目录, 分区目录为 存储根目录/主题/分区号。
+     */
+    public MessageStore(TopicConfig config, int partition, String storeDir) {
+        this.topic = config.getTopic();
+        this.partition = partition;
+        this.dir = new File(storeDir, topic + File.separator + partition).getPath();
+        this.segmentSize = config.getSegmentSize();
+        this.flushMode = config.getFlushMode();
+        this.retentionMs = config.getRetentionMs();
+        this.retentionBytes = config.getRetentionBytes();
+        this.maxMappedBytes = config.getMaxMappedBytes();
+        this.preallocate = config.isPreallocate();
+        this.preTouch = config.isPreTouch();
+        if (config.getTailCacheSize() > 0) {
+            this.tailCache = new TailCache(config.getTailCacheSize());
+        }
+        if (flushMode == FlushMode.GROUP_COMMIT) {
+            this.groupCommitService = new GroupCommitService(this,
+                    config.getFlushIntervalMs(), config.getFlushBytes());
+        }
     }
 
     /**
@@ -54,53 +152,164 @@ public class MessageStore {
      */
     @SneakyThrows
     public void init() {
-        File dir = new File(STORE_DIR + this.topic);
+        File dir = new File(this.dir);
         if (!dir.exists()) {
             dir.mkdirs();
         }
+        if (partition == 0) {
+            migrateLegacyFiles(dir);
+        }
         File[] files = dir.listFiles((d, name) -> name.endsWith(STORE_FILE_FORMAT));
-        if (files != null) {
+        if (files != null && files.length > 0) {
+            // 偏移量按段大小换算, 已有数据的主题必须沿用原来的段大小
+            int existingSize = (int) files[0].length();
+            if (existingSize > 0 && existingSize != segmentSize) {
+                System.out.println("topic " + topic + " keeps existing segment size "
+                        + existingSize + " instead of " + segmentSize);
+                segmentSize = existingSize;
+            }
+        }
+        indexer = new Indexer(segmentSize, dir.getPath());
+        window = new MappedWindow(dir.getPath(), segmentSize,
+                (int) Math.min(Integer.MAX_VALUE, maxMappedBytes / segmentSize));
+        if (preallocate) {
+            allocator = new SegmentAllocator(window, preTouch);
+        }
+        if (files != null && files.length > 0) {
             List<Integer> fileIndexer = new LinkedList<>();
             for (File file : files) {
                 int fileIndex = Integer.parseInt(file.getName().replace(STORE_FILE_FORMAT, ""));
                 fileIndexer.add(fileIndex);
             }
-            int lastFileIndex = fileIndexer.stream().max(Integer::compare).orElse(0);
-            fileIndexer.stream().sorted().toList().forEach(fi -> {
-                loadFile(fi, lastFileIndex);
-            });
-        }
-        if (files == null || files.length == 0) {
-            openFile(0);
+            List<Integer> sorted = dropBlankSegments(fileIndexer.stream().sorted().toList());
+            int lastFileIndex = sorted.get(sorted.size() - 1);
+            firstFileIndex = sorted.get(0);
+            // 段索引必须按顺序打开, 之后各段的校验互不依赖, 在恢复线程池上并行执行
+            List<ForkJoinTask<Recovered>> tasks = new ArrayList<>(sorted.size());
+            for (int fi : sorted) {
+                Indexer.Segment segment = indexer.open(fi, fi == lastFileIndex);
+                boolean active = fi == lastFileIndex;
+                tasks.add(RECOVERY.submit(() -> recover(segment, fi, active)));
+            }
+            int end = 0;
+            for (int i = 0; i < sorted.size(); i++) {
+                int fi = sorted.get(i);
+                Recovered recovered = tasks.get(i).join();
+                end = recovered.end();
+                droppedBytes += recovered.dropped();
+                if (recovered.indexed() > 0) {
+                    System.out.println("init load index topic/index/entries => " + this.topic
+                            + "/" + fi + "/" + recovered.indexed());
+                }
+                if (recovered.dropped() > 0) {
+                    System.out.println(" ===>> recovery: topic/partition/index = " + topic + "/" + partition
+                            + "/" + fi + ", truncated " + recovered.dropped() + " bytes after position " + end);
+                }
+                // 初始化topic下多个文件时, 计算每个文件最大offset, 用于消费时按offset切换文件
+                if (fi != lastFileIndex) {
+                    long maxOffset = end + (long) fi * segmentSize;
+                    indexer.seal(fi, maxOffset);
+                    System.out.println("init load file topic/index/maxOffset => " + this.topic
+                            + fi + "/" + maxOffset);
+                }
+            }
+            indexer.recount();
+            // 索引要求offset单调递增, 新消息必须追加在最后一个文件已有记录之后
+            openFile(lastFileIndex);
+            mappedByteBuffer.position(end);
+            currentOffset = end + (long) currentFileIndex * segmentSize;
         } else {
-            currentFileIndex = files.length - 1;
-            mappedByteBuffer = fileBuffers.get(currentFileIndex);
-            currentOffset = mappedByteBuffer.position();
+            openFile(0);
+        }
+        if (groupCommitService != null) {
+            groupCommitService.start();
         }
     }
 
     /**
-     * 根据当前offset和entry计算下一个offset。
+     * 删除末尾多余的空段文件。每次切换段之后都会在后台预分配下一个段, 没有写入就重启时,
+     * 末尾的空段会被当成正在写入的段, 它的下一个段又被预分配, 多次空闲重启后末尾会留下多个空段。
+     * 只保留最后一个有数据的段之后的第一个空段作为正在写入的段, 否则它之前的空段会被封存,
+     * 消费者按封存位置跳到空段的起点后再也读不到写入后面段中的新消息。
+     *
+     * @param sorted 按文件索引排序的段文件。
+     * @return 保留的段文件, 至少一个。
+     */
+    private List<Integer> dropBlankSegments(List<Integer> sorted) throws IOException {
+        int keep = sorted.size();
+        while (keep > 1 && isBlank(sorted.get(keep - 1)) && isBlank(sorted.get(keep - 2))) {
+            int fi = sorted.get(--keep);
+            File data = new File(dir, fi + STORE_FILE_FORMAT);
+            File index = new File(dir, fi + Indexer.INDEX_FILE_FORMAT);
+            Files.delete(data.toPath());
+            Files.deleteIfExists(index.toPath());
+            System.out.println(" ===>> recovery: topic/partition = " + topic + "/" + partition
+                    + ", deleted blank preallocated segment " + fi);
+        }
+        return sorted.subList(0, keep);
+    }
+
+    /**
+     * 段文件开头是否没有任何记录。预分配的段全为0, 第一条记录的头部也必然为0。
+     */
+    private boolean isBlank(int fileIndex) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(MessageRecord.HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(Paths.get(dir, fileIndex + STORE_FILE_FORMAT),
+                StandardOpenOption.READ)) {
+            channel.read(head, 0);
+        }
+        for (int i = 0; i < head.position(); i++) {
+            if (head.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把旧版本直接存放在主题目录下的段文件和索引文件移动到分区0的目录中。
+     * 旧版本的主题只有一个存储, 它的消息就是分区0的消息, offset保持不变。
+     *
+     * @param dir 分区0的存储目录。
+     * @throws IOException 如果移动文件时发生错误。
+     */
+    private void migrateLegacyFiles(File dir) throws IOException {
+        File[] legacy = dir.getParentFile().listFiles((d, name) -> name.endsWith(STORE_FILE_FORMAT)
+                || name.endsWith(Indexer.INDEX_FILE_FORMAT));
+        if (legacy == null) {
+            return;
+        }
+        for (File file : legacy) {
+            System.out.println("topic " + topic + " moves legacy file " + file.getName() + " to partition 0");
+            Files.move(file.toPath(), new File(dir, file.getName()).toPath());
+        }
+    }
+
+    /**
+     * 根据当前offset计算下一个offset。
      * 用于消息消费时确定下一个要消费的消息位置。
      *
      * @param offset 当前offset。
-     * @param entry  消息索引条目。
-     * @return 下一个offset。
+     * @return 下一个offset, 当前offset处没有消息时返回-1。
      */
-    public int nextOffset(int offset, Indexer.Entry entry) {
+    public long nextOffset(long offset) {
+        int length = indexer.length(offset);
+        if (length < 0) {
+            return -1;
+        }
 
-        int fileIndex = entry.getFileIndex();
-        int expected = offset + entry.getLength();
-        Indexer.FileSegment fileSegment = Indexer.getFileSegment(this.topic, fileIndex);
-        if (fileSegment == null) {
+        int fileIndex = (int) (offset / segmentSize);
+        long expected = offset + length;
+        long maxOffset = indexer.maxOffset(fileIndex);
+        if (maxOffset < 0) {
             return expected;
         }
 
-        if (expected >= fileSegment.getMaxOffset()) {
+        if (expected >= maxOffset) {
             System.out.println("reset offset to next file " + expected);
             int nextIndex = fileIndex + 1;
-            if (fileBuffers.containsKey(nextIndex)) {
-                return nextIndex * LEN;
+            if (nextIndex <= currentFileIndex) {
+                return (long) nextIndex * segmentSize;
             }
         }
         return expected;
@@ -108,46 +317,127 @@ public class MessageStore {
 
 
     /**
-     * 加载指定文件到内存映射缓冲区。
+     * 恢复一个段文件: 找到最后一条有效记录, 正在写入的段还要清零之后残留的不完整数据。
+     * 只修改本段的索引, 不同的段可以在恢复线程池上并行恢复; 消息总数和段的封存由调用方按顺序处理。
+     * 段文件通过映射窗口映射, 恢复完成后释放, 超出窗口的旧段随即解除映射。
+     * <p>
+     * 崩溃时只有正在写入的段可能有写了一半的记录, 只有它逐条校验每一条记录。
+     * 已封存的段信任 .idx: 只在内存中检查条目首尾相接, 并校验最后一条记录, 通过后不再读取段内的其他数据,
+     * 启动时间不随保留的数据量增长; 代价是已封存段中间的记录损坏(例如磁盘静默错误)不会在启动时发现。
+     * 最后一条记录校验失败时退回到逐条校验。
      *
-     * @param fileIndex     文件索引。
-     * @param lastFileIndex 最后一个文件索引，用于判断是否需要初始化文件段信息。
-     * @throws IOException 如果操作文件时发生错误。
+     * @param segment   段索引, 由调用方按顺序打开。
+     * @param fileIndex 文件索引。
+     * @param active    是否为最后一个段, 即重启后继续写入的段。
+     * @return 恢复结果。
      */
-    @SneakyThrows
-    private void loadFile(int fileIndex, int lastFileIndex) {
-        File file = new File(STORE_DIR + this.topic + File.separator + fileIndex + STORE_FILE_FORMAT);
-        Path path = Paths.get(file.getAbsolutePath());
-        FileChannel channel = (FileChannel) Files.newByteChannel(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
-        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, LEN);
-        fileBuffers.put(fileIndex, buffer);
-
-        ByteBuffer readOnlyBuffer = buffer.asReadOnlyBuffer();
-        byte[] header = new byte[10];
-        readOnlyBuffer.get(header);
-        int offset = 0;
-        while (header[9] > 0) {
-            String trim = new String(header, StandardCharsets.UTF_8).trim();
-            int len = Integer.parseInt(trim) + 10;
-            Indexer.addEntry(topic, offset + fileIndex * LEN, len, fileIndex);
-            offset += len;
-            readOnlyBuffer.position(offset);
-            if (readOnlyBuffer.remaining() < 10) break;
-            readOnlyBuffer.get(header);
-        }
-
-        // 初始化topic下多个文件时, 计算每个文件最大offset, 用于消费时按offset切换文件
-        if (fileIndex != lastFileIndex) {
-            int maxOffset = (readOnlyBuffer.position() - 10) + fileIndex * LEN;
-            Indexer.addFileSegments(this.topic, fileIndex, maxOffset);
-            System.out.println("init load file topic/index/maxOffset => " + this.topic
-                    + fileIndex + "/" + maxOffset);
-        }
-        readOnlyBuffer.clear();
-    }
-
-    /**
-     * 打开（创建并映射）指定文件索引的文件。
+    private Recovered recover(Indexer.Segment segment, int fileIndex, boolean active) {
+        MappedWindow.Mapping mapping = window.acquire(fileIndex);
+        try {
+            MappedByteBuffer buffer = mapping.getBuffer();
+            ByteBuffer readOnlyBuffer = buffer.asReadOnlyBuffer();
+            int count = 0;
+            int offset = 0;
+            if (!active) {
+                while (count < segment.size() && segment.position(count) == offset) {
+                    offset += segment.length(count++);
+                }
+                int last = count - 1;
+                if (last < 0 || !matches(readOnlyBuffer, segment.position(last), segment.length(last))) {
+                    count = 0;
+                    offset = 0;
+                }
+            }
+            if (count == 0) {
+                // 逐条校验 .idx 中已有的条目: 首尾相接, 且长度和校验码与数据文件一致;
+                // 第一个不一致的条目之后的数据都不可信, 连同它一起丢弃
+                while (count < segment.size() && segment.position(count) == offset
+                        && matches(readOnlyBuffer, offset, segment.length(count))) {
+                    offset += segment.length(count++);
+                }
+            }
+            segment.truncate(count);
+            int indexed = count;
+
+            // 索引之后的尾部逐条解析记录头, 兼容旧的ASCII长度前缀格式, 遇到空白区或校验失败的记录即停止;
+            // 没有 .idx 的旧段文件会在这里完整扫描一遍并补齐索引文件
+            int len;
+            while ((len = MessageRecord.recordLength(readOnlyBuffer, offset)) > 0
+                    && MessageRecord.verify(readOnlyBuffer, offset, len)) {
+                segment.add(offset, len);
+                offset += len;
+            }
+
+            // 有效记录之后的非零数据是崩溃时写了一半的记录, 或者是它后面完整但已经不连续的记录;
+            // 清零后新消息追加在这里, 下次恢复不会把残留的旧记录当成新消息。
+            // 已封存的段不会再追加, 不扫描剩余的文件
+            return new Recovered(offset, indexed, active ? truncateTail(buffer, offset) : 0);
+        } finally {
+            mapping.release();
+        }
+    }
+
+    /**
+     * 一个段文件的恢复结果。
+     *
+     * @param end     最后一条有效记录末尾的段内位置。
+     * @param indexed 从 .idx 恢复的条目数。
+     * @param dropped 清零的不完整数据的字节数。
+     */
+    private record Recovered(int end, int indexed, int dropped) {
+    }
+
+    /**
+     * 清零段内from之后的非零数据, 并刷到磁盘。
+     *
+     * @param buffer 段文件的映射。
+     * @param from   最后一条有效记录末尾的段内位置。
+     * @return from到最后一个非零字节(含)的字节数, 即丢弃的字节数。
+     */
+    private static int truncateTail(MappedByteBuffer buffer, int from) {
+        int limit = buffer.capacity();
+        int last = -1;
+        int i = from;
+        for (; i < limit && (i & 7) != 0; i++) {
+            if (buffer.get(i) != 0) last = i;
+        }
+        for (; i + 8 <= limit; i += 8) {
+            if (buffer.getLong(i) != 0) last = i + 7;
+        }
+        for (; i < limit; i++) {
+            if (buffer.get(i) != 0) last = i;
+        }
+        while (last >= from && buffer.get(last) == 0) {
+            last--;
+        }
+        if (last < from) {
+            return 0;
+        }
+        for (int j = from; j <= last; j++) {
+            buffer.put(j, (byte) 0);
+        }
+        buffer.force(from, last + 1 - from);
+        return last + 1 - from;
+    }
+
+    /**
+     * 检查索引条目是否与数据文件中的记录一致。
+     *
+     * @param buffer   段文件的数据缓冲区。
+     * @param position 索引条目中的段内位置。
+     * @param length   索引条目中的记录长度。
+     * @return 一致返回true。
+     */
+    private boolean matches(ByteBuffer buffer, int position, int length) {
+        if (position < 0 || length <= 0 || position > segmentSize - length) {
+            return false;
+        }
+        return MessageRecord.recordLength(buffer, position) == length
+                && MessageRecord.verify(buffer, position, length);
+    }
+
+    /**
+     * 打开（创建并映射）指定文件索引的文件, 作为正在写入的段固定在映射窗口中。
      * 用于存储新消息或当需要访问新文件时。
      *
      * @param fileIndex 文件索引。
@@ -156,106 +446,576 @@ public class MessageStore {
     @SneakyThrows
     @SuppressWarnings("ResultOfMethodCallIgnored")
     private void openFile(int fileIndex) {
-        File file = new File(STORE_DIR + this.topic + File.separator + fileIndex + STORE_FILE_FORMAT);
+        File file = new File(this.dir + File.separator + fileIndex + STORE_FILE_FORMAT);
         if (!file.exists()) {
             file.createNewFile();
         }
-        Path path = Paths.get(file.getAbsolutePath());
-        channel = (FileChannel) Files.newByteChannel(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
-        mappedByteBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, LEN);
-        fileBuffers.put(fileIndex, mappedByteBuffer);
+        MappedWindow.Mapping mapping = window.acquire(fileIndex);
+        window.pin(fileIndex);
+        activate(fileIndex, mapping);
+    }
+
+    /**
+     * 切换到新的段文件开始写入, 并在后台预分配再下一个段文件, 调用方必须持有写锁。
+     *
+     * @param fileIndex 文件索引。
+     * @param mapping   已固定在窗口中的段映射, 写线程持有它的一个引用。
+     */
+    private void activate(int fileIndex, MappedWindow.Mapping mapping) {
+        activeMapping = mapping;
+        // 写入位置是写线程私有的状态, 不能与读线程共享同一个缓冲区对象
+        mappedByteBuffer = (MappedByteBuffer) mapping.getBuffer().duplicate();
         currentFileIndex = fileIndex;
-        currentOffset = 0;
+        currentOffset = (long) fileIndex * segmentSize;
+        if (allocator != null) {
+            allocator.prepare(fileIndex + 1);
+        }
     }
 
     /**
-     * 存储消息到消息存储。
-     * 如果当前缓冲区满，则创建新文件继续存储。
+     * 存储消息到消息存储, 并按刷盘策略等待消息落盘。
      *
      * @param message 待存储的消息。
      * @return 消息的存储位置。
      */
-    public synchronized int write(Message<String> message) {
-        String json = JSON.toJSONString(message);
-        int len = json.getBytes(StandardCharsets.UTF_8).length;
-        len = len + 10;
+    public long write(Message<String> message) {
+        return writeAsync(message).join();
+    }
 
-        if (mappedByteBuffer.remaining() < len) {
-            int maxOffset = mappedByteBuffer.position() + currentFileIndex * LEN;
-            Indexer.addFileSegments(this.topic, currentFileIndex, maxOffset);
+    /**
+     * 存储消息到消息存储。
+     * 消息在加锁前编码到当前线程的缓冲区中, 加锁后只做段文件切换判断和一次内存拷贝。
+     * 消息的offset保存在记录头中, 读取时再回填到 X-offset 消息头, 因此无需二次序列化。
+     *
+     * @param message 待存储的消息。
+     * @return 满足刷盘策略后完成的future, 结果为消息的存储位置。
+     */
+    public CompletableFuture<Long> writeAsync(Message<String> message) {
+        RecordEncoder encoder = RecordEncoder.get().encode(message, System.currentTimeMillis());
+        if (encoder.length() > segmentSize) {
+            throw new IllegalArgumentException("message too large: " + encoder.length()
+                    + " bytes, segment size is " + segmentSize);
+        }
+        long offset = append(encoder);
+        return flush(offset, offset + encoder.length());
+    }
+
+    /**
+     * 批量存储消息。
+     * 所有消息在加锁前编码到当前线程的缓冲区中, 整批只进入一次写锁, 并按刷盘策略等待整批落盘。
+     *
+     * @param messages 待存储的消息, 按顺序写入。
+     * @return 满足刷盘策略后完成的future, 结果为每条消息的存储位置。
+     */
+    public CompletableFuture<long[]> writeBatchAsync(List<Message<String>> messages) {
+        if (messages.isEmpty()) {
+            return CompletableFuture.completedFuture(new long[0]);
+        }
+        long timestamp = System.currentTimeMillis();
+        RecordEncoder encoder = RecordEncoder.get().reset();
+        for (Message<String> message : messages) {
+            encoder.add(message, timestamp);
+            int length = encoder.length(encoder.records() - 1);
+            if (length > segmentSize) {
+                throw new IllegalArgumentException("message too large: " + length
+                        + " bytes, segment size is " + segmentSize);
+            }
+        }
+        long[] offsets = appendBatch(encoder);
+        int last = offsets.length - 1;
+        return flush(offsets[0], offsets[last] + encoder.length(last)).thenApply(offset -> offsets);
+    }
+
+    /**
+     * 按刷盘策略处理一条已写入的记录。
+     *
+     * @param offset    记录的逻辑偏移量。
+     * @param endOffset 记录末尾的逻辑偏移量。
+     * @return 满足刷盘策略后完成的future。
+     */
+    private CompletableFuture<Long> flush(long offset, long endOffset) {
+        return switch (flushMode) {
+            case ASYNC -> CompletableFuture.completedFuture(offset);
+            case SYNC -> {
+                force(offset, endOffset);
+                yield CompletableFuture.completedFuture(offset);
+            }
+            case GROUP_COMMIT -> groupCommitService.submit(offset, endOffset);
+        };
+    }
+
+    /**
+     * 将指定逻辑偏移量区间内的数据强制刷到磁盘, 区间可以跨越多个段文件。
+     *
+     * @param from 起始逻辑偏移量(含)。
+     * @param to   结束逻辑偏移量(不含)。
+     */
+    public void force(long from, long to) {
+        if (to <= from) return;
+        int fromIndex = (int) (from / segmentSize);
+        int toIndex = (int) ((to - 1) / segmentSize);
+        for (int fi = fromIndex; fi <= toIndex; fi++) {
+            MappedWindow.Mapping mapping = window.peek(fi);
+            if (mapping == null) {
+                // 移出窗口的映射在后台线程上才刷盘和解除映射, 这里不能假定已经落盘;
+                // 映射和文件共享页缓存, 对文件fsync同样会写回通过映射写入的脏页
+                forceFile(fi);
+                continue;
+            }
             try {
-                channel.close();
-            } catch (NullPointerException | IOException e) {
-                e.printStackTrace();
+                int start = fi == fromIndex ? (int) (from % segmentSize) : 0;
+                int end = fi == toIndex ? (int) ((to - 1) % segmentSize) + 1 : segmentSize;
+                mapping.getBuffer().force(start, end - start);
+            } finally {
+                mapping.release();
+            }
+        }
+    }
+
+    /**
+     * 对不在映射窗口中的段文件执行fsync, 段文件已经按保留策略删除时忽略。
+     *
+     * @param fileIndex 文件索引。
+     */
+    @SneakyThrows
+    private void forceFile(int fileIndex) {
+        FileChannel channel = openChannel(fileIndex);
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.force(false);
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * 将编码好的记录追加到当前段文件, 当前段剩余空间不足时切换到新文件。
+     *
+     * @param encoder 已编码好记录的编码器。
+     * @return 记录的逻辑偏移量。
+     */
+    private synchronized long append(RecordEncoder encoder) {
+        checkOpen();
+        return appendRecord(encoder, 0);
+    }
+
+    /**
+     * 存储关闭后当前段的映射已经释放, 不能再写入, 调用方必须持有写锁。
+     */
+    private void checkOpen() {
+        if (mappedByteBuffer == null) {
+            throw new IllegalStateException("message store is closed: " + topic + "/" + partition);
+        }
+    }
+
+    /**
+     * 在一次加锁内追加编码器中的所有记录。
+     * 每次在当前段文件中预留能容纳的最长一段连续记录, 一次拷贝写入并依次建立索引;
+     * 剩余记录放不下时封存当前段, 切换到新段后继续, 一条记录不会跨越两个段文件。
+     *
+     * @param encoder 已编码好整批记录的编码器, 每条记录都不超过段文件大小。
+     * @return 每条记录的逻辑偏移量。
+     */
+    private synchronized long[] appendBatch(RecordEncoder encoder) {
+        checkOpen();
+        int records = encoder.records();
+        long[] offsets = new long[records];
+        int from = 0;
+        while (from < records) {
+            int remaining = mappedByteBuffer.remaining();
+            int to = from;
+            int reserved = 0;
+            while (to < records && reserved + encoder.length(to) <= remaining) {
+                reserved += encoder.length(to++);
+            }
+            if (to == from) {
+                roll();
+                continue;
+            }
+
+            long offset = mappedByteBuffer.position() + (long) currentFileIndex * segmentSize;
+            // 先写数据再建索引, 读线程通过索引看到的记录一定是完整的
+            encoder.writeTo(mappedByteBuffer, from, to, offset);
+            for (int i = from; i < to; i++) {
+                offsets[i] = offset + encoder.length(from, i);
+                indexer.addEntry(offsets[i], encoder.length(i));
             }
-            openFile(++currentFileIndex);
+            currentOffset = offset + reserved;
+            from = to;
+        }
+        return offsets;
+    }
+
+    /**
+     * 追加编码器中的第index条记录, 调用方必须持有写锁。
+     *
+     * @param encoder 已编码好记录的编码器。
+     * @param index   记录序号。
+     * @return 记录的逻辑偏移量。
+     */
+    private long appendRecord(RecordEncoder encoder, int index) {
+        int len = encoder.length(index);
+        if (mappedByteBuffer.remaining() < len) {
+            roll();
         }
 
         // 如果文件被写满, 需要重新计算position, 从而得出最终的offset
         int position = mappedByteBuffer.position();
-        int offset = position + currentFileIndex * LEN;
-
-        // 重新计算更新offset后的message长度
-        message.getHeaders().put("X-offset", String.valueOf(offset));
-        json = JSON.toJSONString(message);
-        len = json.getBytes(StandardCharsets.UTF_8).length;
-        String format = String.format("%010d", len);
-        String msg = format + json;
-        len = len + 10;
-
-        Indexer.addEntry(this.topic, offset, len, currentFileIndex);
-        mappedByteBuffer.put(StandardCharsets.UTF_8.encode(msg));
-        currentOffset = mappedByteBuffer.position();
+        long offset = position + (long) currentFileIndex * segmentSize;
+
+        // 先写数据再建索引, 读线程通过索引看到的记录一定是完整的
+        encoder.writeTo(mappedByteBuffer, index, offset);
+        indexer.addEntry(offset, len);
+        currentOffset = offset + len;
         return offset;
     }
 
+    /**
+     * 封存当前段文件并切换到下一个段文件, 调用方必须持有写锁。
+     */
+    private void roll() {
+        long maxOffset = mappedByteBuffer.position() + (long) currentFileIndex * segmentSize;
+        indexer.seal(currentFileIndex, maxOffset);
+        // 封存的段不再固定在窗口中, 按最近访问时间淘汰
+        activeMapping.release();
+        int next = currentFileIndex + 1;
+        // 通常下一个段已经在后台创建并映射好, 这里只是切换指针
+        MappedWindow.Mapping mapping = allocator != null ? allocator.take(next) : window.allocate(next);
+        activate(next, window.adopt(mapping));
+    }
+
+    /**
+     * 分区中保留的第一条消息的offset, 即第一个段文件的起点。
+     * 消费位点早于它时, 说明位点之后的消息已经按保留策略删除, 应从这里继续消费。
+     *
+     * @return 第一个段文件起点的逻辑偏移量。
+     */
+    public long startOffset() {
+        return (long) firstFileIndex * segmentSize;
+    }
+
+    /**
+     * 按保留策略删除最旧的段文件, 由后台清理线程定期调用。正在写入的段永远不会被删除。
+     * <ul>
+     *     <li>按大小: 分区的段文件总大小超过 retentionBytes 时, 从最旧的段开始删除;</li>
+     *     <li>按时间: 段中最新的消息早于 now - retentionMs 时删除;</li>
+     *     <li>按确认: 段中最后一条消息不晚于 committed 时删除, 即所有消费者组都已经消费过这个段。</li>
+     * </ul>
+     * 段总是从最旧的一端连续删除, 保留的段在磁盘上始终连续。
+     *
+     * @param now       当前时间。
+     * @param committed 所有消费者组在分区上最小的已确认位点, 小于0时不按确认删除。
+     * @return 删除的段文件数量。
+     */
+    public int cleanup(long now, long committed) {
+        int first = firstFileIndex;
+        int current = currentFileIndex;
+        int count = 0;
+        if (retentionBytes > 0) {
+            long excess = (long) (current - first + 1) * segmentSize - retentionBytes;
+            if (excess > 0) {
+                count = (int) Math.min(current - first, (excess + segmentSize - 1) / segmentSize);
+            }
+        }
+        for (int fi = first + count; fi < current; fi++) {
+            int last = indexer.lastPosition(fi);
+            long lastOffset = last < 0 ? -1 : (long) fi * segmentSize + last;
+            boolean expired = retentionMs > 0 && now - lastTimestamp(fi, last) > retentionMs;
+            boolean consumed = committed >= 0 && committed >= lastOffset;
+            if (!expired && !consumed) {
+                break;
+            }
+            count = fi - first + 1;
+        }
+        if (count > 0) {
+            deleteSegments(first + count);
+        }
+        return count;
+    }
+
+    /**
+     * 段中最新消息的写入时间, 旧格式的记录没有时间戳, 使用段文件的修改时间。
+     */
+    private long lastTimestamp(int fileIndex, int lastPosition) {
+        long timestamp = -1;
+        if (lastPosition >= 0) {
+            ByteBuffer header = readRecord(fileIndex, lastPosition, Math.min(MessageRecord.HEADER_SIZE, segmentSize - lastPosition));
+            timestamp = header == null ? -1 : MessageRecord.timestamp(header, 0);
+        }
+        if (timestamp < 0) {
+            timestamp = new File(dir, fileIndex + STORE_FILE_FORMAT).lastModified();
+        }
+        return timestamp;
+    }
+
+    /**
+     * 删除fileIndex之前的所有段文件和索引文件。
+     * 在写锁内从索引和映射窗口中移除这些段, 之后的读取不会再访问它们;
+     * 正在发送的零拷贝切片仍然持有映射引用, 发送完成后才解除映射。
+     *
+     * @param fileIndex 保留的第一个段的文件索引。
+     */
+    private void deleteSegments(int fileIndex) {
+        int first;
+        synchronized (this) {
+            first = firstFileIndex;
+            fileIndex = Math.min(fileIndex, currentFileIndex);
+            if (fileIndex <= first) {
+                return;
+            }
+            indexer.trim(fileIndex);
+            for (int fi = first; fi < fileIndex; fi++) {
+                window.remove(fi);
+            }
+            firstFileIndex = fileIndex;
+        }
+        if (tailCache != null) {
+            tailCache.clear();
+        }
+        for (int fi = first; fi < fileIndex; fi++) {
+            File data = new File(dir, fi + STORE_FILE_FORMAT);
+            File index = new File(dir, fi + Indexer.INDEX_FILE_FORMAT);
+            if (!data.delete() && data.exists() || !index.delete() && index.exists()) {
+                System.out.println(" ===>> retention: failed to delete segment " + data.getPath());
+            }
+        }
+        System.out.println(" ===>> retention: topic/partition = " + topic + "/" + partition
+                + ", deleted segments [" + first + ", " + fileIndex + ")");
+    }
+
+    /**
+     * 关闭消息存储: 停止组提交刷盘线程, 把当前段文件中已写入的数据刷到磁盘, 释放所有映射。
+     * 关闭后不能再写入, 删除主题前调用。
+     */
+    public synchronized void close() {
+        if (groupCommitService != null) {
+            groupCommitService.shutdown();
+        }
+        if (allocator != null) {
+            allocator.close();
+        }
+        if (activeMapping != null) {
+            mappedByteBuffer.force(0, mappedByteBuffer.position());
+            activeMapping.release();
+            activeMapping = null;
+            // 关闭后的写入由checkOpen拒绝, 而不是访问已经解除映射的内存
+            mappedByteBuffer = null;
+        }
+        if (window != null) {
+            window.close();
+        }
+    }
+
     /**
      * 获取当前topic最新offset
      *
      * @return 当前topic最新offset。
      */
-    public int pos() {
-        return currentOffset + currentFileIndex * LEN;
+    public long pos() {
+        return currentOffset;
+    }
+
+    /**
+     * 获取当前topic可写入的最大offset(不含), 即当前段文件的末尾。
+     *
+     * @return 当前段文件末尾对应的offset。
+     */
+    public long limit() {
+        return (currentFileIndex + 1L) * segmentSize;
     }
 
     /**
      * 根据offset读取消息。
+     * 尾部的消息解码后放入 {@link TailCache}, 再次读取时返回同一个消息对象, 调用方不能修改返回的消息。
      *
      * @param offset 消息的存储位置。
      * @return 读取到的消息对象。
      */
-    public Message<String> read(int offset) {
-        int fileIndex = offset / LEN;
-        int localOffset = offset % LEN;
+    public Message<String> read(long offset) {
+        int fileIndex = (int) (offset / segmentSize);
+        int localOffset = (int) (offset % segmentSize);
 
-        MappedByteBuffer buffer = fileBuffers.get(fileIndex);
-        if (buffer == null) {
+        int length = indexer.length(offset);
+        if (length < 0) return null;
+        // 只缓存当前段和上一个段中的消息, 落后很多的消费者读取旧消息时不会挤掉尾部的消息
+        boolean tail = tailCache != null && fileIndex >= currentFileIndex - 1;
+        if (tail) {
+            Message<String> cached = tailCache.get(offset);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        ByteBuffer record = readRecord(fileIndex, localOffset, length);
+        if (record == null) {
             return null;
         }
+        int headerSize = MessageRecord.headerSize(record, 0);
+        record.position(headerSize);
 
-        ByteBuffer readOnlyBuffer = buffer.asReadOnlyBuffer();
-        Indexer.Entry entry = Indexer.getEntry(this.topic, offset);
-        if (entry == null) return null;
-        readOnlyBuffer.position(localOffset + 10);
-
-        int len = entry.getLength() - 10;
+        int len = length - headerSize;
         byte[] bytes = new byte[len];
-        readOnlyBuffer.get(bytes, 0, len);
+        record.get(bytes, 0, len);
         String json = new String(bytes, StandardCharsets.UTF_8);
 
         Message<String> message = JSON.parseObject(json, new TypeReference<Message<String>>() {
         });
+        message.getHeaders().put(OFFSET_HEADER, String.valueOf(offset));
+        message.getHeaders().put(PARTITION_HEADER, String.valueOf(partition));
 
-        readOnlyBuffer.clear();
+        if (tail) {
+            tailCache.put(offset, message);
+        }
         return message;
     }
 
+    /**
+     * 从指定offset开始批量拉取消息, 只返回消息体在段文件中的只读切片, 不拷贝也不解码。
+     * 消息体总字节数超过 maxBytes 时停止, 但至少返回一条消息。
+     * <p>
+     * 映射窗口中的段直接返回映射内存的切片, 拉取结果持有映射引用, 调用方发送完成后必须释放;
+     * 窗口之外的旧段按记录定位读到堆内存中, 不会为了一次追赶读取把尾部的段挤出窗口。
+     *
+     * @param offset   第一条消息的offset。
+     * @param size     最多拉取的消息条数。
+     * @param maxBytes 消息体总字节数上限。
+     * @return 拉取结果, 没有消息时条数为0。
+     */
+    public FetchResult fetch(long offset, int size, int maxBytes) {
+        FetchResult result = new FetchResult(size);
+        int fileIndex = -1;
+        MappedWindow.Mapping mapping = null;
+        FileChannel channel = null;
+        try {
+            while (!result.isFull()) {
+                int length = indexer.length(offset);
+                if (length < 0) break;
+                int localOffset = (int) (offset % segmentSize);
+                if (fileIndex != (int) (offset / segmentSize)) {
+                    fileIndex = (int) (offset / segmentSize);
+                    closeQuietly(channel);
+                    channel = null;
+                    mapping = mapping(fileIndex);
+                    if (mapping != null) {
+                        result.retain(mapping);
+                    } else {
+                        channel = openChannel(fileIndex);
+                        if (channel == null) break;
+                    }
+                }
+
+                ByteBuffer body;
+                if (mapping != null) {
+                    body = mapping.getBuffer().asReadOnlyBuffer();
+                    body.limit(localOffset + length).position(localOffset);
+                } else {
+                    body = readRecord(channel, localOffset, length);
+                    if (body == null) break;
+                }
+                int headerSize = MessageRecord.headerSize(body, body.position());
+                int bodyLength = length - headerSize;
+                if (result.getCount() > 0 && result.getBytes() + bodyLength > maxBytes) break;
+
+                body.position(body.position() + headerSize);
+                result.add(offset, body.slice());
+                offset = nextOffset(offset);
+            }
+        } finally {
+            closeQuietly(channel);
+        }
+        return result;
+    }
+
+    /**
+     * 获取段的映射: 已经映射的段直接使用, 尾部的段按需映射, 更旧的段不映射。
+     *
+     * @param fileIndex 文件索引。
+     * @return 已增加引用的映射, 不映射时返回null。
+     */
+    private MappedWindow.Mapping mapping(int fileIndex) {
+        MappedWindow.Mapping mapping = window.peek(fileIndex);
+        if (mapping == null && fileIndex > currentFileIndex - window.getCapacity() && fileIndex >= firstFileIndex) {
+            mapping = window.acquire(fileIndex);
+        }
+        return mapping;
+    }
+
+    /**
+     * 读取一条记录的完整内容, 返回的缓冲区从0开始, 长度为length, 与段文件的映射无关。
+     *
+     * @param fileIndex 文件索引。
+     * @param position  记录的段内位置。
+     * @param length    读取的字节数。
+     * @return 记录内容, 段文件已经被删除时返回null。
+     */
+    private ByteBuffer readRecord(int fileIndex, int position, int length) {
+        MappedWindow.Mapping mapping = mapping(fileIndex);
+        if (mapping != null) {
+            try {
+                return ByteBuffer.allocate(length).put(0, mapping.getBuffer(), position, length);
+            } finally {
+                mapping.release();
+            }
+        }
+        FileChannel channel = openChannel(fileIndex);
+        try {
+            return channel == null ? null : readRecord(channel, position, length);
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * 从段文件的指定位置定位读取length个字节, 不改变通道的位置。
+     *
+     * @return 读到的内容, 文件长度不足时返回null。
+     */
+    private static ByteBuffer readRecord(FileChannel channel, int position, int length) {
+        ByteBuffer record = ByteBuffer.allocate(length);
+        try {
+            while (record.hasRemaining()) {
+                if (channel.read(record, position + record.position()) < 0) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return record.flip();
+    }
+
+    /**
+     * 以只读方式打开段文件, 用于读取映射窗口之外的旧段。
+     *
+     * @return 文件通道, 段文件已经按保留策略删除时返回null。
+     */
+    private FileChannel openChannel(int fileIndex) {
+        try {
+            return FileChannel.open(Paths.get(dir, fileIndex + STORE_FILE_FORMAT), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * 获取存储的主题下所有消息的总数。
      *
      * @return 消息总数。
      */
-    public int total() {
-        return Indexer.getEntries(topic) != null ? Indexer.getEntries(topic).size() : 0;
+    public long total() {
+        return indexer.total();
     }
 }
\ No newline at end of file
@@ -0,0 +1,299 @@
+package cn.ipman.mq.server.store;
+
+import lombok.Getter;
+import lombok.SneakyThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 主题的消费位点存储, 保存每个消费者组在每个分区上已确认的位置, 服务端重启后从这里恢复。
+ * <p>
+ * 位点以追加写的提交日志保存在主题目录下的 offsets.log 中, 每行一条提交记录:
+ * <pre>
+ * group \t partition \t offset \n
+ * </pre>
+ * 恢复时按顺序重放, 同一个消费者组和分区以最后一条为准; 崩溃时没有写完的最后一行被丢弃。
+ * <p>
+ * 确认只更新内存并标记为待写, 后台线程每隔 offsetFlushIntervalMs 毫秒把这段时间内变化的位点
+ * 一次追加写入并fsync, 同一个分区在一个周期内的多次确认只写一条记录。
+ * 崩溃最多丢失一个周期内的确认, 消费者从更早的位点重新消费, 即至少一次投递。
+ * 写日志和fsync只持有单独的写锁, 确认只在交换待写位点时短暂等待, 不会被刷盘阻塞。
+ * 日志中的过期记录超过有效记录的数倍时, 把当前位点重写到新文件并原子替换, 压缩日志。
+ *
+ * @Author IpMan
+ * @Date 2026/10/18 02:20
+ */
+public class OffsetStore {
+
+    public final static String OFFSET_FILE = "offsets.log";
+
+    /**
+     * 日志记录数超过 有效记录数 * COMPACT_RATIO + COMPACT_MIN_RECORDS 时压缩。
+     */
+    static final int COMPACT_RATIO = 4;
+    static final int COMPACT_MIN_RECORDS = 1024;
+
+    /**
+     * 所有主题共享的刷盘线程。
+     */
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mq-offset-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Getter
+    final String topic;
+
+    final File file;
+
+    final int flushIntervalMs;
+
+    /**
+     * 每个消费者组在每个分区上的位点, 消费者组为键。
+     */
+    final Map<String, Map<Integer, Long>> offsets = new ConcurrentHashMap<>();
+
+    /**
+     * 还没有写入日志的位点, 键为 消费者组 + 分区, 由this保护。
+     */
+    private Map<Key, Long> dirty = new LinkedHashMap<>();
+
+    /**
+     * 保护日志文件的写入、刷盘和压缩。需要同时持有this时先获取写锁。
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * 日志中的记录数, 用于判断是否需要压缩。只在持有writeLock时访问。
+     */
+    @Getter
+    private int records;
+
+    // 以下字段由writeLock保护
+    private FileChannel channel;
+    private ScheduledFuture<?> flushTask;
+
+    record Key(String group, int partition) {
+    }
+
+    public OffsetStore(TopicConfig config) {
+        this.topic = config.getTopic();
+        this.file = new File(MessageStore.STORE_DIR + topic, OFFSET_FILE);
+        this.flushIntervalMs = config.getOffsetFlushIntervalMs();
+    }
+
+    /**
+     * 从提交日志恢复位点, 打开日志并启动定时刷盘。
+     */
+    @SneakyThrows
+    public void init() {
+        synchronized (writeLock) {
+            File dir = file.getParentFile();
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            long valid = 0;
+            if (file.exists()) {
+                valid = load();
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // 截掉崩溃时没有写完的最后一行, 新记录从最后一条完整记录之后追加
+            channel.truncate(valid);
+            channel.position(valid);
+            flushTask = FLUSHER.scheduleWithFixedDelay(this::flushQuietly,
+                    flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 重放提交日志。
+     *
+     * @return 最后一条完整记录末尾的字节位置。
+     */
+    private long load() throws IOException {
+        long valid = 0;
+        byte[] content = Files.readAllBytes(file.toPath());
+        int start = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] != '\n') {
+                continue;
+            }
+            String line = new String(content, start, i - start, StandardCharsets.UTF_8);
+            start = i + 1;
+            String[] fields = line.split("\t");
+            if (fields.length != 3) {
+                System.out.println(" ===>> offset store: skip bad record, topic = " + topic + ", line = " + line);
+                continue;
+            }
+            offsets.computeIfAbsent(fields[0], g -> new ConcurrentHashMap<>())
+                    .put(Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+            records++;
+            valid = start;
+        }
+        if (start < content.length) {
+            System.out.println(" ===>> offset store: drop torn record, topic = " + topic
+                    + ", bytes = " + (content.length - start));
+        }
+        System.out.println(" ===>> offset store: loaded topic = " + topic + ", groups = " + offsets.keySet()
+                + ", records = " + records);
+        return valid;
+    }
+
+    /**
+     * 消费者组在每个分区上已保存的位点。
+     *
+     * @param group 消费者组。
+     * @return 分区号为键的位点, 没有保存过时为空。
+     */
+    public Map<Integer, Long> offsets(String group) {
+        Map<Integer, Long> result = offsets.get(group);
+        return result == null ? Map.of() : new HashMap<>(result);
+    }
+
+    /**
+     * 保存过位点的所有消费者组。
+     *
+     * @return 消费者组名。
+     */
+    public Set<String> groups() {
+        return new HashSet<>(offsets.keySet());
+    }
+
+    /**
+     * 提交消费者组在分区上的位点, 由后台线程批量写入日志。位点只会前进, 比已提交的位点小时忽略。
+     *
+     * @param group     消费者组, 不能包含制表符和换行符。
+     * @param partition 分区号。
+     * @param offset    已确认的位点。
+     */
+    public void commit(String group, int partition, long offset) {
+        if (group.indexOf('\t') >= 0 || group.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("invalid consumer group: " + group);
+        }
+        synchronized (this) {
+            // 并发的确认可能乱序到达, 只保留最大的位点
+            long merged = offsets.computeIfAbsent(group, g -> new ConcurrentHashMap<>())
+                    .merge(partition, offset, Math::max);
+            dirty.put(new Key(group, partition), merged);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 把待写的位点追加写入日志并fsync, 需要时压缩日志。
+     * 只在交换待写位点时持有this, 写入和fsync期间确认不会被阻塞。
+     */
+    @SneakyThrows
+    public void flush() {
+        synchronized (writeLock) {
+            if (channel == null) {
+                return;
+            }
+            Map<Key, Long> pending;
+            synchronized (this) {
+                if (dirty.isEmpty()) {
+                    return;
+                }
+                pending = dirty;
+                dirty = new LinkedHashMap<>();
+            }
+            StringBuilder sb = new StringBuilder();
+            pending.forEach((key, offset) -> append(sb, key.group(), key.partition(), offset));
+            ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                // 写入失败时放回待写位点, 交换之后又有新的确认时保留更新的位点
+                synchronized (this) {
+                    pending.forEach(dirty::putIfAbsent);
+                }
+                throw e;
+            }
+            records += pending.size();
+
+            int live = offsets.values().stream().mapToInt(Map::size).sum();
+            if (records > live * COMPACT_RATIO + COMPACT_MIN_RECORDS) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * 把当前所有位点写入临时文件, 刷盘后原子替换提交日志。调用方必须持有writeLock。
+     * 压缩期间提交的位点仍在待写位点中, 下一次刷盘时追加到新的日志。
+     */
+    private void compact() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int live = 0;
+        for (Map.Entry<String, Map<Integer, Long>> group : offsets.entrySet()) {
+            for (Map.Entry<Integer, Long> entry : group.getValue().entrySet()) {
+                append(sb, group.getKey(), entry.getKey(), entry.getValue());
+                live++;
+            }
+        }
+        File tmp = new File(file.getParentFile(), OFFSET_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        System.out.println(" ===>> offset store: compact topic = " + topic + ", records " + records + " -> " + live);
+        records = live;
+    }
+
+    private static void append(StringBuilder sb, String group, int partition, long offset) {
+        sb.append(group).append('\t').append(partition).append('\t').append(offset).append('\n');
+    }
+
+    /**
+     * 写入剩余的位点并关闭日志。
+     */
+    @SneakyThrows
+    public void close() {
+        synchronized (writeLock) {
+            if (flushTask != null) {
+                flushTask.cancel(false);
+            }
+            flush();
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
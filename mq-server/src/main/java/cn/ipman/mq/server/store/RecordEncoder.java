@@ -0,0 +1,211 @@
+package cn.ipman.mq.server.store;
+
+import cn.ipman.mq.metadata.model.Message;
+import com.alibaba.fastjson.JSON;
+import lombok.SneakyThrows;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 记录编码器，在进入写锁之前把消息编码成完整的二进制记录。
+ * <p>
+ * 每个线程复用一个编码缓冲区: 先预留记录头, 再由fastjson直接把消息序列化到缓冲区,
+ * 最后回填长度、校验码等头部字段。只有offset需要在写锁内确定, 它不参与校验,
+ * 因此加锁后只剩一次内存拷贝和一次offset回填。
+ * <p>
+ * 批量写入时多条记录依次编码到同一个缓冲区, 整批只进入一次写锁,
+ * 落在同一个段文件中的连续记录只做一次内存拷贝。
+ *
+ * @Author IpMan
+ * @Date 2026/10/17 21:05
+ */
+public final class RecordEncoder extends OutputStream {
+
+    // 每个线程一个编码器, 写入线程数有限(RequestPipeline的写通道 mq-write-N + HTTP接口的Tomcat线程), 不会无限增长
+    private static final ThreadLocal<RecordEncoder> LOCAL = ThreadLocal.withInitial(RecordEncoder::new);
+
+    // 超过该大小的缓冲区用完即丢弃, 避免偶发的大消息长期占用内存
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+    private static final int INITIAL_SIZE = 4 * 1024;
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private ByteBuffer view = ByteBuffer.wrap(buf);
+    private int count;
+
+    // 每条记录在缓冲区中的起始位置
+    private int[] starts = new int[16];
+    private int records;
+
+    private RecordEncoder() {
+    }
+
+    /**
+     * 获取当前线程的编码器。
+     *
+     * @return 当前线程复用的编码器。
+     */
+    public static RecordEncoder get() {
+        return LOCAL.get();
+    }
+
+    /**
+     * 将消息编码为一条完整记录(offset字段留空)。
+     *
+     * @param message   待编码的消息。
+     * @param timestamp 写入时间戳。
+     * @return 当前编码器, 便于链式调用。
+     */
+    public RecordEncoder encode(Message<?> message, long timestamp) {
+        return reset().add(message, timestamp);
+    }
+
+    /**
+     * 清空编码器, 开始编码新的一批记录。
+     *
+     * @return 当前编码器, 便于链式调用。
+     */
+    public RecordEncoder reset() {
+        if (buf.length > MAX_RETAINED_SIZE) {
+            resize(INITIAL_SIZE);
+        }
+        count = 0;
+        records = 0;
+        return this;
+    }
+
+    /**
+     * 在已编码的记录之后追加编码一条记录(offset字段留空)。
+     *
+     * @param message   待编码的消息。
+     * @param timestamp 写入时间戳。
+     * @return 当前编码器, 便于链式调用。
+     */
+    @SneakyThrows
+    public RecordEncoder add(Message<?> message, long timestamp) {
+        int start = count;
+        ensureCapacity(start + MessageRecord.HEADER_SIZE);
+        count = start + MessageRecord.HEADER_SIZE;
+        JSON.writeJSONString(this, message);
+
+        int length = count - start;
+        view.putInt(start + MessageRecord.LENGTH_POS, length);
+        view.put(start + MessageRecord.MAGIC_POS, MessageRecord.MAGIC_V1);
+        view.put(start + MessageRecord.FLAGS_POS, (byte) 0);
+        view.putLong(start + MessageRecord.TIMESTAMP_POS, timestamp);
+        view.putLong(start + MessageRecord.OFFSET_POS, 0L);
+        view.putInt(start + MessageRecord.CRC_POS, MessageRecord.checksum(view, start, length));
+
+        if (records == starts.length) {
+            starts = Arrays.copyOf(starts, records << 1);
+        }
+        starts[records++] = start;
+        return this;
+    }
+
+    /**
+     * 编码后所有记录的总长度。
+     *
+     * @return 记录总长度(含头部)。
+     */
+    public int length() {
+        return count;
+    }
+
+    /**
+     * 已编码的记录数量。
+     *
+     * @return 记录数量。
+     */
+    public int records() {
+        return records;
+    }
+
+    /**
+     * 第index条记录的长度。
+     *
+     * @param index 记录序号。
+     * @return 记录长度(含头部)。
+     */
+    public int length(int index) {
+        return (index + 1 < records ? starts[index + 1] : count) - starts[index];
+    }
+
+    /**
+     * 将编码好的(第一条)记录拷贝到目标缓冲区的当前位置, 并回填offset。
+     *
+     * @param target 目标缓冲区, 通常是段文件的MappedByteBuffer。
+     * @param offset 记录的逻辑偏移量。
+     */
+    public void writeTo(ByteBuffer target, long offset) {
+        writeTo(target, 0, offset);
+    }
+
+    /**
+     * 将第index条记录拷贝到目标缓冲区的当前位置, 并回填offset。
+     *
+     * @param target 目标缓冲区, 通常是段文件的MappedByteBuffer。
+     * @param index  记录序号。
+     * @param offset 记录的逻辑偏移量。
+     */
+    public void writeTo(ByteBuffer target, int index, long offset) {
+        int position = target.position();
+        target.put(buf, starts[index], length(index));
+        target.putLong(position + MessageRecord.OFFSET_POS, offset);
+    }
+
+    /**
+     * 第from条到第to条(不含)记录的总长度。
+     *
+     * @param from 起始记录序号(含)。
+     * @param to   结束记录序号(不含)。
+     * @return 这些记录的总长度(含头部)。
+     */
+    public int length(int from, int to) {
+        return (to < records ? starts[to] : count) - starts[from];
+    }
+
+    /**
+     * 将第from条到第to条(不含)记录作为一个连续区域一次拷贝到目标缓冲区的当前位置,
+     * 再依次回填每条记录的offset。记录在缓冲区中首尾相接, 拷贝后offset依次为 offset + 相对位置。
+     *
+     * @param target 目标缓冲区, 通常是段文件的MappedByteBuffer。
+     * @param from   起始记录序号(含)。
+     * @param to     结束记录序号(不含)。
+     * @param offset 第from条记录的逻辑偏移量。
+     */
+    public void writeTo(ByteBuffer target, int from, int to, long offset) {
+        int position = target.position();
+        int base = starts[from];
+        target.put(buf, base, length(from, to));
+        for (int i = from; i < to; i++) {
+            int relative = starts[i] - base;
+            target.putLong(position + relative + MessageRecord.OFFSET_POS, offset + relative);
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity > buf.length) {
+            resize(Math.max(buf.length << 1, minCapacity));
+        }
+    }
+
+    private void resize(int size) {
+        buf = Arrays.copyOf(buf, size);
+        view = ByteBuffer.wrap(buf);
+    }
+}
@@ -0,0 +1,177 @@
+package cn.ipman.mq.server.store;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 段文件的后台预分配器, 每个分区存储一个。
+ * <p>
+ * 切换到新段后立即在后台线程上创建下一个段文件、设置文件长度并建立映射, 可选地逐页写入预先触发缺页,
+ * 写线程下一次切换段文件时直接取走已经准备好的映射, 不再在写锁内创建文件、映射和缺页。
+ * 预分配还没有开始时由写线程当场分配, 正在进行时等待它完成, 结果与不预分配相同。
+ * <p>
+ * 预分配的映射不计入 {@link MappedWindow} 的容量, 切换时才放入窗口。
+ *
+ * @Author IpMan
+ * @Date 2026/10/18 04:10
+ */
+public class SegmentAllocator {
+
+    /**
+     * 所有分区共享的预分配线程。
+     */
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mq-segment-allocator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final int PAGE_SIZE = 4096;
+
+    private final MappedWindow window;
+    private final boolean preTouch;
+
+    /**
+     * 下一个段的预分配任务, 只由持有写锁的线程访问。
+     */
+    private Allocation next;
+
+    /**
+     * 由预分配的映射完成的段切换次数。
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * 切换时预分配还没有开始、由写线程当场分配的次数。
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * 一个段的预分配任务, 后台线程和写线程谁先认领谁执行。
+     */
+    private static final class Allocation {
+        final int fileIndex;
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final CompletableFuture<MappedWindow.Mapping> done = new CompletableFuture<>();
+
+        Allocation(int fileIndex) {
+            this.fileIndex = fileIndex;
+        }
+    }
+
+    /**
+     * 创建预分配器。
+     *
+     * @param window   分区的映射窗口。
+     * @param preTouch 是否逐页写入预先触发缺页。
+     */
+    public SegmentAllocator(MappedWindow window, boolean preTouch) {
+        this.window = window;
+        this.preTouch = preTouch;
+    }
+
+    /**
+     * 在后台预分配指定的段, 切换到新段后调用。
+     *
+     * @param fileIndex 下一个段的文件索引。
+     */
+    public void prepare(int fileIndex) {
+        discard(next);
+        Allocation allocation = new Allocation(fileIndex);
+        next = allocation;
+        EXECUTOR.execute(() -> {
+            if (!allocation.claimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                allocation.done.complete(allocate(fileIndex));
+            } catch (Throwable e) {
+                System.out.println(" ===>> segment allocator: failed to preallocate segment " + fileIndex + ", " + e);
+                allocation.done.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * 取走指定段的映射, 没有预分配时当场分配。
+     *
+     * @param fileIndex 段的文件索引。
+     * @return 段的映射, 持有一个引用, 尚未放入窗口。
+     */
+    public MappedWindow.Mapping take(int fileIndex) {
+        Allocation allocation = next;
+        next = null;
+        if (allocation != null && allocation.fileIndex == fileIndex) {
+            if (!allocation.claimed.compareAndSet(false, true)) {
+                // 后台线程已经开始或者已经完成, 等待它的结果
+                try {
+                    MappedWindow.Mapping mapping = allocation.done.join();
+                    hits.increment();
+                    return mapping;
+                } catch (Exception e) {
+                    // 预分配失败时当场重试一次, 仍然失败则由写入者处理异常
+                }
+            }
+        } else {
+            discard(allocation);
+        }
+        misses.increment();
+        return allocate(fileIndex);
+    }
+
+    /**
+     * 是否已经准备好下一个段。
+     *
+     * @return 下一个段的映射已经建立返回true。
+     */
+    public boolean ready() {
+        Allocation allocation = next;
+        return allocation != null && allocation.done.isDone() && !allocation.done.isCompletedExceptionally();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * 放弃尚未取走的预分配, 存储关闭时调用。正在进行的预分配完成后立即释放映射。
+     */
+    public void close() {
+        Allocation allocation = next;
+        next = null;
+        discard(allocation);
+        if (allocation != null) {
+            // 等待后台线程不再访问分区目录, 之后目录可以被安全删除
+            allocation.done.exceptionally(e -> null).join();
+        }
+    }
+
+    private void discard(Allocation allocation) {
+        if (allocation == null) {
+            return;
+        }
+        if (!allocation.claimed.compareAndSet(false, true)) {
+            allocation.done.thenAccept(MappedWindow.Mapping::release);
+        } else {
+            allocation.done.complete(null);
+        }
+    }
+
+    private MappedWindow.Mapping allocate(int fileIndex) {
+        MappedWindow.Mapping mapping = window.allocate(fileIndex);
+        if (preTouch) {
+            // 新段全为0, 每页写一个0字节让内核提前分配页缓存, 写线程不再在缺页上停顿
+            for (int i = 0; i < mapping.getBuffer().capacity(); i += PAGE_SIZE) {
+                mapping.getBuffer().put(i, (byte) 0);
+            }
+        }
+        return mapping;
+    }
+}
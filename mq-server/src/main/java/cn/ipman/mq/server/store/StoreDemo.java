@@ -42,13 +42,14 @@ public class StoreDemo {
                      (FileChannel) Files.newByteChannel(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
             MappedByteBuffer mappedByteBuffer = channel
                     .map(FileChannel.MapMode.READ_WRITE, 0, 1024);
+            Indexer indexer = new Indexer(1024);
 
             for (int i = 0; i < 10; i++) {
                 System.out.println(i + " -> " + mappedByteBuffer.position()); // offset
                 @SuppressWarnings("unchecked")
                 Message<String> message = (Message<String>) Message.createMessage(content, null);
                 String msg = JSON.toJSONString(message);
-                Indexer.addEntry("im.order", mappedByteBuffer.position(), msg.getBytes(StandardCharsets.UTF_8).length, 0);
+                indexer.addEntry(mappedByteBuffer.position(), msg.getBytes(StandardCharsets.UTF_8).length);
                 mappedByteBuffer.put(StandardCharsets.UTF_8.encode(msg));
             }
 
@@ -63,10 +64,10 @@ public class StoreDemo {
 
                 int id = Integer.parseInt(line);
 
-                Indexer.Entry entry = Indexer.getEntry("im.order", id);
-                readOnlyBuffer.position(entry.getOffset());
+                int len = indexer.length(id);
+                if (len < 0) continue;
+                readOnlyBuffer.position(id);
 
-                int len = entry.getLength();
                 byte[] bytes = new byte[len];
                 readOnlyBuffer.get(bytes, 0, len);
 
@@ -0,0 +1,90 @@
+package cn.ipman.mq.server.store;
+
+import cn.ipman.mq.metadata.model.Message;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 分区尾部的消息缓存, 缓存最近读取过的解码后的消息。
+ * <p>
+ * 消费者几乎总是读取刚写入的尾部消息, 同一条消息被多个消费者组读取时, 只有第一次读取需要拷贝和解析JSON,
+ * 之后的读取直接返回同一个消息对象。缓存是定长的直接映射表: 每个offset只能放在一个槽位上,
+ * 新消息覆盖同一槽位上的旧消息, 不需要加锁也不需要淘汰线程, 内存占用以槽位数为上限。
+ * <p>
+ * 缓存的消息被多个请求共享, 调用方不能修改。
+ *
+ * @Author IpMan
+ * @Date 2026/10/18 03:10
+ */
+public class TailCache {
+
+    private final AtomicReferenceArray<Entry> slots;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    record Entry(long offset, Message<String> message) {
+    }
+
+    /**
+     * 创建缓存。
+     *
+     * @param capacity 槽位数, 即最多缓存的消息条数。
+     */
+    public TailCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("invalid tail cache capacity: " + capacity);
+        }
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * 查找缓存的消息, 同时记录命中或未命中。
+     *
+     * @param offset 消息的offset。
+     * @return 缓存的消息, 没有缓存时返回null。
+     */
+    public Message<String> get(long offset) {
+        Entry entry = slots.get(slot(offset));
+        if (entry != null && entry.offset() == offset) {
+            hits.increment();
+            return entry.message();
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * 缓存解码后的消息, 覆盖同一槽位上的旧消息。
+     *
+     * @param offset  消息的offset。
+     * @param message 解码后的消息。
+     */
+    public void put(long offset, Message<String> message) {
+        slots.set(slot(offset), new Entry(offset, message));
+    }
+
+    /**
+     * 清空缓存, 段文件被删除或截断时调用。
+     */
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    private int slot(long offset) {
+        // offset是记录的字节位置, 相邻记录的差值是记录长度, 打散后再取模避免集中在少数槽位
+        long h = offset * 0x9E3779B97F4A7C15L;
+        return (int) Math.floorMod(h ^ (h >>> 32), (long) slots.length());
+    }
+}
@@ -0,0 +1,185 @@
+package cn.ipman.mq.server.store;
+
+import lombok.Data;
+
+/**
+ * 主题级别的存储配置。
+ * <p>
+ * 配置通过JVM系统属性提供, 主题级配置优先于全局默认值, 例如:
+ * <pre>
+ * -Dmq.store.segmentSize=67108864                    全局默认的段文件大小
+ * -Dmq.topic.im.order.segmentSize=1073741824         主题 im.order 的段文件大小
+ * -Dmq.topic.im.order.flushMode=GROUP_COMMIT         主题 im.order 的刷盘策略
+ * -Dmq.topic.im.order.partitions=8                   主题 im.order 的分区数量
+ * -Dmq.store.offsetFlushIntervalMs=1000              消费位点批量写盘的间隔
+ * -Dmq.store.tailCacheSize=1024                      每个分区尾部消息缓存的条数, 0为不缓存
+ * -Dmq.store.maxMappedBytes=1073741824               每个分区同时映射的段文件总大小上限
+ * -Dmq.store.preTouch=true                           预分配段文件时逐页写入, 提前触发缺页
+ * -Dmq.topic.im.order.retentionMs=604800000          主题 im.order 的消息保留7天
+ * -Dmq.topic.im.order.retentionBytes=10737418240     主题 im.order 每个分区最多保留10GB
+ * -Dmq.topic.im.order.retentionCommitted=true        主题 im.order 的消息被所有消费者组确认后删除
+ * </pre>
+ *
+ * @Author IpMan
+ * @Date 2026/10/17 20:40
+ */
+@Data
+public class TopicConfig {
+
+    // 全局配置前缀
+    public static final String STORE_PREFIX = "mq.store.";
+    // 主题配置前缀, 后接主题名
+    public static final String TOPIC_PREFIX = "mq.topic.";
+
+    // 默认段文件大小 64MB
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    // 段文件大小上限 1GB, 单个 MappedByteBuffer 最大只能映射 2GB
+    public static final int MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+    // 默认每个分区最多映射 1GB
+    public static final long DEFAULT_MAX_MAPPED_BYTES = 1024L * 1024 * 1024;
+    // 分区数量上限
+    public static final int MAX_PARTITIONS = 1024;
+
+    /**
+     * 主题名。
+     */
+    private String topic;
+
+    /**
+     * 段文件大小(字节)。只对新建的主题生效, 已有数据的主题沿用已有段文件的大小,
+     * 因为逻辑偏移量 = 段序号 * 段大小 + 段内位置。
+     */
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    /**
+     * 刷盘策略, 默认异步刷盘。
+     */
+    private FlushMode flushMode = FlushMode.ASYNC;
+
+    /**
+     * 组提交的最长刷盘间隔(毫秒)。
+     */
+    private int flushIntervalMs = 10;
+
+    /**
+     * 组提交的刷盘字节阈值, 未刷盘数据达到该值时提前刷盘。
+     */
+    private int flushBytes = 64 * 1024;
+
+    /**
+     * 分区数量。每个分区有独立的存储、索引和段文件, 写入互不阻塞。
+     * 只能增加不能减少, 减少后多出来的分区中的消息无法再被消费。
+     */
+    private int partitions = 1;
+
+    /**
+     * 消费位点批量写盘的间隔(毫秒), 崩溃时最多丢失这段时间内的确认。
+     */
+    private int offsetFlushIntervalMs = 1000;
+
+    /**
+     * 每个分区尾部消息缓存的条数, 0为不缓存。
+     */
+    private int tailCacheSize = 1024;
+
+    /**
+     * 每个分区同时映射到内存的段文件总大小上限(字节), 至少映射两个段。
+     * 更旧的段不映射, 读取时使用 FileChannel 的定位读。
+     */
+    private long maxMappedBytes = DEFAULT_MAX_MAPPED_BYTES;
+
+    /**
+     * 是否在后台预分配下一个段文件, 段文件切换时不再在写锁内创建和映射文件。
+     */
+    private boolean preallocate = true;
+
+    /**
+     * 预分配段文件时是否逐页写入, 提前触发缺页。会产生一个段大小的磁盘写入, 默认关闭。
+     */
+    private boolean preTouch = false;
+
+    /**
+     * 消息的最长保留时间(毫秒), 段文件中最新的消息超过该时间后整个段被删除, 小于等于0为不限制。
+     */
+    private long retentionMs = -1;
+
+    /**
+     * 每个分区最多保留的字节数, 超过时从最旧的段开始删除, 小于等于0为不限制。
+     */
+    private long retentionBytes = -1;
+
+    /**
+     * 是否删除所有消费者组都已确认过的段。
+     */
+    private boolean retentionCommitted = false;
+
+    /**
+     * 后台检查保留策略的间隔(毫秒)。
+     */
+    private int retentionCheckIntervalMs = 60_000;
+
+    public TopicConfig(String topic) {
+        this.topic = topic;
+    }
+
+    /**
+     * 根据系统属性解析指定主题的配置。
+     *
+     * @param topic 主题名。
+     * @return 主题配置。
+     */
+    public static TopicConfig of(String topic) {
+        TopicConfig config = new TopicConfig(topic);
+        config.setSegmentSize(getInt(topic, "segmentSize", DEFAULT_SEGMENT_SIZE));
+        config.setFlushMode(FlushMode.valueOf(get(topic, "flushMode", FlushMode.ASYNC.name()).toUpperCase()));
+        config.setFlushIntervalMs(getInt(topic, "flushIntervalMs", 10));
+        config.setFlushBytes(getInt(topic, "flushBytes", 64 * 1024));
+        config.setPartitions(getInt(topic, "partitions", 1));
+        config.setOffsetFlushIntervalMs(getInt(topic, "offsetFlushIntervalMs", 1000));
+        config.setTailCacheSize(getInt(topic, "tailCacheSize", 1024));
+        config.setMaxMappedBytes(getLong(topic, "maxMappedBytes", DEFAULT_MAX_MAPPED_BYTES));
+        config.setPreallocate(Boolean.parseBoolean(get(topic, "preallocate", "true")));
+        config.setPreTouch(Boolean.parseBoolean(get(topic, "preTouch", "false")));
+        config.setRetentionMs(getLong(topic, "retentionMs", -1));
+        config.setRetentionBytes(getLong(topic, "retentionBytes", -1));
+        config.setRetentionCommitted(Boolean.parseBoolean(get(topic, "retentionCommitted", "false")));
+        config.setRetentionCheckIntervalMs(getInt(topic, "retentionCheckIntervalMs", 60_000));
+        return config;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        if (segmentSize < MessageRecord.HEADER_SIZE || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("invalid segment size: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    public void setPartitions(int partitions) {
+        if (partitions < 1 || partitions > MAX_PARTITIONS) {
+            throw new IllegalArgumentException("invalid partitions: " + partitions);
+        }
+        this.partitions = partitions;
+    }
+
+    /**
+     * 是否配置了任何保留策略。
+     *
+     * @return 配置了保留策略返回true。
+     */
+    public boolean hasRetention() {
+        return retentionMs > 0 || retentionBytes > 0 || retentionCommitted;
+    }
+
+    static String get(String topic, String key, String defaultValue) {
+        return System.getProperty(TOPIC_PREFIX + topic + "." + key,
+                System.getProperty(STORE_PREFIX + key, defaultValue));
+    }
+
+    static int getInt(String topic, String key, int defaultValue) {
+        return Integer.parseInt(get(topic, key, String.valueOf(defaultValue)));
+    }
+
+    static long getLong(String topic, String key, long defaultValue) {
+        return Long.parseLong(get(topic, key, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,62 @@
+package cn.ipman.mq.server.server;
+
+import cn.ipman.mq.metadata.model.Assignment;
+import cn.ipman.mq.metadata.model.Subscription;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static cn.ipman.mq.metadata.model.Constants.GROUP_SESSION_TIMEOUT;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConsumerGroupTests {
+
+    static final int PARTITIONS = 5;
+
+    ConsumerGroup group = new ConsumerGroup(new Subscription("test.group", "g1", "c1", -1), PARTITIONS);
+
+    @Test
+    void partitionsSplitAcrossMembers() {
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, group.join("c1").getPartitions());
+        group.join("c2");
+        group.join("c3");
+
+        // 按成员ID排序分配连续的分区, 前面的成员多分一个
+        assertArrayEquals(new int[]{0, 1}, group.assigned("c1"));
+        assertArrayEquals(new int[]{2, 3}, group.assigned("c2"));
+        assertArrayEquals(new int[]{4}, group.assigned("c3"));
+        assertTrue(group.owns("c2", 3));
+        assertFalse(group.owns("c1", 3));
+
+        // 离开后分区分配给剩下的成员, 每个分区只属于一个成员
+        int generation = group.heartbeat("c1").getGeneration();
+        assertTrue(group.leave("c2"));
+        Assignment assignment = group.heartbeat("c1");
+        assertTrue(assignment.getGeneration() > generation);
+        Set<Integer> all = new HashSet<>();
+        for (String member : new String[]{"c1", "c3"}) {
+            for (int p : group.assigned(member)) {
+                assertTrue(all.add(p));
+            }
+        }
+        assertEquals(PARTITIONS, all.size());
+    }
+
+    @Test
+    void expiredMembersAreRemoved() {
+        group.heartbeat("c1");
+        group.heartbeat("c2");
+        assertEquals(3, group.assigned("c1").length);
+
+        // c2停止心跳, 超过会话时间后被移出, 它的分区回到c1
+        group.members.get("c2").lastHeartbeat -= GROUP_SESSION_TIMEOUT + 1;
+        assertEquals(PARTITIONS, group.heartbeat("c1").getPartitions().length);
+        assertFalse(group.contains("c2"));
+
+        // 只订阅不发心跳的成员没有会话, 不会过期
+        group.join("c3");
+        assertTrue(group.contains("c3"));
+        assertEquals(2, group.assigned("c3").length);
+    }
+}
@@ -0,0 +1,257 @@
+package cn.ipman.mq.server.server;
+
+import cn.ipman.mq.metadata.model.Assignment;
+import cn.ipman.mq.metadata.model.BatchResult;
+import cn.ipman.mq.metadata.model.Message;
+import cn.ipman.mq.metadata.model.Subscription;
+import cn.ipman.mq.server.store.MessageStore;
+import cn.ipman.mq.server.store.TopicConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static cn.ipman.mq.metadata.model.Constants.KEY_HEADER;
+import static cn.ipman.mq.metadata.model.Constants.OFFSET_HEADER;
+import static cn.ipman.mq.metadata.model.Constants.PARTITION_HEADER;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageQueueTests {
+
+    static final String TOPIC = "test.queue.partitions";
+    static final String CID = "cid-test";
+    static final int PARTITIONS = 3;
+
+    @BeforeEach
+    void setUp() {
+        delete();
+        TopicConfig config = new TopicConfig(TOPIC);
+        config.setPartitions(PARTITIONS);
+        MessageQueue.queues.put(TOPIC, new MessageQueue(config));
+        MessageQueue.sub(new Subscription(TOPIC, CID, -1));
+    }
+
+    @AfterEach
+    void tearDown() {
+        // 先关闭分区存储再删除目录, 否则预分配线程会重新创建段文件, 映射也不会释放
+        MessageQueue queue = MessageQueue.queues.remove(TOPIC);
+        if (queue != null) {
+            queue.closeAll();
+        }
+        delete();
+    }
+
+    @Test
+    void sameKeyLandsInSamePartition() {
+        for (int i = 0; i < 5; i++) {
+            MessageQueue.send(TOPIC, -1, new Message<>(i, "order-" + i, Map.of(KEY_HEADER, "order-42"))).join();
+        }
+        Set<Integer> partitions = new HashSet<>();
+        for (int p = 0; p < PARTITIONS; p++) {
+            List<Message<?>> messages = MessageQueue.batchReceive(TOPIC, CID, p, -1, 10);
+            if (!messages.isEmpty()) {
+                partitions.add(p);
+                assertEquals(5, messages.size());
+                // 同一个键的消息在分区内保持发送顺序
+                for (int i = 0; i < messages.size(); i++) {
+                    assertEquals("order-" + i, messages.get(i).getBody());
+                    assertEquals(String.valueOf(p), messages.get(i).getHeaders().get(PARTITION_HEADER));
+                }
+            }
+        }
+        assertEquals(1, partitions.size());
+    }
+
+    @Test
+    void acksArePerPartition() {
+        BatchResult p0 = MessageQueue.batchSend(TOPIC, 0, List.of(new Message<>(1, "a", null),
+                new Message<>(2, "b", null))).join();
+        BatchResult p1 = MessageQueue.batchSend(TOPIC, 1, List.of(new Message<>(3, "c", null))).join();
+        assertEquals(0, p0.getPartition());
+        assertEquals(1, p1.getPartition());
+
+        // 确认分区0的全部消息不影响分区1的消费位置
+        assertEquals(p0.getOffsets()[1], MessageQueue.ack(TOPIC, CID, 0, p0.getOffsets()[1]));
+        List<Message<?>> messages = MessageQueue.batchReceive(TOPIC, CID, 10);
+        assertEquals(1, messages.size());
+        assertEquals("c", messages.get(0).getBody());
+        assertEquals("1", messages.get(0).getHeaders().get(PARTITION_HEADER));
+        assertEquals(3, MessageQueue.stat(TOPIC, CID).getTotal());
+    }
+
+    @Test
+    void groupMembersShareOffsetsAndSplitPartitions() {
+        MessageQueue.unsub(new Subscription(TOPIC, CID, -1));
+        Assignment a = MessageQueue.sub(new Subscription(TOPIC, "group", "a", -1));
+        Assignment b = MessageQueue.sub(new Subscription(TOPIC, "group", "b", -1));
+        assertEquals(3, a.getPartitions().length);
+        assertEquals(1, b.getPartitions().length);
+        assertArrayEquals(new int[]{0, 1}, MessageQueue.heartbeat(new Subscription(TOPIC, "group", "a", -1)).getPartitions());
+
+        for (int p = 0; p < PARTITIONS; p++) {
+            MessageQueue.send(TOPIC, p, new Message<>(p, "m" + p, null)).join();
+        }
+        // 每个成员只拉取分配给自己的分区, 合起来正好是所有消息
+        List<Message<?>> fromA = MessageQueue.batchReceive(TOPIC, "a", 10);
+        List<Message<?>> fromB = MessageQueue.batchReceive(TOPIC, "b", 10);
+        assertEquals(2, fromA.size());
+        assertEquals(1, fromB.size());
+        assertEquals("2", fromB.get(0).getHeaders().get(PARTITION_HEADER));
+        assertTrue(MessageQueue.batchReceive(TOPIC, "a", 2, -1, 10).isEmpty());
+
+        // b确认后离开, a接手分区2, 从消费者组已确认的位置之后继续
+        long offset = Long.parseLong(fromB.get(0).getHeaders().get(OFFSET_HEADER));
+        assertEquals(offset, MessageQueue.ack(TOPIC, "b", 2, offset));
+        MessageQueue.unsub(new Subscription(TOPIC, "group", "b", -1));
+        assertTrue(MessageQueue.batchReceive(TOPIC, "a", 2, -1, 10).isEmpty());
+        assertEquals(2, MessageQueue.batchReceive(TOPIC, "a", 10).size());
+    }
+
+    @Test
+    void groupOffsetsSurviveRestart() {
+        BatchResult result = MessageQueue.batchSend(TOPIC, 0, List.of(new Message<>(1, "a", null),
+                new Message<>(2, "b", null))).join();
+        assertEquals(1, MessageQueue.commit(TOPIC, CID, Map.of(0, result.getOffsets()[0])));
+
+        // 关闭时写入位点, 重新打开后消费者组从已确认的位置之后继续
+        MessageQueue.queues.remove(TOPIC).closeAll();
+        TopicConfig config = new TopicConfig(TOPIC);
+        config.setPartitions(PARTITIONS);
+        MessageQueue.queues.put(TOPIC, new MessageQueue(config));
+        MessageQueue.sub(new Subscription(TOPIC, CID, -1));
+        List<Message<?>> messages = MessageQueue.batchReceive(TOPIC, CID, 0, -1, 10);
+        assertEquals(1, messages.size());
+        assertEquals("b", messages.get(0).getBody());
+    }
+
+    @Test
+    void committedIsMinimumOverAllGroups() {
+        MessageQueue queue = MessageQueue.queues.get(TOPIC);
+        BatchResult result = MessageQueue.batchSend(TOPIC, 0, List.of(new Message<>(1, "a", null),
+                new Message<>(2, "b", null))).join();
+        assertEquals(-1, queue.committed(0));
+        MessageQueue.ack(TOPIC, CID, 0, result.getOffsets()[1]);
+        assertEquals(result.getOffsets()[1], queue.committed(0));
+
+        // 还没有确认过消息的消费者组阻止按确认删除
+        MessageQueue.sub(new Subscription(TOPIC, "slow", "slow-1", -1));
+        assertEquals(-1, queue.committed(0));
+        MessageQueue.ack(TOPIC, "slow-1", 0, result.getOffsets()[0]);
+        assertEquals(result.getOffsets()[0], queue.committed(0));
+    }
+
+    @Test
+    void topicsAreCreatedAndDeletedAtRuntime() {
+        String topic = "test.queue.dynamic";
+        MessageQueue.deleteTopic(topic);
+        assertThrows(RuntimeException.class, () -> MessageQueue.partitions(topic));
+        assertThrows(IllegalArgumentException.class, () -> MessageQueue.createTopic("../" + topic, 1));
+
+        assertTrue(MessageQueue.createTopic(topic, 2));
+        assertFalse(MessageQueue.createTopic(topic, 4));
+        assertEquals(2, MessageQueue.partitions(topic));
+        MessageQueue.send(topic, 1, new Message<>(1, "a", null)).join();
+
+        // 关闭后第一次访问时重新打开, 分区数量以磁盘为准
+        MessageQueue.queues.remove(topic).closeAll();
+        assertEquals(2, MessageQueue.partitions(topic));
+
+        assertTrue(MessageQueue.deleteTopic(topic));
+        assertFalse(new File(MessageStore.STORE_DIR + topic).exists());
+        assertThrows(RuntimeException.class, () -> MessageQueue.partitions(topic));
+        assertFalse(MessageQueue.deleteTopic(topic));
+    }
+
+    @Test
+    void concurrentAcksNeverMoveOffsetBackwards() throws Exception {
+        List<Message<String>> messages = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            messages.add(new Message<>(i, "m" + i, null));
+        }
+        long[] offsets = MessageQueue.batchSend(TOPIC, 0, messages).join().getOffsets();
+
+        // 多个线程乱序确认, 最终位点是最大的那个
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int start = t;
+            futures.add(executor.submit(() -> {
+                for (int i = offsets.length - 1 - start; i >= 0; i -= 8) {
+                    MessageQueue.ack(TOPIC, CID, 0, offsets[i]);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertEquals(offsets[offsets.length - 1], MessageQueue.stat(TOPIC, CID).getSubscription().getOffset(0));
+    }
+
+    @Test
+    void shutdownClosesPartitionStores() {
+        MessageQueue queue = MessageQueue.queues.get(TOPIC);
+        long offset = MessageQueue.send(TOPIC, 0, new Message<>(1, "a", null)).join();
+        // 只关闭本测试的主题, 其他测试打开的主题不受影响
+        Map<String, MessageQueue> others = new HashMap<>(MessageQueue.queues);
+        others.remove(TOPIC);
+        MessageQueue.queues.keySet().removeAll(others.keySet());
+        try {
+            MessageQueue.shutdown();
+        } finally {
+            MessageQueue.queues.putAll(others);
+        }
+
+        // 关闭的队列仍然保留, 不会被重新打开; 存储已经关闭, 不能再写入
+        assertSame(queue, MessageQueue.queues.get(TOPIC));
+        assertThrows(IllegalStateException.class, () -> MessageQueue.send(TOPIC, 0, new Message<>(2, "b", null)));
+
+        // 重启后消息仍在
+        TopicConfig config = new TopicConfig(TOPIC);
+        config.setPartitions(PARTITIONS);
+        MessageQueue.queues.put(TOPIC, new MessageQueue(config));
+        assertEquals("a", MessageQueue.queues.get(TOPIC).partitions[0].getStore().read(offset).getBody());
+    }
+
+    @Test
+    void topicsArePreloadedInParallel() {
+        for (int p = 0; p < PARTITIONS; p++) {
+            MessageQueue.send(TOPIC, p, new Message<>(p, "p" + p, null)).join();
+        }
+        MessageQueue.queues.remove(TOPIC).closeAll();
+
+        assertEquals(1, MessageQueue.preload(List.of(TOPIC)));
+        MessageQueue queue = MessageQueue.queues.get(TOPIC);
+        assertNotNull(queue);
+        assertEquals(PARTITIONS, queue.partitions.length);
+        for (int p = 0; p < PARTITIONS; p++) {
+            assertEquals(p, queue.partitions[p].getId());
+            assertEquals(1, queue.partitions[p].getStore().total());
+        }
+    }
+
+    private static void delete() {
+        Path dir = new File(MessageStore.STORE_DIR + TOPIC).toPath();
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (var paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
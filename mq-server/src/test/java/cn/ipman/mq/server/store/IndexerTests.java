@@ -0,0 +1,58 @@
+package cn.ipman.mq.server.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexerTests {
+
+    @Test
+    void lookupAcrossSegments() {
+        Indexer indexer = new Indexer(100);
+        for (int i = 0; i < 3000; i++) {
+            // 每段10条记录, 每条10字节
+            long offset = (long) (i / 10) * 100 + (i % 10) * 10;
+            indexer.addEntry(offset, 10);
+        }
+        assertEquals(3000, indexer.total());
+        assertEquals(10, indexer.length(0));
+        assertEquals(10, indexer.length(29990));
+        assertEquals(-1, indexer.length(5));
+        assertEquals(-1, indexer.length(30000));
+        assertEquals(-1, indexer.length(-1));
+    }
+
+    @Test
+    void sealSegment() {
+        Indexer indexer = new Indexer(100);
+        indexer.addEntry(0, 60);
+        assertEquals(-1, indexer.maxOffset(0));
+        indexer.seal(0, 60);
+        indexer.addEntry(100, 60);
+        assertEquals(60, indexer.maxOffset(0));
+        assertEquals(-1, indexer.maxOffset(1));
+        assertEquals(60, indexer.length(100));
+    }
+
+    @Test
+    void reopenIndexFile(@TempDir File dir) {
+        Indexer indexer = new Indexer(4096, dir.getPath());
+        for (int i = 0; i < 300; i++) {
+            indexer.addEntry(i * 10L, 10);
+        }
+        indexer.seal(0, 3000);
+
+        Indexer reopened = new Indexer(4096, dir.getPath());
+        assertEquals(300, reopened.open(0, false).size());
+        assertEquals(300, reopened.total());
+        assertEquals(10, reopened.length(2990));
+
+        // 截断后残留的条目被清零, 再次打开时不会被当作有效条目
+        reopened.truncate(0, 100);
+        assertEquals(-1, reopened.length(2990));
+        assertEquals(100, new Indexer(4096, dir.getPath()).open(0, true).size());
+    }
+}
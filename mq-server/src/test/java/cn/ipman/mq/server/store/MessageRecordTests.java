@@ -0,0 +1,53 @@
+package cn.ipman.mq.server.store;
+
+import cn.ipman.mq.metadata.model.Message;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageRecordTests {
+
+    @Test
+    void writeAndVerify() {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        RecordEncoder encoder = RecordEncoder.get().encode(new Message<>(1, "a", null), 1L);
+        encoder.writeTo(buffer, 100);
+        int len = encoder.length();
+
+        assertEquals(len, buffer.position());
+        assertFalse(MessageRecord.isLegacy(buffer, 0));
+        assertEquals(len, MessageRecord.recordLength(buffer, 0));
+        assertTrue(MessageRecord.verify(buffer, 0, len));
+        assertEquals(100, MessageRecord.offset(buffer, 0));
+        assertEquals(0, MessageRecord.recordLength(buffer, len));
+    }
+
+    @Test
+    void detectTornWrite() {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        RecordEncoder encoder = RecordEncoder.get().encode(new Message<>(1, "a", null), 1L);
+        encoder.writeTo(buffer, 0);
+        int len = encoder.length();
+        buffer.put(len - 1, (byte) 0);
+        assertFalse(MessageRecord.verify(buffer, 0, len));
+
+        buffer.limit(len - 1);
+        assertEquals(-1, MessageRecord.recordLength(buffer, 0));
+    }
+
+    @Test
+    void readLegacyRecord() {
+        String json = "{\"body\":\"a\",\"id\":1}";
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.put((String.format("%010d", json.length()) + json).getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(MessageRecord.isLegacy(buffer, 0));
+        int len = MessageRecord.recordLength(buffer, 0);
+        assertEquals(MessageRecord.LEGACY_HEADER_SIZE + json.length(), len);
+        assertTrue(MessageRecord.verify(buffer, 0, len));
+        assertEquals(MessageRecord.LEGACY_HEADER_SIZE, MessageRecord.headerSize(buffer, 0));
+    }
+}
@@ -0,0 +1,335 @@
+package cn.ipman.mq.server.store;
+
+import cn.ipman.mq.metadata.model.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageStoreTests {
+
+    static final String TOPIC = "test.store.batch";
+    static final int SEGMENT_SIZE = 512;
+
+    // 每个测试使用自己的存储根目录, 不写入工程的storage目录
+    @TempDir
+    File root;
+
+    MessageStore store;
+
+    @BeforeEach
+    void setUp() {
+        TopicConfig config = new TopicConfig(TOPIC);
+        config.setSegmentSize(SEGMENT_SIZE);
+        store = open(config);
+    }
+
+    @AfterEach
+    void tearDown() {
+        // 先关闭存储: 释放映射并等待预分配完成, 之后临时目录才能被完整删除
+        store.close();
+    }
+
+    @Test
+    void batchRollsSegmentsCleanly() {
+        List<Message<String>> messages = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            messages.add(new Message<>(i, "body-" + i, null));
+        }
+        long[] offsets = store.writeBatchAsync(messages).join();
+
+        assertEquals(20, offsets.length);
+        assertEquals(0, offsets[0]);
+        assertTrue(store.getCurrentFileIndex() > 0);
+        for (int i = 0; i < offsets.length; i++) {
+            long offset = offsets[i];
+            int length = store.indexer.length(offset);
+            // 记录不会跨越段文件
+            assertTrue(offset % SEGMENT_SIZE + length <= SEGMENT_SIZE);
+            if (i + 1 < offsets.length) {
+                long next = offsets[i + 1];
+                // 同一段内首尾相接, 否则从下一个段的起点开始
+                assertTrue(next == offset + length || next % SEGMENT_SIZE == 0 && next / SEGMENT_SIZE == offset / SEGMENT_SIZE + 1);
+                assertEquals(next, store.nextOffset(offset));
+            }
+            assertEquals("body-" + i, store.read(offset).getBody());
+        }
+        assertEquals(20, store.total());
+        assertEquals(offsets[19] + store.indexer.length(offsets[19]), store.pos());
+    }
+
+    @Test
+    void singleAndBatchWritesInterleave() {
+        long first = store.write(new Message<>(0, "single", null));
+        long[] offsets = store.writeBatchAsync(List.of(new Message<>(1, "a", null),
+                new Message<>(2, "b", null))).join();
+
+        assertEquals(store.nextOffset(first), offsets[0]);
+        assertEquals("a", store.read(offsets[0]).getBody());
+        assertEquals("b", store.read(offsets[1]).getBody());
+        assertEquals(String.valueOf(offsets[1]), store.read(offsets[1]).getHeaders().get("X-offset"));
+    }
+
+    @Test
+    void tailCacheDecodesOncePerMessage() {
+        List<Message<String>> messages = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            messages.add(new Message<>(i, "body-" + i, null));
+        }
+        long[] offsets = store.writeBatchAsync(messages).join();
+        long last = offsets[offsets.length - 1];
+
+        // 多个消费者读取尾部的同一条消息, 只有第一次解码
+        Message<String> first = store.read(last);
+        for (int i = 0; i < 5; i++) {
+            assertSame(first, store.read(last));
+        }
+        assertEquals(5, store.getTailCache().hits());
+        assertEquals(1, store.getTailCache().misses());
+
+        // 已经滚动过去的旧段不进入缓存
+        assertTrue(offsets[0] / SEGMENT_SIZE < store.getCurrentFileIndex() - 1);
+        assertNotSame(store.read(offsets[0]), store.read(offsets[0]));
+        assertEquals(1, store.getTailCache().misses());
+    }
+
+    @Test
+    void retentionBySizeDeletesOldestSegments() {
+        long[] offsets = writeSegments();
+        int current = store.getCurrentFileIndex();
+        long total = store.total();
+
+        // 每个分区最多保留两个段, 只剩正在写入的段和它的前一个段
+        store.retentionBytes = 2L * SEGMENT_SIZE;
+        assertEquals(current - 1, store.cleanup(System.currentTimeMillis(), -1));
+        assertEquals(current - 1, store.getFirstFileIndex());
+        assertEquals((long) (current - 1) * SEGMENT_SIZE, store.startOffset());
+        assertNull(store.read(offsets[0]));
+        assertFalse(new File(store.dir, "0" + MessageStore.STORE_FILE_FORMAT).exists());
+        assertFalse(new File(store.dir, "0" + Indexer.INDEX_FILE_FORMAT).exists());
+        assertTrue(store.total() < total);
+        assertEquals(0, store.cleanup(System.currentTimeMillis(), -1));
+
+        // 重启后从保留的第一个段开始加载
+        long last = offsets[offsets.length - 1];
+        store.close();
+        store = open(new TopicConfig(TOPIC));
+        assertEquals(current - 1, store.getFirstFileIndex());
+        assertEquals("body-" + (offsets.length - 1), store.read(last).getBody());
+    }
+
+    @Test
+    void retentionByCommitAndAge() {
+        long[] offsets = writeSegments();
+        int current = store.getCurrentFileIndex();
+
+        // 所有消费者组都确认到第一个段的最后一条消息, 只删除第一个段
+        long lastInFirst = offsets[0];
+        for (long offset : offsets) {
+            if (offset / SEGMENT_SIZE == 0) lastInFirst = offset;
+        }
+        assertEquals(0, store.cleanup(System.currentTimeMillis(), lastInFirst - 1));
+        assertEquals(1, store.cleanup(System.currentTimeMillis(), lastInFirst));
+        assertEquals(1, store.getFirstFileIndex());
+
+        // 所有已写满的段都已过期, 正在写入的段保留
+        store.retentionMs = 1000;
+        assertEquals(0, store.cleanup(System.currentTimeMillis(), -1));
+        assertEquals(current - 1, store.cleanup(System.currentTimeMillis() + 2000, -1));
+        assertEquals(current, store.getFirstFileIndex());
+        assertEquals("body-" + (offsets.length - 1), store.read(offsets[offsets.length - 1]).getBody());
+    }
+
+    @Test
+    void mappedWindowBoundsMappedSegments() {
+        TopicConfig config = new TopicConfig(TOPIC);
+        config.setSegmentSize(SEGMENT_SIZE);
+        config.setMaxMappedBytes(2L * SEGMENT_SIZE);
+        store.close();
+        store = open(config);
+        long[] offsets = writeSegments();
+        assertEquals(2, store.getWindow().getCapacity());
+        assertTrue(store.getWindow().size() <= 2);
+
+        // 窗口之外的旧段通过定位读读取, 不会被映射
+        for (int i = 0; i < offsets.length; i++) {
+            assertEquals("body-" + i, store.read(offsets[i]).getBody());
+        }
+        FetchResult result = store.fetch(offsets[0], offsets.length, Integer.MAX_VALUE);
+        assertEquals(offsets.length, result.getCount());
+        for (int i = 0; i < offsets.length; i++) {
+            assertEquals(offsets[i], result.getOffsets()[i]);
+            assertTrue(StandardCharsets.UTF_8.decode(result.getBodies()[i]).toString().contains("body-" + i));
+        }
+        result.release();
+        assertTrue(store.getWindow().size() <= 2);
+
+        // 拉取结果持有映射引用, 段被淘汰后切片仍然可以读取, 直到结果被释放
+        long last = offsets[offsets.length - 1];
+        FetchResult tail = store.fetch(last, 1, Integer.MAX_VALUE);
+        writeSegments();
+        assertTrue(store.getWindow().size() <= 2);
+        assertTrue(StandardCharsets.UTF_8.decode(tail.getBodies()[0]).toString().contains("body-" + (offsets.length - 1)));
+        tail.release();
+
+        // 重启时逐个加载段文件, 映射数量同样不超过窗口
+        store.close();
+        store = open(config);
+        assertTrue(store.getWindow().size() <= 2);
+        assertEquals("body-0", store.read(offsets[0]).getBody());
+    }
+
+    @Test
+    void nextSegmentIsPreallocated() throws Exception {
+        long first = store.write(new Message<>(0, "first", null));
+        awaitPreallocated();
+        File next = new File(store.dir, "1" + MessageStore.STORE_FILE_FORMAT);
+        assertEquals(SEGMENT_SIZE, next.length());
+
+        // 写满第一个段, 切换时直接使用预分配的段
+        long[] offsets = store.writeBatchAsync(List.of(new Message<>(1, "x".repeat(SEGMENT_SIZE / 2), null),
+                new Message<>(2, "x".repeat(SEGMENT_SIZE / 2), null))).join();
+        assertEquals(1, store.getCurrentFileIndex());
+        assertEquals(1, store.getAllocator().hits());
+        assertEquals(0, store.getAllocator().misses());
+        assertEquals(SEGMENT_SIZE, offsets[1]);
+        awaitPreallocated();
+        assertTrue(new File(store.dir, "2" + MessageStore.STORE_FILE_FORMAT).exists());
+
+        // 重启时空的预分配段成为正在写入的段, 新消息追加在它的起点
+        store.close();
+        TopicConfig config = new TopicConfig(TOPIC);
+        config.setSegmentSize(SEGMENT_SIZE);
+        store = open(config);
+        assertEquals(2, store.getCurrentFileIndex());
+        assertEquals(offsets[1], store.nextOffset(offsets[0]));
+        assertEquals(2L * SEGMENT_SIZE, store.nextOffset(offsets[1]));
+        assertEquals("first", store.read(first).getBody());
+
+        // 再次空闲重启: 又预分配的段3被删除(之后可能再次预分配), 空的段2仍然是正在写入的段, 不会被封存
+        awaitPreallocated();
+        assertTrue(new File(store.dir, "3" + MessageStore.STORE_FILE_FORMAT).exists());
+        store.close();
+        store = open(config);
+        assertEquals(2, store.getCurrentFileIndex());
+        assertEquals(-1, store.indexer.maxOffset(2));
+        assertFalse(new File(store.dir, "4" + MessageStore.STORE_FILE_FORMAT).exists());
+        long after = store.write(new Message<>(3, "after", null));
+        assertEquals(2L * SEGMENT_SIZE, after);
+        assertEquals(after, store.nextOffset(offsets[1]));
+        assertEquals("after", store.read(store.nextOffset(offsets[1])).getBody());
+    }
+
+    @Test
+    void tornRecordIsTruncatedOnRecovery() throws Exception {
+        TopicConfig config = new TopicConfig(TOPIC);
+        config.setSegmentSize(SEGMENT_SIZE);
+        config.setPreallocate(false);
+        store.close();
+        // 清空setUp写入的段文件, 不使用预分配重新开始
+        for (File file : new File(store.dir).listFiles()) {
+            assertTrue(file.delete());
+        }
+        store = open(config);
+        long a = store.write(new Message<>(0, "a", null));
+        long b = store.write(new Message<>(1, "b", null));
+        long c = store.write(new Message<>(2, "c", null));
+        long end = store.pos();
+        store.close();
+
+        // 模拟崩溃: b所在的页没有落盘, 之后的c却是完整的
+        File data = new File(store.dir, "0" + MessageStore.STORE_FILE_FORMAT);
+        try (RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+            raf.seek(c - 1);
+            raf.write('!');
+        }
+
+        store = open(config);
+        assertEquals(1, store.total());
+        assertEquals("a", store.read(a).getBody());
+        assertEquals(-1, store.nextOffset(b));
+        assertEquals(b, store.pos());
+        assertEquals(end - b, store.getDroppedBytes());
+        byte[] bytes = Files.readAllBytes(data.toPath());
+        for (long i = b; i < end; i++) {
+            assertEquals(0, bytes[(int) i]);
+        }
+
+        // 新消息追加在最后一条有效记录之后, 再次重启时c不会复活
+        assertEquals(b, store.write(new Message<>(3, "d", null)));
+        store.close();
+        store = open(config);
+        assertEquals(2, store.total());
+        assertEquals("d", store.read(b).getBody());
+        assertEquals(0, store.getDroppedBytes());
+    }
+
+    @Test
+    void sealedSegmentsTrustIndexOnRecovery() throws Exception {
+        long[] offsets = writeSegments();
+        long total = store.total();
+        List<Long> inFirst = new ArrayList<>();
+        for (long offset : offsets) {
+            if (offset / SEGMENT_SIZE == 0) inFirst.add(offset);
+        }
+        long middle = inFirst.get(0);
+        long last = inFirst.get(inFirst.size() - 1);
+        int middleLength = store.indexer.length(middle);
+        int lastLength = store.indexer.length(last);
+        store.close();
+
+        // 已封存段中间的记录损坏: 只校验最后一条记录, 不读取其余数据, 条目照常恢复
+        File data = new File(store.dir, "0" + MessageStore.STORE_FILE_FORMAT);
+        corrupt(data, middle + middleLength - 1);
+        store = open(new TopicConfig(TOPIC));
+        assertEquals(total, store.total());
+        assertEquals(0, store.getDroppedBytes());
+
+        // 最后一条记录损坏时退回逐条校验, 从第一条损坏的记录开始丢弃
+        store.close();
+        corrupt(data, last + lastLength - 1);
+        store = open(new TopicConfig(TOPIC));
+        assertEquals(total - inFirst.size(), store.total());
+        assertEquals(-1, store.nextOffset(middle));
+        assertEquals("body-" + (offsets.length - 1), store.read(offsets[offsets.length - 1]).getBody());
+    }
+
+    private static void corrupt(File file, long position) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            raf.write('!');
+        }
+    }
+
+    private void awaitPreallocated() throws InterruptedException {
+        for (int i = 0; i < 100 && !store.getAllocator().ready(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(store.getAllocator().ready());
+    }
+
+    private long[] writeSegments() {
+        List<Message<String>> messages = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            messages.add(new Message<>(i, "body-" + i, null));
+        }
+        long[] offsets = store.writeBatchAsync(messages).join();
+        assertTrue(store.getCurrentFileIndex() >= 3);
+        return offsets;
+    }
+
+    private MessageStore open(TopicConfig config) {
+        MessageStore store = new MessageStore(config, 0, root.getPath());
+        store.init();
+        return store;
+    }
+}
@@ -0,0 +1,100 @@
+package cn.ipman.mq.server.store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffsetStoreTests {
+
+    static final String TOPIC = "test.store.offsets";
+
+    OffsetStore store;
+
+    @BeforeEach
+    void setUp() {
+        delete();
+        store = open();
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.close();
+        delete();
+    }
+
+    @Test
+    void offsetsAreRecoveredAfterReopen() {
+        store.commit("g1", 0, 10);
+        store.commit("g1", 0, 20);
+        store.commit("g1", 1, 5);
+        store.commit("g2", 0, 7);
+        store.flush();
+        // 一个周期内同一个分区的多次提交只写一条记录
+        assertEquals(3, store.getRecords());
+        store.close();
+
+        store = open();
+        assertEquals(Map.of(0, 20L, 1, 5L), store.offsets("g1"));
+        assertEquals(Map.of(0, 7L), store.offsets("g2"));
+        assertTrue(store.offsets("g3").isEmpty());
+    }
+
+    @Test
+    void tornRecordIsDropped() throws Exception {
+        store.commit("g1", 0, 10);
+        store.close();
+        // 模拟崩溃时只写了一半的记录
+        Files.write(store.file.toPath(), "g1\t0\t9".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        store = open();
+        assertEquals(Map.of(0, 10L), store.offsets("g1"));
+        store.commit("g1", 0, 11);
+        store.close();
+
+        store = open();
+        assertEquals(Map.of(0, 11L), store.offsets("g1"));
+        assertEquals(2, store.getRecords());
+    }
+
+    @Test
+    void logIsCompacted() {
+        int rounds = OffsetStore.COMPACT_MIN_RECORDS + 10;
+        for (int i = 0; i < rounds; i++) {
+            store.commit("g1", 0, i);
+            store.flush();
+        }
+        assertTrue(store.getRecords() < rounds);
+        store.close();
+
+        store = open();
+        assertEquals(Map.of(0, (long) rounds - 1), store.offsets("g1"));
+    }
+
+    private static OffsetStore open() {
+        OffsetStore store = new OffsetStore(new TopicConfig(TOPIC));
+        store.init();
+        return store;
+    }
+
+    private static void delete() {
+        Path dir = new File(MessageStore.STORE_DIR + TOPIC).toPath();
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (var paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}